@@ -0,0 +1,262 @@
+package drawing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import VASSAL.build.GameModule;
+import VASSAL.command.Command;
+import VASSAL.tools.SequenceEncoder;
+import VASSAL.tools.io.DeobfuscatingInputStream;
+import VASSAL.tools.io.ObfuscatingOutputStream;
+
+/**
+ * Offline compaction of saved games (.vsav) and logs (.vlog): each map's "ANNOTATE;" history is replayed through a
+ * headless {@link MapAnnotator} and replaced by its restore command, where its last command was (so in a log the
+ * drawings all appear at that step). Everything else is copied unchanged.
+ *
+ * Usage: java -Djava.awt.headless=true drawing.AnnotationCompactor [simplify=0] [compress=false] [threads=cores]
+ *        [out=dir] file...   (name-compact.ext next to each file without out=)
+ *        simplify: drop polyline points closer than this (map units) to the simplified line, 0 keeps every point
+ *        compress: write compressed restores, which module versions without them cannot read
+ */
+final class AnnotationCompactor {
+
+    private static final String SAVE_ENTRY = "savedGame";
+    private static final String LOG_PREFIX = "LOG\t"; // BasicLogger: a logged step wrapping one encoded command
+
+    private final double simplify;
+    private final boolean compress;
+
+    private AnnotationCompactor(double simplify, boolean compress) {
+        this.simplify = simplify;
+        this.compress = compress;
+    }
+
+    // ------------------- Command tree -------------------
+    // The saved game as GameModule.decode() splits it: one encoded command, a sequence, or a logged step
+    private static final class Node {
+        final String text;     // a single command, else null
+        final List<Node> seq;  // a sequence, else null
+        final Node logged;     // the command of a logged step, else null
+
+        private Node(String text, List<Node> seq, Node logged) {
+            this.text = text;
+            this.seq = seq;
+            this.logged = logged;
+        }
+
+        boolean isAnnotation() { return text != null && text.startsWith(MapAnnotator.COMMAND_PREFIX); }
+    }
+
+    private static Node parse(String s) {
+        SequenceEncoder.Decoder st = new SequenceEncoder.Decoder(s, GameModule.COMMAND_SEPARATOR);
+        String first = st.nextToken();
+        if (s.equals(first)) {
+            if (s.startsWith(LOG_PREFIX)) return new Node(null, null, parse(s.substring(LOG_PREFIX.length())));
+            return new Node(s, null, null);
+        }
+
+        ArrayList<Node> seq = new ArrayList<>();
+        seq.add(parse(first));
+        while (st.hasMoreTokens()) seq.add(parse(st.nextToken()));
+        return new Node(null, seq, null);
+    }
+
+    private static String encode(Node n) {
+        if (n.logged != null) return LOG_PREFIX + encode(n.logged);
+        if (n.seq == null) return n.text;
+
+        SequenceEncoder se = null;
+        for (Node item : n.seq) {
+            String s = encode(item);
+            if (se == null) se = new SequenceEncoder(s, GameModule.COMMAND_SEPARATOR);
+            else se.append(s);
+        }
+        return se.getValue();
+    }
+
+    // Annotator commands in document order, which is the order a load (and a log's playback) executes them
+    private static void annotations(Node n, List<Node> out) {
+        if (n.logged != null) annotations(n.logged, out);
+        else if (n.seq != null) for (Node item : n.seq) annotations(item, out);
+        else if (n.isAnnotation()) out.add(n);
+    }
+
+    // Drops every annotator command but the last of each map, which becomes that map's restore (or goes as well
+    // when nothing is left to restore). Emptied sequences and logged steps go with them.
+    private static Node rewrite(Node n, IdentityHashMap<Node, Node> replace) {
+        if (n.logged != null) {
+            Node inner = rewrite(n.logged, replace);
+            return inner == null ? null : new Node(null, null, inner);
+        }
+        if (n.seq != null) {
+            ArrayList<Node> seq = new ArrayList<>(n.seq.size());
+            for (Node item : n.seq) {
+                Node r = rewrite(item, replace);
+                if (r != null) seq.add(r);
+            }
+            return seq.isEmpty() ? null : new Node(null, seq, null);
+        }
+        if (!n.isAnnotation() || mapIdOf(n.text) == null) return n;
+        return replace.get(n);
+    }
+
+    private static String mapIdOf(String command) {
+        int from = MapAnnotator.COMMAND_PREFIX.length(), to = command.indexOf("||", from);
+        return to > from ? command.substring(from, to) : null;
+    }
+
+    // ------------------- Compaction -------------------
+    private String compact(Path in, Path out) throws IOException {
+        String saved;
+        try (ZipFile zip = new ZipFile(in.toFile())) {
+            ZipEntry entry = zip.getEntry(SAVE_ENTRY);
+            if (entry == null) throw new IOException("no " + SAVE_ENTRY + " entry");
+            try (InputStream is = new DeobfuscatingInputStream(zip.getInputStream(entry))) {
+                saved = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        Node root = parse(saved);
+        ArrayList<Node> commands = new ArrayList<>();
+        annotations(root, commands);
+
+        // Replay per map, remembering each map's last command
+        LinkedHashMap<String, MapAnnotator> annotators = new LinkedHashMap<>();
+        HashMap<String, Node> last = new HashMap<>();
+        long before = 0;
+        for (Node n : commands) {
+            String mapId = mapIdOf(n.text);
+            if (mapId == null) continue;
+            MapAnnotator a = annotators.computeIfAbsent(mapId, this::newAnnotator);
+            Command c = a.decode(n.text);
+            if (c != null) c.execute();
+            last.put(mapId, n);
+            before += n.text.length();
+        }
+
+        IdentityHashMap<Node, Node> replace = new IdentityHashMap<>();
+        long after = 0;
+        int kept = 0;
+        for (java.util.Map.Entry<String, MapAnnotator> e : annotators.entrySet()) {
+            MapAnnotator a = e.getValue();
+            a.simplifyPaths(simplify);
+            a.awaitApplied();
+            if (!a.hasAnnotations()) continue;
+
+            Node restore = toNode(a.getRestoreCommand(), a);
+            replace.put(last.get(e.getKey()), restore);
+            ArrayList<Node> written = new ArrayList<>();
+            annotations(restore, written);
+            for (Node n : written) after += n.text.length();
+            kept += written.size();
+        }
+
+        Node compacted = rewrite(root, replace);
+        String result = compacted == null ? "" : encode(compacted);
+        write(in, out, result.getBytes(StandardCharsets.UTF_8));
+
+        return String.format(Locale.US, "%s: %d map(s), %d annotator commands (%.1f KB) -> %d (%.1f KB); %s %.1f KB -> %.1f KB",
+                in.getFileName(), annotators.size(), commands.size(), before / 1024.0, kept, after / 1024.0,
+                SAVE_ENTRY, saved.length() / 1024.0, result.length() / 1024.0);
+    }
+
+    private MapAnnotator newAnnotator(String mapId) {
+        MapAnnotator a = new MapAnnotator();
+        a.setAttribute("compressRestore", compress);
+        a.attachHeadless(new ReplayHarness.HeadlessMap(mapId, 1600, 1200));
+        return a;
+    }
+
+    // A restore command and its chained commands (the compressed chunks), as GameModule.encode() nests them
+    private static Node toNode(Command c, MapAnnotator encoder) {
+        Node head = new Node(encoder.encode(c), null, null);
+        Command[] subs = c.getSubCommands();
+        if (subs.length == 0) return head;
+
+        ArrayList<Node> seq = new ArrayList<>();
+        seq.add(head);
+        for (Command sub : subs) seq.add(toNode(sub, encoder));
+        return new Node(null, seq, null);
+    }
+
+    // Same archive with the saved game replaced, obfuscated like VASSAL writes it
+    private static void write(Path in, Path out, byte[] savedGame) throws IOException {
+        ByteArrayOutputStream obfuscated = new ByteArrayOutputStream();
+        try (OutputStream os = new ObfuscatingOutputStream(obfuscated)) {
+            os.write(savedGame);
+        }
+
+        try (ZipFile zip = new ZipFile(in.toFile());
+             ZipOutputStream zout = new ZipOutputStream(Files.newOutputStream(out))) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry e = entries.nextElement();
+                zout.putNextEntry(new ZipEntry(e.getName()));
+                if (e.getName().equals(SAVE_ENTRY)) obfuscated.writeTo(zout);
+                else try (InputStream is = zip.getInputStream(e)) { is.transferTo(zout); }
+                zout.closeEntry();
+            }
+        }
+    }
+
+    private static Path outputFor(Path in, String outDir) {
+        String name = in.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String compacted = dot > 0 ? name.substring(0, dot) + "-compact" + name.substring(dot) : name + "-compact";
+        return outDir != null ? Paths.get(outDir, compacted) : in.resolveSibling(compacted);
+    }
+
+    // ------------------- Command line -------------------
+    public static void main(String[] args) throws Exception {
+        AnnotationCompactor compactor = new AnnotationCompactor(
+                Double.parseDouble(AnnotationLogGenerator.arg(args, "simplify", "0")),
+                Boolean.parseBoolean(AnnotationLogGenerator.arg(args, "compress", "false")));
+        int threads = Integer.parseInt(AnnotationLogGenerator.arg(args, "threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        String outDir = AnnotationLogGenerator.arg(args, "out", null);
+        if (outDir != null) Files.createDirectories(Paths.get(outDir));
+
+        // Archives are independent: each one gets its own annotators
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList<Path> files = new ArrayList<>();
+        ArrayList<Future<String>> reports = new ArrayList<>();
+        for (String a : args) {
+            if (a.contains("=")) continue;
+            Path in = Paths.get(a);
+            files.add(in);
+            reports.add(pool.submit(() -> compactor.compact(in, outputFor(in, outDir))));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < reports.size(); i++) {
+            try {
+                System.out.println(reports.get(i).get());
+            } catch (java.util.concurrent.ExecutionException e) {
+                System.out.println(files.get(i).getFileName() + ": FAILED, " + e.getCause());
+                failed++;
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,214 @@
+package drawing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Writes synthetic {@link MapAnnotator} command streams, one encoded "ANNOTATE;..." command per line,
+ * shaped like a long play session: freehand strokes, stamped shapes, texts (added, edited, removed), gum sweeps
+ * over existing drawings, the occasional batch of items placed at once and the occasional clear.
+ *
+ * Usage: java drawing.AnnotationLogGenerator [commands=20000] [seed=1] [map=Map0] [width=4000] [height=3000]
+ *        [clears=1] [out=file]   (stdout without out=)
+ */
+final class AnnotationLogGenerator {
+
+    int commands = 20_000;
+    long seed = 1;
+    String mapId = "Map0";
+    int width = 4000, height = 3000;
+    int clears = 1; // CLEAR_ALL commands, spread evenly over the stream
+
+    // Command mix (percent of non-clear commands)
+    int freehandPct = 55, shapePct = 15, textPct = 12, batchPct = 3; // the rest are gum sweeps
+
+    private static final int[] PALETTE = {
+            0xFFFF0000, 0xFF0000FF, 0xFF000000, 0xFF00A000, 0xFFFF8C00, 0xFF800080
+    };
+    private static final String[] WORDS = {
+            "attack", "hold", "retreat", "supply", "HQ", "objective", "turn 3", "reinforcements",
+            "watch this flank", "bridge out", "minefield", "rally point", "?", "!!"
+    };
+
+    private Random rnd;
+    private final ArrayList<int[]> anchors = new ArrayList<>(); // recent drawing positions, gum aims there
+    private final ArrayList<String> textIds = new ArrayList<>();
+
+    void write(Appendable out) throws IOException {
+        rnd = new Random(seed);
+        anchors.clear();
+        textIds.clear();
+
+        // clears commands evenly spaced, never the last one: the session ends with drawings on the map
+        final int clearEvery = clears > 0 ? Math.max(1, commands / (clears + 1)) : Integer.MAX_VALUE;
+        for (int i = 1; i <= commands; i++) {
+            String payload;
+            if (i % clearEvery == 0 && i / clearEvery <= clears && i < commands) {
+                payload = "CLEAR_ALL||";
+                anchors.clear();
+                textIds.clear();
+            }
+            else {
+                int roll = rnd.nextInt(100);
+                if (roll < freehandPct) payload = freehand();
+                else if (roll < freehandPct + shapePct) payload = shape();
+                else if (roll < freehandPct + shapePct + textPct) payload = text();
+                else if (roll < freehandPct + shapePct + textPct + batchPct) payload = batch();
+                else payload = gum();
+            }
+            out.append("ANNOTATE;").append(mapId).append("||").append(payload).append('\n');
+        }
+    }
+
+    // ------------------- Command kinds -------------------
+    private String freehand() {
+        int n = 20 + (int) Math.min(380, Math.abs(rnd.nextGaussian()) * 120);
+        double x = rnd.nextInt(width), y = rnd.nextInt(height);
+        double dir = rnd.nextDouble() * 2 * Math.PI, turn = (rnd.nextDouble() - 0.5) * 0.2;
+
+        StringBuilder d = new StringBuilder();
+        d.append("M ").append(clampX(x)).append(' ').append(clampY(y));
+        for (int k = 1; k < n; k++) {
+            // Smooth wandering line, 2..6 map units between samples (what addIfFar keeps of a real drag)
+            turn += (rnd.nextDouble() - 0.5) * 0.08;
+            turn = Math.max(-0.25, Math.min(0.25, turn));
+            dir += turn;
+            double step = 2 + rnd.nextDouble() * 4;
+            x += Math.cos(dir) * step;
+            y += Math.sin(dir) * step;
+            d.append(" L ").append(clampX(x)).append(' ').append(clampY(y));
+        }
+        anchors.add(new int[] { clampX(x), clampY(y) });
+        return addPath(d.toString());
+    }
+
+    // Stamped as MapAnnotator does it: ADD_INSTANCE of a built-in symbol, only the transform varies
+    private String shape() {
+        int x = rnd.nextInt(width), y = rnd.nextInt(height);
+        int w = 20 + rnd.nextInt(300), h = 20 + rnd.nextInt(300);
+        int x2 = clampX(x + w), y2 = clampY(y + h);
+        anchors.add(new int[] { x, y });
+
+        int kind = rnd.nextInt(3);
+        if (kind == 0) return addInstance("rect", x2 - x, 0, 0, y2 - y, x, y);
+        if (kind == 1) return addInstance("ellipse", (x2 - x) / 2.0, 0, 0, (y2 - y) / 2.0, (x + x2) / 2.0, (y + y2) / 2.0);
+
+        // Arrow: one symbol per length, rotated about its start
+        double ang = Math.atan2(y2 - y, x2 - x), c = Math.cos(ang), s = Math.sin(ang);
+        return addInstance("arrow:" + Math.round(Math.hypot(x2 - x, y2 - y)), c, s, -s, c, x, y);
+    }
+
+    private String text() {
+        int roll = rnd.nextInt(10);
+        if (!textIds.isEmpty() && roll == 0) {
+            return "REMOVE_TEXT||" + textIds.remove(rnd.nextInt(textIds.size()));
+        }
+
+        String id;
+        if (!textIds.isEmpty() && roll < 3) id = textIds.get(rnd.nextInt(textIds.size())); // edit
+        else {
+            id = uuid();
+            textIds.add(id);
+        }
+        int x = rnd.nextInt(width), y = rnd.nextInt(height);
+        anchors.add(new int[] { x, y });
+        String words = WORDS[rnd.nextInt(WORDS.length)];
+        return "ADD_TEXT||" + id + ";" + x + ";" + y + ";" + color() + ";SansSerif;" + (12 + rnd.nextInt(4) * 4) + ";"
+                + Base64.getEncoder().encodeToString(words.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String gum() {
+        // Sweeps start near something recently drawn, like a player correcting a drawing
+        double x, y;
+        if (anchors.isEmpty()) { x = rnd.nextInt(width); y = rnd.nextInt(height); }
+        else {
+            int[] a = anchors.get(Math.max(0, anchors.size() - 1 - rnd.nextInt(Math.min(50, anchors.size()))));
+            x = a[0] + rnd.nextGaussian() * 20;
+            y = a[1] + rnd.nextGaussian() * 20;
+        }
+        int radius = 6 + rnd.nextInt(20);
+        int n = 10 + rnd.nextInt(140);
+        double dir = rnd.nextDouble() * 2 * Math.PI;
+
+        StringBuilder d = new StringBuilder();
+        d.append(radius).append(';');
+        for (int k = 0; k < n; k++) {
+            // Back and forth scrubbing
+            dir += (rnd.nextDouble() - 0.5) * 0.6 + (k % 15 == 14 ? Math.PI : 0);
+            x += Math.cos(dir) * (3 + rnd.nextDouble() * 3);
+            y += Math.sin(dir) * (3 + rnd.nextDouble() * 3);
+            d.append(clampX(x)).append(',').append(clampY(y)).append(';');
+        }
+        return "ERASE_SEG||" + d;
+    }
+
+    // Several shapes and labels placed at once (pasted, stamped or imported): one BATCH of "ACTION;data" items
+    private String batch() {
+        int n = 2 + rnd.nextInt(7);
+        StringBuilder d = new StringBuilder("BATCH||");
+        for (int k = 0; k < n; k++) {
+            String item = rnd.nextInt(4) == 0 ? text() : shape();
+            if (k > 0) d.append("@@");
+            d.append(item.replaceFirst("\\|\\|", ";"));
+        }
+        return d.toString();
+    }
+
+    // ------------------- Helpers -------------------
+    private String addPath(String svg) {
+        return "ADD_PATH||" + uuid() + ";" + color() + ";" + (2 + rnd.nextInt(5)) + ".0;" + svg;
+    }
+
+    private String addInstance(String symbol, double m00, double m10, double m01, double m11, double m02, double m12) {
+        return "ADD_INSTANCE||" + uuid() + ";" + color() + ";" + (2 + rnd.nextInt(5)) + ".0;" + symbol + ";"
+                + fmt(m00) + ";" + fmt(m10) + ";" + fmt(m01) + ";" + fmt(m11) + ";" + fmt(m02) + ";" + fmt(m12);
+    }
+
+    private int color() { return PALETTE[rnd.nextInt(PALETTE.length)]; }
+
+    private String uuid() { return new UUID(rnd.nextLong(), rnd.nextLong()).toString(); }
+
+    private int clampX(double x) { return (int) Math.round(Math.max(0, Math.min(width, x))); }
+
+    private int clampY(double y) { return (int) Math.round(Math.max(0, Math.min(height, y))); }
+
+    // Same number format as the client's transforms
+    private static String fmt(double v) { return MapAnnotator.SvgPath.fmt(v); }
+
+    // ------------------- Command line -------------------
+    // Shared key=value parsing for the replay tools
+    static String arg(String[] args, String key, String def) {
+        for (String a : args) if (a.startsWith(key + "=")) return a.substring(key.length() + 1);
+        return def;
+    }
+
+    static AnnotationLogGenerator fromArgs(String[] args) {
+        AnnotationLogGenerator g = new AnnotationLogGenerator();
+        g.commands = Integer.parseInt(arg(args, "commands", String.valueOf(g.commands)));
+        g.seed = Long.parseLong(arg(args, "seed", String.valueOf(g.seed)));
+        g.mapId = arg(args, "map", g.mapId);
+        g.width = Integer.parseInt(arg(args, "width", String.valueOf(g.width)));
+        g.height = Integer.parseInt(arg(args, "height", String.valueOf(g.height)));
+        g.clears = Integer.parseInt(arg(args, "clears", String.valueOf(g.clears)));
+        return g;
+    }
+
+    public static void main(String[] args) throws IOException {
+        AnnotationLogGenerator g = fromArgs(args);
+        String out = arg(args, "out", null);
+        try (Writer w = out == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8)) {
+            g.write(w);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package drawing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binary annotation snapshot files (.vdas) for {@link MapAnnotator}, loaded without the text SET_STATE format.
+ * The file is memory-mapped and items are decoded on demand; writes go to a temporary file moved into place.
+ * All numbers are big-endian.
+ *
+ * <pre>
+ * header   int magic "VDAS", int version, int path count, int text count
+ * STRINGS  UTF-8 bytes, referenced as (offset, length)
+ * PSTYLES  path styles:  int rgb, double width                           (12 bytes each)
+ * TSTYLES  text styles:  int rgb, int font name offset, int length, double size  (20 bytes each)
+ * OPS      one byte per segment: 'M' (2 coordinates), 'L' (2) or 'C' (6)
+ * COORDS   packed doubles, in segment order
+ * PATHS    int id offset, int id length, int style, int first op, int op count, int first coordinate  (24 bytes each)
+ * TEXTS    int id offset, int id length, double x, double y, int style, int text offset, int text length  (36 bytes each)
+ * index    int section count, then per section: int tag, long offset, long length
+ * trailer  long index offset, int version, int magic
+ * </pre>
+ * Sections start on 8-byte boundaries. Readers skip section tags they do not know, so later versions can add some.
+ * Version 1 stored text positions and sizes as ints (TSTYLES 16 bytes, TEXTS 28 bytes each); it is still read.
+ */
+final class AnnotationSnapshot {
+
+    static final String EXTENSION = "vdas";
+
+    private static final int MAGIC = 0x56444153; // "VDAS"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 16, TRAILER_BYTES = 16;
+
+    private static final int STRINGS = 1, PSTYLES = 2, TSTYLES = 3, OPS = 4, COORDS = 5, PATHS = 6, TEXTS = 7;
+    private static final int PSTYLE_BYTES = 12, TSTYLE_BYTES = 20, PATH_BYTES = 24, TEXT_BYTES = 36;
+    private static final int V1_TSTYLE_BYTES = 16, V1_TEXT_BYTES = 28;
+
+    private final ByteBuffer strings, pathStyles, textStyles, ops, coords, pathTable, textTable;
+    private final int version, pathCount, textCount;
+
+    private AnnotationSnapshot(ByteBuffer[] sections, int version, int pathCount, int textCount) {
+        this.version = version;
+        this.strings = sections[STRINGS];
+        this.pathStyles = sections[PSTYLES];
+        this.textStyles = sections[TSTYLES];
+        this.ops = sections[OPS];
+        this.coords = sections[COORDS];
+        this.pathTable = sections[PATHS];
+        this.textTable = sections[TEXTS];
+        this.pathCount = pathCount;
+        this.textCount = textCount;
+    }
+
+    // ------------------- Reading -------------------
+
+    /** Maps the file and checks its header, index and table sizes; items are decoded later, one by one. */
+    static AnnotationSnapshot open(File f) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) throw new IOException("Snapshot larger than 2 GB");
+            // The mapping stays valid after the channel is closed
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+
+        final long size = buf.capacity();
+        if (size < HEADER_BYTES + TRAILER_BYTES || buf.getInt(0) != MAGIC) throw new IOException("Not an annotation snapshot");
+        final int version = buf.getInt(4);
+        if (version > VERSION) throw new IOException("Snapshot was written by a newer version (format " + version + ")");
+        if (buf.getInt((int) size - 4) != MAGIC) throw new IOException("Snapshot is truncated");
+
+        final int pathCount = buf.getInt(8), textCount = buf.getInt(12);
+        final long indexAt = buf.getLong((int) size - TRAILER_BYTES);
+        if (indexAt < HEADER_BYTES || indexAt > size - TRAILER_BYTES - 4) throw new IOException("Snapshot index is damaged");
+
+        ByteBuffer[] sections = new ByteBuffer[TEXTS + 1];
+        int count = buf.getInt((int) indexAt);
+        if (count < 0 || indexAt + 4 + 20L * count > size - TRAILER_BYTES) throw new IOException("Snapshot index is damaged");
+        for (int i = 0; i < count; i++) {
+            int at = (int) indexAt + 4 + 20 * i;
+            int tag = buf.getInt(at);
+            long off = buf.getLong(at + 4), len = buf.getLong(at + 12);
+            if (off < HEADER_BYTES || len < 0 || off + len > indexAt) throw new IOException("Snapshot section " + tag + " is damaged");
+            if (tag < STRINGS || tag > TEXTS) continue;
+
+            ByteBuffer s = buf.duplicate();
+            s.position((int) off).limit((int) (off + len));
+            sections[tag] = s.slice();
+        }
+
+        for (int tag = STRINGS; tag <= TEXTS; tag++) {
+            if (sections[tag] == null) throw new IOException("Snapshot section " + tag + " is missing");
+        }
+        if (pathCount < 0 || textCount < 0
+                || sections[PATHS].capacity() != (long) pathCount * PATH_BYTES
+                || sections[TEXTS].capacity() != (long) textCount * (version < 2 ? V1_TEXT_BYTES : TEXT_BYTES)) {
+            throw new IOException("Snapshot tables do not match its header");
+        }
+        return new AnnotationSnapshot(sections, version, pathCount, textCount);
+    }
+
+    int pathCount() { return pathCount; }
+
+    int textCount() { return textCount; }
+
+    /** Path i, in drawing order, built from the segments as stored (no path data is formatted or parsed). */
+    MapAnnotator.SvgPath path(int i) throws IOException {
+        try {
+            int at = i * PATH_BYTES;
+            String id = string(pathTable.getInt(at), pathTable.getInt(at + 4));
+            int style = pathTable.getInt(at + 8) * PSTYLE_BYTES;
+            int op = pathTable.getInt(at + 12), count = pathTable.getInt(at + 16);
+            int c = pathTable.getInt(at + 20);
+            // Every segment has its op byte and at least 2 coordinates: damaged counts fail here, before any allocation
+            if (op < 0 || count < 0 || count > ops.capacity() - op || c < 0 || 2L * count > coords.capacity() / 8 - c) {
+                throw new IOException("Snapshot path " + i + " is damaged");
+            }
+            int opEnd = op + count;
+
+            MapAnnotator.SvgPath sp = new MapAnnotator.SvgPath(id, pathStyles.getInt(style), pathStyles.getDouble(style + 4));
+            MapAnnotator.SvgPath.Subpath sub = null;
+            for (; op < opEnd; op++) {
+                byte cmd = ops.get(op);
+                if (cmd == 'M') {
+                    sub = new MapAnnotator.SvgPath.Subpath(coord(c), coord(c + 1));
+                    sp.subs().add(sub);
+                    c += 2;
+                }
+                else if (sub == null) throw new IOException("Snapshot path " + i + " does not start with 'M'");
+                else if (cmd == 'L') {
+                    sub.segs.add(new MapAnnotator.SvgPath.LineTo(coord(c), coord(c + 1)));
+                    c += 2;
+                }
+                else if (cmd == 'C') {
+                    sub.segs.add(new MapAnnotator.SvgPath.CubicTo(coord(c), coord(c + 1), coord(c + 2), coord(c + 3), coord(c + 4), coord(c + 5)));
+                    c += 6;
+                }
+                else throw new IOException("Unknown segment '" + (char) cmd + "'");
+            }
+            return sp;
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot path " + i + " is damaged", e);
+        }
+    }
+
+    MapAnnotator.TextItem text(int i) throws IOException {
+        try {
+            if (version < 2) {
+                int at = i * V1_TEXT_BYTES;
+                int style = textTable.getInt(at + 16) * V1_TSTYLE_BYTES;
+                return new MapAnnotator.TextItem(
+                        string(textTable.getInt(at), textTable.getInt(at + 4)),
+                        textTable.getInt(at + 8), textTable.getInt(at + 12),
+                        textStyles.getInt(style), string(textStyles.getInt(style + 4), textStyles.getInt(style + 8)),
+                        textStyles.getInt(style + 12),
+                        string(textTable.getInt(at + 20), textTable.getInt(at + 24)));
+            }
+            int at = i * TEXT_BYTES;
+            int style = textTable.getInt(at + 24) * TSTYLE_BYTES;
+            return new MapAnnotator.TextItem(
+                    string(textTable.getInt(at), textTable.getInt(at + 4)),
+                    textTable.getDouble(at + 8), textTable.getDouble(at + 16),
+                    textStyles.getInt(style), string(textStyles.getInt(style + 4), textStyles.getInt(style + 8)),
+                    textStyles.getDouble(style + 12),
+                    string(textTable.getInt(at + 28), textTable.getInt(at + 32)));
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot text " + i + " is damaged", e);
+        }
+    }
+
+    private double coord(int i) {
+        return coords.getDouble(i * 8);
+    }
+
+    private String string(int off, int len) {
+        if (len < 0 || off < 0 || off > strings.capacity() - len) throw new IndexOutOfBoundsException();
+        byte[] b = new byte[len];
+        ByteBuffer s = strings.duplicate();
+        s.position(off);
+        s.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // ------------------- Writing -------------------
+
+    /** Encodes the given annotations into the complete file image; they must not change meanwhile. */
+    static ByteBuffer encode(List<MapAnnotator.SvgPath> paths, List<MapAnnotator.TextItem> texts) throws IOException {
+        Encoder e = new Encoder();
+        int pathCount = 0;
+        for (MapAnnotator.SvgPath sp : paths) if (e.addPath(sp)) pathCount++;
+        for (MapAnnotator.TextItem t : texts) e.addText(t);
+        return e.finish(pathCount, texts.size());
+    }
+
+    /** Writes the image to a temporary file in the same directory, then moves it over f. */
+    static void write(File f, ByteBuffer image) throws IOException {
+        Path target = f.toPath().toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer b = image.duplicate();
+                while (b.hasRemaining()) ch.write(b);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static final class Encoder {
+        final Section[] sections = new Section[TEXTS + 1];
+        final HashMap<String, int[]> stringRefs = new HashMap<>();
+        final HashMap<String, Integer> pathStyleIds = new HashMap<>(), textStyleIds = new HashMap<>();
+        int opCount = 0, coordCount = 0;
+
+        Encoder() {
+            for (int tag = STRINGS; tag <= TEXTS; tag++) sections[tag] = new Section();
+        }
+
+        boolean addPath(MapAnnotator.SvgPath sp) throws IOException {
+            int firstOp = opCount, firstCoord = coordCount;
+            DataOutputStream o = sections[OPS].out, c = sections[COORDS].out;
+            for (MapAnnotator.SvgPath.Subpath sub : sp.subs()) {
+                op(o, 'M'); coord(c, sub.startX); coord(c, sub.startY);
+                for (MapAnnotator.SvgPath.Seg s : sub.segs) {
+                    if (s instanceof MapAnnotator.SvgPath.LineTo) {
+                        MapAnnotator.SvgPath.LineTo l = (MapAnnotator.SvgPath.LineTo) s;
+                        op(o, 'L'); coord(c, l.x); coord(c, l.y);
+                    }
+                    else {
+                        MapAnnotator.SvgPath.CubicTo q = (MapAnnotator.SvgPath.CubicTo) s;
+                        op(o, 'C');
+                        coord(c, q.x1); coord(c, q.y1); coord(c, q.x2); coord(c, q.y2); coord(c, q.x); coord(c, q.y);
+                    }
+                }
+            }
+            if (opCount == firstOp) return false; // nothing to draw, like an empty path in SET_STATE
+
+            String styleKey = sp.rgb + ";" + sp.w;
+            Integer style = pathStyleIds.get(styleKey);
+            if (style == null) {
+                style = pathStyleIds.size();
+                pathStyleIds.put(styleKey, style);
+                sections[PSTYLES].out.writeInt(sp.rgb);
+                sections[PSTYLES].out.writeDouble(sp.w);
+            }
+
+            DataOutputStream p = sections[PATHS].out;
+            writeString(p, sp.id);
+            p.writeInt(style);
+            p.writeInt(firstOp);
+            p.writeInt(opCount - firstOp);
+            p.writeInt(firstCoord);
+            return true;
+        }
+
+        void addText(MapAnnotator.TextItem t) throws IOException {
+            String styleKey = t.rgb + ";" + t.exactSize + ";" + t.fontName;
+            Integer style = textStyleIds.get(styleKey);
+            if (style == null) {
+                style = textStyleIds.size();
+                textStyleIds.put(styleKey, style);
+                DataOutputStream s = sections[TSTYLES].out;
+                s.writeInt(t.rgb);
+                writeString(s, t.fontName);
+                s.writeDouble(t.exactSize);
+            }
+
+            DataOutputStream o = sections[TEXTS].out;
+            writeString(o, t.id);
+            o.writeDouble(t.exactX);
+            o.writeDouble(t.exactY);
+            o.writeInt(style);
+            writeString(o, t.text);
+        }
+
+        private void op(DataOutputStream o, char cmd) throws IOException {
+            o.writeByte(cmd);
+            opCount++;
+        }
+
+        private void coord(DataOutputStream c, double v) throws IOException {
+            c.writeDouble(v);
+            coordCount++;
+        }
+
+        // Equal strings (font names, re-used ids) are stored once
+        private void writeString(DataOutputStream o, String s) throws IOException {
+            int[] ref = stringRefs.get(s);
+            if (ref == null) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                ref = new int[] { sections[STRINGS].bytes.size(), b.length };
+                sections[STRINGS].out.write(b);
+                stringRefs.put(s, ref);
+            }
+            o.writeInt(ref[0]);
+            o.writeInt(ref[1]);
+        }
+
+        ByteBuffer finish(int pathCount, int textCount) {
+            long total = HEADER_BYTES;
+            for (int tag = STRINGS; tag <= TEXTS; tag++) total = align(total) + sections[tag].bytes.size();
+            long indexAt = align(total);
+            total = indexAt + 4 + 20L * TEXTS + TRAILER_BYTES;
+            if (total > Integer.MAX_VALUE) throw new IllegalStateException("Snapshot larger than 2 GB");
+
+            ByteBuffer b = ByteBuffer.allocate((int) total);
+            b.putInt(MAGIC).putInt(VERSION).putInt(pathCount).putInt(textCount);
+
+            long[] offsets = new long[TEXTS + 1];
+            for (int tag = STRINGS; tag <= TEXTS; tag++) {
+                b.position((int) align(b.position()));
+                offsets[tag] = b.position();
+                b.put(sections[tag].bytes.toByteArray());
+            }
+
+            b.position((int) indexAt);
+            b.putInt(TEXTS);
+            for (int tag = STRINGS; tag <= TEXTS; tag++) {
+                b.putInt(tag).putLong(offsets[tag]).putLong(sections[tag].bytes.size());
+            }
+            b.putLong(indexAt).putInt(VERSION).putInt(MAGIC);
+            b.flip();
+            return b;
+        }
+
+        private static long align(long pos) { return (pos + 7) & ~7L; }
+    }
+
+    private static final class Section {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+    }
+}
@@ -0,0 +1,188 @@
+package drawing;
+
+import java.awt.Graphics2D;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import javax.swing.SwingUtilities;
+
+import VASSAL.command.Command;
+
+/**
+ * Headless gum benchmark: on a synthetic session (see {@link AnnotationLogGenerator}) drags the same eraser stroke
+ * through a {@link MapAnnotator}'s mouse handlers for each preview (clip, or mask for gumMaskPreview) and each erase
+ * sent (ERASE_SEG or ERASE_RESULT), one frame tick and paint per step, after an unreported warm-up round.
+ *
+ * Reports the EDT's allocation per drag step and per paint, latency of drag steps, frames and release until
+ * published, and whether each mode ends with the drawings of one ERASE_SEG of the stroke.
+ *
+ * Usage: java -Djava.awt.headless=true drawing.GumBenchmark [generator options, see AnnotationLogGenerator]
+ *        [modes=clip/seg,clip/res,mask/seg,mask/res] [steps=120] [radius=20] [view=1600x1200]
+ */
+final class GumBenchmark {
+
+    // Preview (incremental clipping or mask) / erase sent (ERASE_SEG or ERASE_RESULT)
+    private static final String MODES = "clip/seg,clip/res,mask/seg,mask/res";
+    private static final long PUBLISH_TIMEOUT_NANOS = 30_000_000_000L;
+
+    private final List<String> lines;
+    private final String[] modes;
+    private final int steps, radius;
+    private final BufferedImage canvas;
+
+    private final TreeMap<String, ReplayHarness.Samples> samples = new TreeMap<>();
+    private final com.sun.management.ThreadMXBean threads;
+
+    private GumBenchmark(List<String> lines, String[] modes, int steps, int radius, int viewW, int viewH) {
+        this.lines = lines;
+        this.modes = modes;
+        this.steps = steps;
+        this.radius = radius;
+        this.canvas = new BufferedImage(viewW, viewH, BufferedImage.TYPE_INT_ARGB);
+        java.lang.management.ThreadMXBean tm = ManagementFactory.getThreadMXBean();
+        this.threads = tm instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) tm).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) tm : null;
+    }
+
+    // ------------------- One drag -------------------
+    // Allocated bytes per drag step and per paint (-1 without ThreadMXBean support), and the drawings afterwards
+    private static final class Result {
+        double stepBytes = -1, paintBytes = -1;
+        String drawings;
+    }
+
+    private Result drag(String mode, boolean report) throws Exception {
+        ReplayHarness.HeadlessMap map = new ReplayHarness.HeadlessMap("Map0", canvas.getWidth(), canvas.getHeight());
+        MapAnnotator a = new MapAnnotator();
+        a.setAttribute("gumMaskPreview", mode.startsWith("mask"));
+        a.setAttribute("eraseSendsResult", mode.endsWith("res"));
+        a.setAttribute("eraserRadius", radius);
+        a.attachHeadless(map);
+        for (String line : lines) {
+            Command c = a.decode(line);
+            if (c != null) c.execute();
+        }
+        a.awaitApplied();
+
+        final Result r = new Result();
+        final long[] stepAlloc = new long[1], paintAlloc = new long[1];
+        final int[] frames = new int[1];
+        SwingUtilities.invokeAndWait(() -> {
+            a.replayMode("GUM", "ARROW", null);
+            paint(a, map); // the committed drawings' first paint builds their batches
+
+            int w = canvas.getWidth(), h = canvas.getHeight();
+            for (int i = 0; i <= steps; i++) {
+                // A sweep across the view, waving up and down
+                double f = (double) i / Math.max(1, steps);
+                int x = (int) (w * (0.1 + 0.8 * f)), y = (int) (h * (0.5 + 0.3 * Math.sin(f * 4 * Math.PI)));
+                long a0 = allocated(), t0 = System.nanoTime();
+                if (i == 0) a.mousePressed(event(map, MouseEvent.MOUSE_PRESSED, x, y));
+                else a.mouseDragged(event(map, MouseEvent.MOUSE_DRAGGED, x, y));
+                long t1 = System.nanoTime();
+                a.replayFrame();
+                long a1 = allocated(), t2 = System.nanoTime();
+                paint(a, map);
+                long a2 = allocated(), t3 = System.nanoTime();
+
+                stepAlloc[0] += a1 - a0;
+                paintAlloc[0] += a2 - a1;
+                frames[0]++;
+                if (report) {
+                    sample(mode + " drag", t1 - t0);
+                    sample(mode + " frame", t3 - t1);
+                }
+            }
+            int left = 10_000;
+            while (left-- > 0 && a.replayFrame()) paint(a, map);
+        });
+        if (threads != null) {
+            r.stepBytes = stepAlloc[0] / (double) (steps + 1);
+            r.paintBytes = paintAlloc[0] / (double) frames[0];
+        }
+
+        // The erase is published by the apply thread (ERASE_SEG) or after a worker (mask and ERASE_RESULT)
+        String before = drawings(a);
+        long t0 = System.nanoTime();
+        SwingUtilities.invokeAndWait(() -> a.mouseReleased(event(map, MouseEvent.MOUSE_RELEASED, 0, 0)));
+        do {
+            SwingUtilities.invokeAndWait(() -> {});
+            r.drawings = drawings(a);
+        } while (r.drawings.equals(before) && System.nanoTime() - t0 < PUBLISH_TIMEOUT_NANOS);
+        if (report) sample(mode + " published", System.nanoTime() - t0);
+        return r;
+    }
+
+    private static MouseEvent event(ReplayHarness.HeadlessMap map, int id, int x, int y) {
+        int mods = id == MouseEvent.MOUSE_RELEASED ? 0 : InputEvent.BUTTON1_DOWN_MASK;
+        return new MouseEvent(map.getView(), id, System.currentTimeMillis(), mods, x, y, 1, false, MouseEvent.BUTTON1);
+    }
+
+    private static String drawings(MapAnnotator a) {
+        a.awaitApplied();
+        return a.encode(a.getRestoreCommand());
+    }
+
+    private void paint(MapAnnotator a, ReplayHarness.HeadlessMap map) {
+        Graphics2D g = canvas.createGraphics();
+        g.setClip(0, 0, canvas.getWidth(), canvas.getHeight());
+        a.draw(g, map);
+        g.dispose();
+    }
+
+    private long allocated() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void sample(String kind, long nanos) {
+        samples.computeIfAbsent(kind, k -> new ReplayHarness.Samples()).add(nanos);
+    }
+
+    // ------------------- Report -------------------
+    private void run() throws Exception {
+        for (String mode : modes) drag(mode, false);
+
+        ArrayList<Result> results = new ArrayList<>();
+        System.out.printf(Locale.US, "%d commands, %d drag steps, eraser radius %d%n%n", lines.size(), steps, radius);
+        for (String mode : modes) {
+            Result r = drag(mode, true);
+            results.add(r);
+            if (r.stepBytes < 0) System.out.printf(Locale.US, "%-9s allocation not measured (no ThreadMXBean support)%n", mode);
+            else System.out.printf(Locale.US, "%-9s %8.1f KB per drag step, %8.1f KB per paint%n", mode, r.stepBytes / 1024, r.paintBytes / 1024);
+        }
+
+        // The reference is the first mode, clip/seg by default: one erase of the whole stroke, as every client
+        // makes it from ERASE_SEG
+        HashSet<String> reference = new HashSet<>(Arrays.asList(results.get(0).drawings.split("@@")));
+        System.out.println();
+        for (int i = 1; i < modes.length; i++) {
+            int differ = 0;
+            for (String item : results.get(i).drawings.split("@@")) if (!reference.contains(item)) differ++;
+            System.out.printf(Locale.US, "%-9s final drawings %s%n", modes[i],
+                    differ == 0 ? "identical to " + modes[0] : "differ from " + modes[0] + " in " + differ + " item(s)");
+        }
+        System.out.println();
+        ReplayHarness.printLatencies(samples);
+    }
+
+    // ------------------- Command line -------------------
+    public static void main(String[] args) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        AnnotationLogGenerator.fromArgs(args).write(sb);
+        String[] view = AnnotationLogGenerator.arg(args, "view", "1600x1200").split("x");
+
+        new GumBenchmark(Arrays.asList(sb.toString().split("\n")),
+                AnnotationLogGenerator.arg(args, "modes", MODES).split(","),
+                Integer.parseInt(AnnotationLogGenerator.arg(args, "steps", "120")),
+                Integer.parseInt(AnnotationLogGenerator.arg(args, "radius", "20")),
+                Integer.parseInt(view[0]), Integer.parseInt(view[1])).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,110 @@
+package drawing;
+
+import java.awt.Point;
+import java.awt.event.MouseEvent;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Input session recordings (.vdrec) of one {@link MapAnnotator}, replayed by {@link InputReplayer}. UTF-8 text,
+ * one tab-separated record per line; an encoded command is always the last field of its line.
+ * <pre>
+ * # MapAnnotator input recording 1
+ * MAP      map id
+ * ATTR     name, value          (editor attributes, hotkeys left out)
+ * STATE    restore command      (uncompressed SET_STATE)
+ * then events, each starting with the time in microseconds:
+ * PRESS / DRAG / MOVE / RELEASE   x, y (map coordinates), modifiers (getModifiersEx), button, click count
+ * MODE     mode, shape type     (after a toolbar or shape menu change)
+ * SHAPE    path data            (the imported custom shape, before the MODE that uses it)
+ * RECEIVED encoded command      (decoded by the annotator: other players, loads, log steps)
+ * LOCAL    encoded command      (sent without a map mouse event: text dialogs, Clear, snapshot imports, merges)
+ * ID       item id              (of a stroke or shape the event before created; a replay reuses it)
+ * END      restore command      (the state once everything recorded was applied; uncompressed SET_STATE)
+ * </pre>
+ */
+final class InputRecording {
+
+    static final String EXTENSION = "vdrec";
+    static final String HEADER = "# MapAnnotator input recording 1";
+
+    private final Writer out;
+    private final long start = System.nanoTime();
+    private MapAnnotator.SvgPath lastShape = null;
+    private IOException failure = null;
+
+    private InputRecording(Writer out) {
+        this.out = out;
+    }
+
+    // ------------------- Writing -------------------
+
+    /** Starts a recording: the header, the annotator's settings and the state events start from. */
+    static InputRecording create(File f, String mapId, String[] attributeNames, String[] attributeValues,
+                                 String restore) throws IOException {
+        BufferedWriter w = Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8);
+        try {
+            w.write(HEADER);
+            w.write("\nMAP\t" + mapId + "\n");
+            for (int i = 0; i < attributeNames.length; i++) {
+                if (attributeValues[i] != null) w.write("ATTR\t" + attributeNames[i] + "\t" + attributeValues[i] + "\n");
+            }
+            w.write("STATE\t" + restore + "\n");
+        }
+        catch (IOException e) {
+            w.close();
+            throw e;
+        }
+        return new InputRecording(w);
+    }
+
+    void mouse(String kind, Point map, MouseEvent e) {
+        record(kind + "\t" + map.x + "\t" + map.y + "\t" + e.getModifiersEx() + "\t" + e.getButton() + "\t" + e.getClickCount());
+    }
+
+    // The custom shape's geometry goes along the first time it is used, and again whenever another one is imported
+    void mode(String mode, String shape, MapAnnotator.SvgPath custom) {
+        if (custom != null && custom != lastShape) {
+            lastShape = custom;
+            record("SHAPE\t" + custom.toSvgData());
+        }
+        record("MODE\t" + mode + "\t" + shape);
+    }
+
+    void received(String command) { record("RECEIVED\t" + command); }
+
+    void local(String command) { record("LOCAL\t" + command); }
+
+    void id(String id) { record("ID\t" + id); }
+
+    void end(String restore) { record("END\t" + restore); }
+
+    // Commands may be decoded on other threads than the EDT. After a write error the rest is dropped and
+    // close() reports it.
+    private synchronized void record(String event) {
+        if (failure != null) return;
+        try {
+            out.write(String.valueOf((System.nanoTime() - start) / 1000));
+            out.write('\t');
+            out.write(event);
+            out.write('\n');
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+        if (failure != null) throw failure;
+    }
+}
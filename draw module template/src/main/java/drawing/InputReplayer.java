@@ -0,0 +1,246 @@
+package drawing;
+
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import javax.swing.SwingUtilities;
+
+import VASSAL.command.Command;
+
+/**
+ * Headless replay of an {@link InputRecording} (.vdrec): drives a {@link MapAnnotator} on a stand-in map through
+ * the recorded events, at the recorded pace or at max speed, ticking and painting once per 60 Hz frame. Each
+ * event's commands are applied before the next, and strokes reuse their recorded ids, so every replay meets the
+ * same drawings.
+ *
+ * Reports latency per event kind, frame time and input to frame latency, and whether the replay ended with the
+ * recorded state (curves are rounded in the recorded start, so an erase across one may differ slightly).
+ *
+ * Usage: java -Djava.awt.headless=true drawing.InputReplayer [speed=recorded|max] [view=1600x1200] file
+ */
+final class InputReplayer {
+
+    private static final long FRAME_NANOS = 1_000_000_000L / 60;
+
+    private final boolean recordedPace;
+    private final BufferedImage canvas;
+    private final TreeMap<String, ReplayHarness.Samples> samples = new TreeMap<>();
+
+    private String mode = "OFF";
+    private String customSvg = null;  // SHAPE event waiting for its MODE
+
+    private InputReplayer(boolean recordedPace, int viewW, int viewH) {
+        this.recordedPace = recordedPace;
+        this.canvas = new BufferedImage(viewW, viewH, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    // ------------------- Recording -------------------
+    private static final class Recording {
+        String mapId = "Map0";
+        final ArrayList<String[]> attributes = new ArrayList<>();  // name, value
+        String restore = null;
+        String end = null;                                         // null: recorded before END existed
+        final ArrayList<String[]> events = new ArrayList<>();      // time (microseconds), kind, the rest
+    }
+
+    private static Recording read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(InputRecording.HEADER)) throw new IOException(file + ": not an input recording");
+
+        Recording r = new Recording();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) continue;
+            if (line.startsWith("MAP\t")) r.mapId = line.substring(4);
+            else if (line.startsWith("ATTR\t")) r.attributes.add(line.substring(5).split("\t", 2));
+            else if (line.startsWith("STATE\t")) r.restore = line.substring(6);
+            else {
+                String[] e = line.split("\t", 3);
+                if (e.length < 3) continue;
+                if (e[1].equals("END")) r.end = e[2];
+                else r.events.add(e);
+            }
+        }
+        return r;
+    }
+
+    // ------------------- Replay -------------------
+    private void run(Recording rec) throws Exception {
+        ReplayHarness.HeadlessMap map = new ReplayHarness.HeadlessMap(rec.mapId, canvas.getWidth(), canvas.getHeight());
+        MapAnnotator annotator = new MapAnnotator();
+        for (String[] a : rec.attributes) if (a.length == 2) annotator.setAttribute(a[0], a[1]);
+        annotator.attachHeadless(map);
+        SwingUtilities.invokeAndWait(() -> {
+            Command c = rec.restore == null ? null : annotator.decode(rec.restore);
+            if (c != null) c.execute();
+            annotator.awaitApplied();
+            paint(annotator, map);
+        });
+
+        final long start = System.nanoTime();
+        final ArrayList<Long> inFrame = new ArrayList<>(); // when the events of the frame being built were replayed
+        long frameEnds = Long.MIN_VALUE;                   // recorded time (ns) of the frame's end
+        int mouse = 0, commands = 0;
+
+        for (int i = 0; i < rec.events.size(); i++) {
+            String[] ev = rec.events.get(i);
+            final long t = Long.parseLong(ev[0]) * 1000;
+            if (recordedPace) {
+                long wait = start + t - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+            }
+            if (frameEnds == Long.MIN_VALUE) frameEnds = t + FRAME_NANOS;
+
+            final String kind = ev[1], data = ev[2];
+            if (kind.equals("RECEIVED") || kind.equals("LOCAL")) commands++;
+            else if (!kind.equals("MODE") && !kind.equals("SHAPE") && !kind.equals("ID")) mouse++;
+            // The ids the event's handler created, recorded right after it
+            final ArrayList<String> ids = new ArrayList<>();
+            for (int j = i + 1; j < rec.events.size() && rec.events.get(j)[1].equals("ID"); j++) ids.add(rec.events.get(j)[2]);
+            SwingUtilities.invokeAndWait(() -> {
+                annotator.replayIds(ids);
+                long t0 = System.nanoTime();
+                String label = dispatch(annotator, map, kind, data);
+                annotator.awaitApplied();
+                if (label == null) return;
+                sample(label, System.nanoTime() - t0);
+                inFrame.add(t0);
+            });
+
+            // The frame closes when the next event belongs to a later one
+            boolean last = i == rec.events.size() - 1;
+            if (last || Long.parseLong(rec.events.get(i + 1)[0]) * 1000 >= frameEnds) {
+                frame(annotator, map, inFrame);
+                frameEnds = Long.MIN_VALUE;
+            }
+        }
+
+        // Work still sliced over frames (previews, catch-up) runs out
+        int left = 10_000;
+        while (left-- > 0 && frame(annotator, map, inFrame)) {
+            // until nothing is left
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        long recorded = rec.events.isEmpty() ? 0 : Long.parseLong(rec.events.get(rec.events.size() - 1)[0]) * 1000;
+        System.out.printf(Locale.US, "%d mouse events and %d commands recorded over %.2f s, replayed in %.2f s (%s)%n",
+                mouse, commands, recorded / 1e9, elapsed / 1e9, recordedPace ? "recorded pace" : "max speed");
+        if (rec.end != null) {
+            annotator.awaitApplied();
+            annotator.setAttribute("compressRestore", false);
+            ArrayList<String> wire = new ArrayList<>();
+            ReplayHarness.flatten(annotator.getRestoreCommand(), annotator, wire);
+            String replayed = wire.isEmpty() ? "" : wire.get(0);
+            int missing = missing(rec.end, replayed);
+            if (replayed.equals(rec.end)) System.out.println("final state as recorded");
+            else if (missing == 0) System.out.println("final state has the recorded items, stacked in another order");
+            else System.out.printf(Locale.US, "final state DIFFERS from the recording: %d of %d recorded items not reproduced%n",
+                    missing, items(rec.end).values().stream().mapToInt(Integer::intValue).sum());
+        }
+        System.out.println();
+        ReplayHarness.printLatencies(samples);
+    }
+
+    // The items of a SET_STATE restore, with their multiplicity
+    private static HashMap<String, Integer> items(String restore) {
+        HashMap<String, Integer> items = new HashMap<>();
+        String state = restore.substring(restore.indexOf("||SET_STATE||") + "||SET_STATE||".length());
+        if (!state.isEmpty()) for (String item : state.split("@@")) items.merge(item, 1, Integer::sum);
+        return items;
+    }
+
+    private static int missing(String recorded, String replayed) {
+        HashMap<String, Integer> have = items(replayed);
+        int n = 0;
+        for (java.util.Map.Entry<String, Integer> e : items(recorded).entrySet()) {
+            n += Math.max(0, e.getValue() - have.getOrDefault(e.getKey(), 0));
+        }
+        return n;
+    }
+
+    // Replays one event on the EDT; the latency label, or null for events that are not measured
+    private String dispatch(MapAnnotator a, ReplayHarness.HeadlessMap map, String kind, String data) {
+        switch (kind) {
+            case "PRESS": case "DRAG": case "MOVE": case "RELEASE": {
+                String[] f = data.split("\t");
+                if (kind.equals("PRESS") && mode.equals("TEXT")) return null;
+                int id = kind.equals("PRESS") ? MouseEvent.MOUSE_PRESSED : kind.equals("DRAG") ? MouseEvent.MOUSE_DRAGGED
+                        : kind.equals("MOVE") ? MouseEvent.MOUSE_MOVED : MouseEvent.MOUSE_RELEASED;
+                MouseEvent e = new MouseEvent(map.getView(), id, System.currentTimeMillis(), Integer.parseInt(f[2]),
+                        Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[4]), false, Integer.parseInt(f[3]));
+                if (id == MouseEvent.MOUSE_PRESSED) a.mousePressed(e);
+                else if (id == MouseEvent.MOUSE_DRAGGED) a.mouseDragged(e);
+                else if (id == MouseEvent.MOUSE_MOVED) a.mouseMoved(e);
+                else a.mouseReleased(e);
+                return kind + " " + mode;
+            }
+            case "SHAPE":
+                customSvg = data;
+                return null;
+            case "MODE": {
+                String[] f = data.split("\t");
+                mode = f[0];
+                a.replayMode(f[0], f[1], customSvg);
+                customSvg = null;
+                return "MODE";
+            }
+            case "RECEIVED": case "LOCAL": {
+                Command c = a.decode(data);
+                if (c != null) c.execute();
+                return ReplayHarness.actionOf(data);
+            }
+            default:
+                return null;
+        }
+    }
+
+    // One frame tick and paint on the EDT; true if sliced work is left for another frame
+    private boolean frame(MapAnnotator a, ReplayHarness.HeadlessMap map, List<Long> inFrame) throws Exception {
+        boolean[] more = new boolean[1];
+        SwingUtilities.invokeAndWait(() -> {
+            long t0 = System.nanoTime();
+            more[0] = a.replayFrame();
+            paint(a, map);
+            long end = System.nanoTime();
+            sample("(frame)", end - t0);
+            for (long replayed : inFrame) sample("(input to frame)", end - replayed);
+            inFrame.clear();
+        });
+        return more[0];
+    }
+
+    private void paint(MapAnnotator a, ReplayHarness.HeadlessMap map) {
+        Graphics2D g = canvas.createGraphics();
+        g.setClip(0, 0, canvas.getWidth(), canvas.getHeight());
+        a.draw(g, map);
+        g.dispose();
+    }
+
+    private void sample(String kind, long nanos) {
+        samples.computeIfAbsent(kind, k -> new ReplayHarness.Samples()).add(nanos);
+    }
+
+    // ------------------- Command line -------------------
+    public static void main(String[] args) throws Exception {
+        String file = null;
+        for (String a : args) if (!a.contains("=")) file = a;
+        if (file == null) {
+            System.err.println("Usage: java -Djava.awt.headless=true drawing.InputReplayer [speed=recorded|max] [view=1600x1200] file");
+            System.exit(2);
+        }
+
+        String[] view = AnnotationLogGenerator.arg(args, "view", "1600x1200").split("x");
+        InputReplayer r = new InputReplayer(!AnnotationLogGenerator.arg(args, "speed", "recorded").equals("max"),
+                Integer.parseInt(view[0]), Integer.parseInt(view[1]));
+        r.run(read(file));
+        System.exit(0);
+    }
+}
@@ -2,27 +2,72 @@ package drawing;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import javax.swing.*;
 
 import VASSAL.build.AbstractConfigurable;
 import VASSAL.build.Buildable;
 import VASSAL.build.GameModule;
+import VASSAL.build.module.BasicLogger;
 import VASSAL.build.module.GameComponent;
 import VASSAL.build.module.Map;
+import VASSAL.build.module.PlayerRoster;
+import VASSAL.build.module.ServerConnection;
 import VASSAL.build.module.documentation.HelpFile;
 import VASSAL.build.module.map.Drawable;
+import VASSAL.build.module.properties.MutableProperty;
 import VASSAL.command.Command;
 import VASSAL.command.CommandEncoder;
 import VASSAL.configure.NamedHotKeyConfigurer;
 import VASSAL.tools.NamedKeyStroke;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class MapAnnotator extends AbstractConfigurable
         implements Drawable, GameComponent, CommandEncoder, MouseListener, MouseMotionListener {
@@ -40,32 +85,97 @@ public class MapAnnotator extends AbstractConfigurable
 
     // Editor properties - UI & Hotkeys
     private String btnDrawText = "Draw", btnTextText = "Text", btnShapesText = "Shapes ▼", btnGumText = "Gum", btnClearText = "Clear";
-    private NamedKeyStroke hkDraw, hkText, hkShapes, hkGum, hkClear;
+    private String btnSelectText = "Select";
+    private NamedKeyStroke hkDraw, hkText, hkShapes, hkGum, hkClear, hkSelect;
+
+    // Editor properties - Save format & sync
+    private boolean compressRestore = false; // module versions before SET_STATE_Z cannot read compressed saves
+    private boolean eraseSendsResult = true;
+    private int digestIntervalSec = 30;
+    private int consolidateIdleSec = 20;
+
+    // Editor properties - Rendering
+    private boolean adaptiveQuality = true;
+    private int qualityIdleMs = 250;
+    private double draftHairlinePx = 1.5;
+    private int predictInkMs = 12;
+    private boolean gumMaskPreview = false;
 
     // Runtime state (ALWAYS MAP COORDINATES)
-    private final ArrayList<SvgPath> paths = new ArrayList<>();
-    private final ArrayList<TextItem> texts = new ArrayList<>();
+    // Commands are applied on one background thread to a working copy only that thread touches (see Command
+    // application); the result is published as an immutable State that painting and mouse handling read.
+    private final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
+    private final ArrayList<SvgPath> paths = new ArrayList<>();        // working copy, apply thread only
+    private final ArrayList<TextItem> texts = new ArrayList<>();       // working copy, apply thread only
+    private final HashMap<String, SvgPath> pathIndex = new HashMap<>(); // working copy, apply thread only
+    private final HashMap<String, Symbol> symbols = new HashMap<>();     // apply thread only, kept across CLEAR_ALL
+    private java.util.Map<String, Symbol> publishedSymbols = Collections.emptyMap(); // apply thread only, replaced on change
+    private final StyleBatches batches = new StyleBatches();
+    // Changes applied to existing items (erases, moves, merges, re-adds, restores); written by the apply thread only.
+    // An erase result cut from a State that is missing some of them would undo them, so the stroke is sent instead.
+    private volatile long editsApplied = 0;
 
     // UI State
-    private enum Mode { OFF, DRAW, TEXT, GUM, SHAPE }
-    private enum ShapeType { RECTANGLE, ELLIPSE, ARROW }
+    private enum Mode { OFF, DRAW, TEXT, GUM, SHAPE, SELECT }
+    private enum SelectDrag { MOVE, SCALE, MARQUEE }
+    private enum ShapeType { RECTANGLE, ELLIPSE, ARROW, CUSTOM }
     private Mode mode = Mode.OFF;
     private ShapeType currentShape = ShapeType.ARROW;
+    private SvgPath customShape = null; // imported template (shared with SvgImporter cache, never modified)
+    private Symbol customSymbol = null; // customShape as a symbol (its id is the one all clients compute)
     private Map map;
 
     // Transient drawing state
     private transient boolean dragging = false;
-    private transient ArrayList<Point> inProgressPoints = null;
-    private transient ArrayList<Point> eraserPath = null;
+    private final transient PointBuffer inProgressPoints = new PointBuffer(); // empty unless a stroke is in progress
+    private final transient PointBuffer eraserPath = new PointBuffer();
     private transient Point shapeStart = null;
+    private transient String shapeId = null; // of the shape being dragged, for every preview and the commit
     private transient Point cursorMap = null;
     private transient ArrayList<SvgPath> previewPaths = null;
     private transient ArrayList<TextItem> previewTexts = null;
 
+    // Selection (SELECT mode), by id so remote changes never leave stale objects selected
+    private final LinkedHashSet<String> selectedPaths = new LinkedHashSet<>();
+    private final LinkedHashSet<String> selectedTexts = new LinkedHashSet<>();
+    private transient SelectDrag selectDrag = null;
+    private transient Point selectStart = null;
+    private transient Rectangle selectStartBounds = null;     // selection bounds when the drag started
+    private transient AffineTransform selectPreview = null;   // MOVE / SCALE being dragged
+    private transient Rectangle marquee = null;
+    private transient boolean marqueeExtends = false;
+
     // Gum incremental preview worker
-    private transient int gumAppliedIdx = 0;
-    private transient boolean gumWorkScheduled = false;
-    private int gumWorkBudgetMs = 6;
+    private transient EraserSession gumSession = null;
+    private transient GumMask gumMask = null; // instead of gumSession with gumMaskPreview (see Gum mask preview)
+
+    // After a local commit the stroke / shape / gum / move preview stays on screen until a newer State than
+    // this one is published, so there is no frame without it while the apply thread catches up
+    private transient State echoBase = null;
+
+    // Input coalescing: handlers only queue samples, one frame tick applies them and repaints
+    private final transient FrameScheduler frames = new FrameScheduler();
+    private final transient PointBuffer pendingSamples = new PointBuffer();
+    private transient FrameJob gumJob = null;
+
+    // Time-sliced EDT work (gum preview, batch catch-up, consolidation), run by the frame ticks
+    private final transient WorkScheduler work = new WorkScheduler();
+    private transient FrameJob catchUpJob = null;
+    private transient Rectangle lastVisibleMap = null; // EDT: the area the last draw covered
+
+    // Adaptive quality: committed annotations are drawn rougher until input has been idle for qualityIdleMs
+    private final transient QualityGovernor quality = new QualityGovernor();
+
+    // Predicted tail of the stroke in progress (see Predictive ink); drawn only, never part of the stroke
+    private final transient InkPredictor ink = new InkPredictor();
+
+    // Input session being recorded (RMB on Clear), else null; commands may be decoded off the EDT
+    private transient volatile InputRecording recording = null;
+    private final transient ArrayDeque<String> replayIds = new ArrayDeque<>(); // EDT only, see newItemId
+
+    // Idle-time merging of small same-style paths (see Consolidation)
+    private final transient Consolidator consolidator = new Consolidator();
+    private final transient javax.swing.Timer consolidateTimer = new javax.swing.Timer(1000, e -> consolidator.tick());
 
     // Flattening tolerance (map units) for curve->polyline conversion in eraser math
     private static final double ERASE_FLATNESS = 0.75;
@@ -73,16 +183,25 @@ public class MapAnnotator extends AbstractConfigurable
     // All eraser cutting is done in a finer integer grid (prevents stuck micro-segments)
     private static final int ERASE_SCALE = 4;
 
+    // Long command bursts (restores) are published at least this often, so the map fills in progressively
+    private static final long PUBLISH_INTERVAL_NANOS = 100_000_000L;
+
+    // Compressed restore: max compressed bytes carried by one STATE_CHUNK command (however long one item is)
+    private static final int RESTORE_CHUNK_BYTES = 32 * 1024;
+
+    // Selection handle and click tolerance (screen pixels)
+    private static final int SELECT_HANDLE_PX = 6;
+
     // Text preview (draw-only)
     private static final String TEXT_PREVIEW_SAMPLE = "Abc";
     private static final int TEXT_PREVIEW_ALPHA = 110;
 
     // Toolbar
-    private JToggleButton btnDraw, btnText, btnShapes, btnGum;
+    private JToggleButton btnDraw, btnText, btnShapes, btnGum, btnSelect;
     private JButton btnClear;
 
     // ------------------- SVG Data Structures -------------------
-    private static class SvgPath {
+    static class SvgPath {
         String id;
         int rgb;
         double w;
@@ -91,6 +210,32 @@ public class MapAnnotator extends AbstractConfigurable
             double startX, startY;
             ArrayList<Seg> segs = new ArrayList<>();
             Subpath(double sx, double sy) { startX = sx; startY = sy; }
+
+            // Cached bounds (control points included), reset by SvgPath.invalidateBounds().
+            // Volatile: published subpaths are measured lazily from the EDT and the apply thread.
+            double minX, minY, maxX, maxY;
+            volatile boolean boundsValid = false;
+
+            void ensureBounds() {
+                if (boundsValid) return;
+                minX = maxX = startX;
+                minY = maxY = startY;
+                for (Seg s : segs) {
+                    if (s instanceof LineTo) {
+                        LineTo l = (LineTo) s;
+                        minX = Math.min(minX, l.x); maxX = Math.max(maxX, l.x);
+                        minY = Math.min(minY, l.y); maxY = Math.max(maxY, l.y);
+                    }
+                    else if (s instanceof CubicTo) {
+                        CubicTo c = (CubicTo) s;
+                        minX = Math.min(minX, Math.min(Math.min(c.x1, c.x2), c.x));
+                        maxX = Math.max(maxX, Math.max(Math.max(c.x1, c.x2), c.x));
+                        minY = Math.min(minY, Math.min(Math.min(c.y1, c.y2), c.y));
+                        maxY = Math.max(maxY, Math.max(Math.max(c.y1, c.y2), c.y));
+                    }
+                }
+                boundsValid = true;
+            }
         }
 
         interface Seg {}
@@ -107,11 +252,24 @@ public class MapAnnotator extends AbstractConfigurable
             }
         }
 
-        ArrayList<Subpath> subs = new ArrayList<>();
+        // Geometry; null while the path only exists in its serialized form (see raw).
+        // Once a path is published in a State its geometry never changes, only these caches are filled in
+        // (by whichever thread gets there first, hence volatile).
+        private volatile ArrayList<Subpath> subs = new ArrayList<>();
+
+        // Serialized form as received (ADD_PATH / SET_STATE). Parsed into subs on first use and written
+        // back verbatim by toSvgData() for as long as the geometry has not been modified.
+        private String raw = null;
 
-        // Cached MAP-space bounds (conservative for cubics via control points)
-        Rectangle bounds = new Rectangle();
-        boolean boundsValid = false;
+        // Cached MAP-space bounds (conservative for cubics via control points), null until computed
+        private volatile Rectangle bounds = null;
+
+        // Hash of the state item, 0 until computed (apply thread only, see State digest)
+        long digest = 0;
+
+        // The state item itself ("" if nothing is left to draw), null until computed and again after the geometry
+        // changes: saves and autosaves only serialize the paths added or changed since the last one
+        private volatile String item = null;
 
         SvgPath(String id, int rgb, double w) {
             this.id = id;
@@ -123,97 +281,174 @@ public class MapAnnotator extends AbstractConfigurable
             this.id = id;
             this.rgb = rgb;
             this.w = w;
-            parseSvg(svgData);
+            setSvgData(svgData);
+        }
+
+        ArrayList<Subpath> subs() {
+            ArrayList<Subpath> s = subs;
+            if (s == null) {
+                // Filled before it is published: a concurrent reader never sees a half-parsed list
+                s = new ArrayList<>();
+                scanSvg(raw, s);
+                subs = s;
+            }
+            return s;
+        }
+
+        boolean isMaterialized() { return subs != null; }
+
+        SvgPath copy() {
+            SvgPath cp = new SvgPath(id, rgb, w);
+            cp.raw = raw;
+            if (subs == null) {
+                cp.subs = null;
+                cp.bounds = bounds;
+            }
+            else copySubpaths(this, cp);
+            return cp;
         }
 
-        void invalidateBounds() { boundsValid = false; }
+        // Only for paths that are not published yet
+        void invalidateBounds() {
+            bounds = null;
+            item = null;
+            ArrayList<Subpath> s = subs;
+            if (s != null) for (Subpath sp : s) sp.boundsValid = false;
+        }
 
         Rectangle getBounds() {
-            if (!boundsValid) recomputeBounds();
-            return bounds;
+            Rectangle b = bounds;
+            return b != null ? b : recomputeBounds();
         }
 
-        private void recomputeBounds() {
+        Rectangle cachedBounds() { return bounds; }
+
+        private Rectangle recomputeBounds() {
+            ArrayList<Subpath> subs = this.subs;
+            if (subs == null) {
+                return scanSvg(raw, null); // no objects, just min/max of the coordinates
+            }
+
             double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
             double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
 
+            // Union of the subpaths' cached bounds: subpaths left alone by an erase are not rescanned
             for (Subpath sp : subs) {
-                minX = Math.min(minX, sp.startX); maxX = Math.max(maxX, sp.startX);
-                minY = Math.min(minY, sp.startY); maxY = Math.max(maxY, sp.startY);
-
-                for (Seg s : sp.segs) {
-                    if (s instanceof LineTo) {
-                        LineTo l = (LineTo) s;
-                        minX = Math.min(minX, l.x); maxX = Math.max(maxX, l.x);
-                        minY = Math.min(minY, l.y); maxY = Math.max(maxY, l.y);
-                    }
-                    else if (s instanceof CubicTo) {
-                        CubicTo c = (CubicTo) s;
-                        minX = Math.min(minX, Math.min(Math.min(c.x1, c.x2), c.x));
-                        maxX = Math.max(maxX, Math.max(Math.max(c.x1, c.x2), c.x));
-                        minY = Math.min(minY, Math.min(Math.min(c.y1, c.y2), c.y));
-                        maxY = Math.max(maxY, Math.max(Math.max(c.y1, c.y2), c.y));
-                    }
-                }
+                sp.ensureBounds();
+                minX = Math.min(minX, sp.minX); maxX = Math.max(maxX, sp.maxX);
+                minY = Math.min(minY, sp.minY); maxY = Math.max(maxY, sp.maxY);
             }
 
+            return setBounds(minX, minY, maxX, maxY);
+        }
+
+        // The cached rectangle is shared: callers copy it before changing it
+        Rectangle setBounds(double minX, double minY, double maxX, double maxY) {
+            Rectangle b;
             if (!Double.isFinite(minX) || !Double.isFinite(minY)) {
-                bounds = new Rectangle(0, 0, 0, 0);
+                b = new Rectangle(0, 0, 0, 0);
             }
             else {
                 int x = (int) Math.floor(minX);
                 int y = (int) Math.floor(minY);
                 int w = (int) Math.ceil(maxX) - x;
                 int h = (int) Math.ceil(maxY) - y;
-                bounds = new Rectangle(x, y, Math.max(0, w), Math.max(0, h));
+                b = new Rectangle(x, y, Math.max(0, w), Math.max(0, h));
+            }
+            bounds = b;
+            return b;
+        }
+
+        // Builds new subpath and segment objects: the old ones may be shared with a gum preview (EraserSession)
+        void transform(AffineTransform at) {
+            double[] c = new double[6];
+            ArrayList<Subpath> out = new ArrayList<>(subs().size());
+            for (Subpath sp : subs) {
+                c[0] = sp.startX; c[1] = sp.startY;
+                at.transform(c, 0, c, 0, 1);
+                Subpath t = new Subpath(c[0], c[1]);
+                t.segs.ensureCapacity(sp.segs.size());
+
+                for (Seg s : sp.segs) {
+                    if (s instanceof LineTo) {
+                        LineTo l = (LineTo) s;
+                        c[0] = l.x; c[1] = l.y;
+                        at.transform(c, 0, c, 0, 1);
+                        t.segs.add(new LineTo(c[0], c[1]));
+                    }
+                    else if (s instanceof CubicTo) {
+                        CubicTo cu = (CubicTo) s;
+                        c[0] = cu.x1; c[1] = cu.y1; c[2] = cu.x2; c[3] = cu.y2; c[4] = cu.x; c[5] = cu.y;
+                        at.transform(c, 0, c, 0, 3);
+                        t.segs.add(new CubicTo(c[0], c[1], c[2], c[3], c[4], c[5]));
+                    }
+                }
+                out.add(t);
             }
-            boundsValid = true;
+            setSubpaths(out);
+        }
+
+        // New path with the same id and style (a published path is never modified)
+        SvgPath transformed(AffineTransform at) {
+            SvgPath cp = new SvgPath(id, rgb, w);
+            cp.setSubpaths(subs());
+            cp.transform(at);
+            return cp;
         }
 
         boolean hasCurves() {
+            ArrayList<Subpath> subs = this.subs;
+            if (subs == null) return raw.indexOf('C') >= 0;
             for (Subpath sp : subs) for (Seg s : sp.segs) if (s instanceof CubicTo) return true;
             return false;
         }
 
-        void parseSvg(String data) {
-            subs.clear();
-            if (data == null || data.trim().isEmpty()) { invalidateBounds(); return; }
+        void setSvgData(String data) {
+            raw = data == null ? "" : data.trim();
+            subs = null;
+            invalidateBounds();
+        }
 
-            String[] t = data.trim().split("\\s+");
-            int i = 0;
-            Subpath cur = null;
+        // Single pass over "M x y L x y C x1 y1 x2 y2 x y ...": always computes bounds, builds subpaths into 'into' if given
+        private Rectangle scanSvg(String data, ArrayList<Subpath> into) {
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
 
-            while (i < t.length) {
-                String cmd = t[i++];
+            if (data != null) {
+                SvgScanner sc = new SvgScanner(data);
+                double[] v = new double[6];
+                boolean haveSub = false;
+                Subpath cur = null;
+
+                while (sc.skipSpace()) {
+                    char cmd = sc.command();
+                    int n;
+                    if (cmd == 'M') n = 2;
+                    else if (cmd == 'L' && haveSub) n = 2;
+                    else if (cmd == 'C' && haveSub) n = 6;
+                    else continue;
+
+                    if (!sc.numbers(v, n)) break;
+                    for (int k = 0; k < n; k += 2) {
+                        minX = Math.min(minX, v[k]); maxX = Math.max(maxX, v[k]);
+                        minY = Math.min(minY, v[k + 1]); maxY = Math.max(maxY, v[k + 1]);
+                    }
+                    if (cmd == 'M') haveSub = true;
 
-                if ("M".equals(cmd) && i + 1 < t.length) {
-                    double x = Double.parseDouble(t[i++]);
-                    double y = Double.parseDouble(t[i++]);
-                    cur = new Subpath(x, y);
-                    subs.add(cur);
-                }
-                else if ("L".equals(cmd) && cur != null && i + 1 < t.length) {
-                    double x = Double.parseDouble(t[i++]);
-                    double y = Double.parseDouble(t[i++]);
-                    cur.segs.add(new LineTo(x, y));
-                }
-                else if ("C".equals(cmd) && cur != null && i + 5 < t.length) {
-                    double x1 = Double.parseDouble(t[i++]);
-                    double y1 = Double.parseDouble(t[i++]);
-                    double x2 = Double.parseDouble(t[i++]);
-                    double y2 = Double.parseDouble(t[i++]);
-                    double x = Double.parseDouble(t[i++]);
-                    double y = Double.parseDouble(t[i++]);
-                    cur.segs.add(new CubicTo(x1, y1, x2, y2, x, y));
+                    if (into == null) continue;
+                    if (cmd == 'M') { cur = new Subpath(v[0], v[1]); into.add(cur); }
+                    else if (cmd == 'L') cur.segs.add(new LineTo(v[0], v[1]));
+                    else cur.segs.add(new CubicTo(v[0], v[1], v[2], v[3], v[4], v[5]));
                 }
             }
 
-            invalidateBounds();
+            return setBounds(minX, minY, maxX, maxY);
         }
 
         String toSvgData() {
+            if (raw != null) return raw;
             StringBuilder sb = new StringBuilder();
-            for (Subpath sp : subs) {
+            for (Subpath sp : subs()) {
                 sb.append("M ").append(fmt(sp.startX)).append(" ").append(fmt(sp.startY)).append(" ");
                 for (Seg s : sp.segs) {
                     if (s instanceof LineTo) {
@@ -234,7 +469,12 @@ public class MapAnnotator extends AbstractConfigurable
 
         Path2D.Double buildMapPath() {
             Path2D.Double p = new Path2D.Double(Path2D.WIND_NON_ZERO);
-            for (Subpath sp : subs) {
+            appendTo(p);
+            return p;
+        }
+
+        void appendTo(Path2D.Double p) {
+            for (Subpath sp : subs()) {
                 p.moveTo(sp.startX, sp.startY);
                 for (Seg s : sp.segs) {
                     if (s instanceof LineTo) {
@@ -247,71 +487,73 @@ public class MapAnnotator extends AbstractConfigurable
                     }
                 }
             }
-            return p;
         }
 
-        ArrayList<ArrayList<Point>> toScaledPolylineSubpaths(double flatness, int scale) {
-            ArrayList<ArrayList<Point>> out = new ArrayList<>();
-            if (subs.isEmpty()) return out;
+        // Subpaths carried over from the old list must be unmodified (their cached bounds are kept)
+        void setSubpaths(ArrayList<Subpath> newSubs) {
+            raw = null;
+            subs = newSubs;
+            bounds = null;
+            item = null;
+        }
 
-            if (!hasCurves()) {
-                for (Subpath sp : subs) {
-                    ArrayList<Point> pts = new ArrayList<>();
-                    pts.add(new Point((int) Math.round(sp.startX * scale), (int) Math.round(sp.startY * scale)));
-                    for (Seg s : sp.segs) {
-                        LineTo l = (LineTo) s;
-                        Point np = new Point((int) Math.round(l.x * scale), (int) Math.round(l.y * scale));
-                        if (!np.equals(pts.get(pts.size() - 1))) pts.add(np);
-                    }
-                    if (pts.size() >= 2) out.add(pts);
-                }
-                return out;
-            }
+        // Whitespace-separated tokens of toSvgData(); plain decimals are parsed without substrings
+        private static final class SvgScanner {
+            private static final double[] POW10 = { 1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+            private final String d;
+            private final int n;
+            private int i = 0;
 
-            PathIterator it = buildMapPath().getPathIterator(null, flatness);
-            double[] c = new double[6];
-            ArrayList<Point> cur = null;
-
-            while (!it.isDone()) {
-                int seg = it.currentSegment(c);
-                if (seg == PathIterator.SEG_MOVETO) {
-                    if (cur != null && cur.size() >= 2) out.add(cur);
-                    cur = new ArrayList<>();
-                    cur.add(new Point((int) Math.round(c[0] * scale), (int) Math.round(c[1] * scale)));
-                }
-                else if (seg == PathIterator.SEG_LINETO) {
-                    if (cur == null) cur = new ArrayList<>();
-                    Point np = new Point((int) Math.round(c[0] * scale), (int) Math.round(c[1] * scale));
-                    if (cur.isEmpty() || !np.equals(cur.get(cur.size() - 1))) cur.add(np);
-                }
-                it.next();
+            SvgScanner(String d) { this.d = d; this.n = d.length(); }
+
+            boolean skipSpace() {
+                while (i < n && Character.isWhitespace(d.charAt(i))) i++;
+                return i < n;
             }
-            if (cur != null && cur.size() >= 2) out.add(cur);
-            return out;
-        }
 
-        void setFromScaledPolylineSubpaths(ArrayList<ArrayList<Point>> newSubs, int scale) {
-            subs.clear();
-            if (newSubs == null) { invalidateBounds(); return; }
+            // Consumes one token; returns its letter if it is a single-letter command, 0 otherwise
+            char command() {
+                int start = i;
+                while (i < n && !Character.isWhitespace(d.charAt(i))) i++;
+                return i - start == 1 ? d.charAt(start) : 0;
+            }
 
-            for (ArrayList<Point> pts : newSubs) {
-                if (pts == null || pts.size() < 2) continue;
+            boolean numbers(double[] out, int count) {
+                for (int k = 0; k < count; k++) {
+                    if (!skipSpace()) return false;
+                    out[k] = number();
+                }
+                return true;
+            }
 
-                double sx = pts.get(0).x / (double) scale;
-                double sy = pts.get(0).y / (double) scale;
-                Subpath sp = new Subpath(sx, sy);
+            private double number() {
+                int start = i;
+                boolean neg = false;
+                char c = d.charAt(i);
+                if (c == '-' || c == '+') { neg = c == '-'; i++; }
+
+                long mant = 0;
+                int digits = 0, frac = -1;
+                while (i < n) {
+                    c = d.charAt(i);
+                    if (c >= '0' && c <= '9') { mant = mant * 10 + (c - '0'); digits++; if (frac >= 0) frac++; }
+                    else if (c == '.' && frac < 0) frac = 0;
+                    else break;
+                    i++;
+                }
 
-                for (int i = 1; i < pts.size(); i++) {
-                    Point p = pts.get(i);
-                    sp.segs.add(new LineTo(p.x / (double) scale, p.y / (double) scale));
+                if ((i < n && !Character.isWhitespace(d.charAt(i))) || digits == 0 || digits > 15) {
+                    // Exponents or anything unusual: let the JDK deal with it
+                    while (i < n && !Character.isWhitespace(d.charAt(i))) i++;
+                    return Double.parseDouble(d.substring(start, i));
                 }
-                subs.add(sp);
-            }
 
-            invalidateBounds();
+                double v = frac > 0 ? mant / POW10[frac] : mant;
+                return neg ? -v : v;
+            }
         }
 
-        private static String fmt(double v) {
+        static String fmt(double v) {
             long r = Math.round(v);
             if (Math.abs(v - r) < 1e-9) return Long.toString(r);
             String s = String.format(Locale.US, "%.4f", v);
@@ -321,13 +563,214 @@ public class MapAnnotator extends AbstractConfigurable
         }
     }
 
-    private static class TextItem {
+    // Shape geometry stored once per map and shared by all its SymbolInstances. "rect", "ellipse" and
+    // "arrow:<length>" are built in (every client derives the geometry from the id); imported shapes are
+    // named after a hash of their data and defined once with a SYMBOL command.
+    static final class Symbol {
+        private static final double ELLIPSE_K = 0.5522847498307936;
+        private static final int ARROW_HEAD = 20;
+        private static final int MAX_ARROW = 1_000_000;
+
+        final String id;
+        final SvgPath geometry; // symbol coordinates, never modified
+        private volatile Path2D.Double shape = null;
+
+        Symbol(String id, SvgPath geometry) {
+            this.id = id;
+            this.geometry = geometry;
+        }
+
+        Path2D.Double shape() {
+            Path2D.Double p = shape;
+            if (p == null) {
+                p = geometry.buildMapPath();
+                shape = p;
+            }
+            return p;
+        }
+
+        boolean isBuiltin() { return builtin(id) != null; }
+
+        // A built-in symbol, or null if id is not one
+        static Symbol create(String id) {
+            String svg = builtin(id);
+            return svg == null ? null : new Symbol(id, new SvgPath(id, 0, 0, svg));
+        }
+
+        // Geometry of a built-in symbol, null for any other id
+        static String builtin(String id) {
+            if (id.equals("rect")) return "M 0 0 L 1 0 L 1 1 L 0 1 L 0 0";
+            if (id.equals("ellipse")) {
+                // Unit circle, same four cubics as the ellipses drawn before symbols existed
+                String k = Double.toString(ELLIPSE_K);
+                return "M 1 0 C 1 " + k + " " + k + " 1 0 1 C -" + k + " 1 -1 " + k + " -1 0"
+                        + " C -1 -" + k + " -" + k + " -1 0 -1 C " + k + " -1 1 -" + k + " 1 0";
+            }
+            if (id.startsWith("arrow:")) {
+                // Shaft along +x from the origin, head at the tip
+                int len;
+                try { len = Integer.parseInt(id.substring(6)); }
+                catch (NumberFormatException e) { return null; }
+                if (len < 0 || len > MAX_ARROW) return null;
+                String hx = SvgPath.fmt(len - ARROW_HEAD * Math.cos(Math.PI / 6));
+                String hy = SvgPath.fmt(ARROW_HEAD * Math.sin(Math.PI / 6));
+                return "M 0 0 L " + len + " 0 M " + len + " 0 L " + hx + " " + hy + " M " + len + " 0 L " + hx + " -" + hy;
+            }
+            return null;
+        }
+
+        // Content-derived id for an imported shape, so every client names the same geometry the same way
+        static String idFor(SvgPath geometry) {
+            try {
+                byte[] h = java.security.MessageDigest.getInstance("SHA-1").digest(geometry.toSvgData().getBytes(StandardCharsets.UTF_8));
+                StringBuilder sb = new StringBuilder("svg:");
+                for (int i = 0; i < 10; i++) sb.append(String.format("%02x", h[i] & 0xFF));
+                return sb.toString();
+            }
+            catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // A stamped shape: a Symbol seen through a transform, plus its own colour and width. It is drawn from the
+    // symbol's cached Path2D; subs() hands out a transformed copy, built once and never modified, so the
+    // eraser (which only ever builds new paths) turns an instance into a plain SvgPath only where it cuts it.
+    static final class SymbolInstance extends SvgPath {
+        final Symbol symbol;
+        final AffineTransform at;
+
+        SymbolInstance(String id, int rgb, double w, Symbol symbol, AffineTransform at) {
+            super(id, rgb, w);
+            this.symbol = symbol;
+            this.at = new AffineTransform(at);
+        }
+
+        // The symbol's geometry through 'at' and its path data, built on first use (eraser, digests, saves)
+        private volatile SvgPath placed = null;
+        private volatile String placedData = null;
+
+        private SvgPath placed() {
+            SvgPath p = placed;
+            if (p == null) {
+                p = symbol.geometry.transformed(at);
+                placed = p;
+            }
+            return p;
+        }
+
+        @Override ArrayList<Subpath> subs() { return placed().subs(); }
+
+        @Override SvgPath copy() { return new SymbolInstance(id, rgb, w, symbol, at); }
+
+        @Override Rectangle getBounds() {
+            Rectangle b = cachedBounds();
+            if (b != null) return b;
+            java.awt.geom.Rectangle2D r = at.createTransformedShape(symbol.shape()).getBounds2D();
+            return setBounds(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY());
+        }
+
+        // Only for instances that are not published yet
+        @Override void transform(AffineTransform t) {
+            at.preConcatenate(t);
+            invalidateBounds();
+            placed = null;
+            placedData = null;
+        }
+
+        @Override SvgPath transformed(AffineTransform t) {
+            AffineTransform c = new AffineTransform(t);
+            c.concatenate(at);
+            return new SymbolInstance(id, rgb, w, symbol, c);
+        }
+
+        @Override boolean hasCurves() { return symbol.geometry.hasCurves(); }
+
+        @Override String toSvgData() {
+            String d = placedData;
+            if (d == null) {
+                d = placed().toSvgData();
+                placedData = d;
+            }
+            return d;
+        }
+
+        @Override void appendTo(Path2D.Double p) { p.append(symbol.shape().getPathIterator(at), false); }
+
+        // ADD_INSTANCE / "I" state item data: id;rgb;w;symbol;m00;m10;m01;m11;m02;m12
+        String instanceData() {
+            return id + ";" + rgb + ";" + w + ";" + symbol.id + ";" + fmt(at.getScaleX()) + ";" + fmt(at.getShearY()) + ";"
+                    + fmt(at.getShearX()) + ";" + fmt(at.getScaleY()) + ";" + fmt(at.getTranslateX()) + ";" + fmt(at.getTranslateY());
+        }
+    }
+
+    static class TextItem {
         String id, fontName, text;
-        int x, y, rgb, fontSize;
-        TextItem(String id, int x, int y, int rgb, String fontName, int fontSize, String text) {
+        int x, y, rgb, fontSize;             // as displayed: the synced values below, rounded
+        double exactX, exactY, exactSize;    // as synced and saved; whole numbers unless scaled (TRANSFORM)
+        long digest = 0; // see SvgPath.digest
+        private volatile String item = null; // see SvgPath.item; a text is never modified, a new one replaces it
+
+        // Display caches (see Live text). 'text' is the template that is synced and saved; what is drawn is
+        // 'shown', with its "$property$" references resolved, and 'box' is its measured MAP-space layout.
+        String[] refs = null;            // EDT only, parsed on first display
+        volatile String shown = null;    // null: the template itself
+        long shownStamp = -1;            // EDT only: sum of the watched properties' change counts when resolved
+        volatile TextBox box = null;     // any thread: the layout of the string it was measured for
+        TextItem(String id, double x, double y, int rgb, String fontName, double fontSize, String text) {
             this.id = id != null ? id : UUID.randomUUID().toString();
-            this.x = x; this.y = y; this.rgb = rgb;
-            this.fontName = fontName; this.fontSize = fontSize; this.text = text;
+            this.exactX = x; this.exactY = y; this.exactSize = fontSize;
+            this.x = (int) Math.round(x); this.y = (int) Math.round(y); this.rgb = rgb;
+            this.fontName = fontName; this.fontSize = (int) Math.round(fontSize); this.text = text;
+        }
+
+        // id;x;y;rgb;fontName;fontSize;base64 text, as in ADD_TEXT and the "T" state item
+        String data() {
+            return id + ";" + SvgPath.fmt(exactX) + ";" + SvgPath.fmt(exactY) + ";" + rgb + ";" + fontName + ";"
+                    + SvgPath.fmt(exactSize) + ";" + b64(text);
+        }
+
+        // Versions before TRANSFORM parse ADD_TEXT and "T" as whole numbers: a text a transform left at fractional
+        // values goes as ADD_TEXT_X and "TX" instead (same fields), which they skip
+        boolean fractional() {
+            return exactX != Math.rint(exactX) || exactY != Math.rint(exactY) || exactSize != Math.rint(exactSize);
+        }
+    }
+
+    private static final class TextBox {
+        final String text;
+        final Rectangle box;
+        TextBox(String text, Rectangle box) { this.text = text; this.box = box; }
+    }
+
+    // Growable int point list for drag samples; kept and reused from one drag to the next
+    private static final class PointBuffer {
+        int[] xs = new int[256], ys = new int[256];
+        private int n = 0;
+
+        int size() { return n; }
+        boolean isEmpty() { return n == 0; }
+        int x(int i) { return xs[i]; }
+        int y(int i) { return ys[i]; }
+        void clear() { n = 0; }
+
+        void add(int x, int y) {
+            if (n == xs.length) {
+                xs = Arrays.copyOf(xs, 2 * n);
+                ys = Arrays.copyOf(ys, 2 * n);
+            }
+            xs[n] = x;
+            ys[n] = y;
+            n++;
+        }
+
+        // Skips points closer than minDist to the last one
+        void addIfFar(int x, int y, int minDist) {
+            if (n > 0) {
+                int dx = x - xs[n - 1], dy = y - ys[n - 1];
+                if (dx * dx + dy * dy < minDist * minDist) return;
+            }
+            add(x, y);
         }
     }
 
@@ -340,8 +783,11 @@ public class MapAnnotator extends AbstractConfigurable
     public String[] getAttributeNames() {
         return new String[] {
                 "drawR", "drawG", "drawB", "lineWidth", "eraserRadius", "fontName", "fontSize", "textR", "textG", "textB",
-                "btnDrawText", "btnTextText", "btnShapesText", "btnGumText", "btnClearText",
-                "hkDraw", "hkText", "hkShapes", "hkGum", "hkClear"
+                "btnDrawText", "btnTextText", "btnShapesText", "btnGumText", "btnSelectText", "btnClearText",
+                "hkDraw", "hkText", "hkShapes", "hkGum", "hkSelect", "hkClear",
+                "compressRestore", "eraseSendsResult", "digestIntervalSec", "consolidateIdleSec",
+                "adaptiveQuality", "qualityIdleMs", "draftHairlinePx", "predictInkMs",
+                "gumMaskPreview"
         };
     }
 
@@ -350,8 +796,15 @@ public class MapAnnotator extends AbstractConfigurable
         return new String[] {
                 "Draw Color R (0-255)", "Draw Color G (0-255)", "Draw Color B (0-255)", "Line Width (pixels)", "Eraser Radius (pixels)",
                 "Font Name (e.g. SansSerif)", "Font Size", "Text Color R", "Text Color G", "Text Color B",
-                "Draw Button Tooltip", "Text Button Tooltip", "Shapes Button Tooltip", "Gum Button Tooltip", "Clear Button Tooltip",
-                "Draw Hotkey", "Text Hotkey", "Shapes Hotkey", "Gum Hotkey", "Clear Hotkey"
+                "Draw Button Tooltip", "Text Button Tooltip", "Shapes Button Tooltip", "Gum Button Tooltip", "Select Button Tooltip", "Clear Button Tooltip",
+                "Draw Hotkey", "Text Hotkey", "Shapes Hotkey", "Gum Hotkey", "Select Hotkey", "Clear Hotkey",
+                "Compress drawings in saves and reconnects", "Gum sends erase results (other clients do not recompute)",
+                "Compare drawings with other players every (seconds, 0 = never)",
+                "Merge small strokes of the same colour once the map is idle for (seconds, 0 = never)",
+                "Faster, rougher drawing while drawing, erasing or scrolling", "Full quality after idle (ms)",
+                "Draw thinner lines as hairlines while interacting (screen pixels, 0 = never)",
+                "Draw the stroke ahead of the pointer, guessed from its motion (ms, 0 = never)",
+                "Gum previews by masking a picture of the drawings (faster on busy maps, exact erase on release)"
         };
     }
 
@@ -359,8 +812,11 @@ public class MapAnnotator extends AbstractConfigurable
     public Class<?>[] getAttributeTypes() {
         return new Class<?>[] {
                 Integer.class, Integer.class, Integer.class, Double.class, Integer.class, String.class, Integer.class, Integer.class, Integer.class, Integer.class,
-                String.class, String.class, String.class, String.class, String.class,
-                NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class
+                String.class, String.class, String.class, String.class, String.class, String.class,
+                NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class, NamedKeyStroke.class,
+                Boolean.class, Boolean.class, Integer.class, Integer.class,
+                Boolean.class, Integer.class, Double.class, Integer.class,
+                Boolean.class
         };
     }
 
@@ -372,6 +828,7 @@ public class MapAnnotator extends AbstractConfigurable
             else if (key.equals("hkText")) hkText = (NamedKeyStroke) value;
             else if (key.equals("hkShapes")) hkShapes = (NamedKeyStroke) value;
             else if (key.equals("hkGum")) hkGum = (NamedKeyStroke) value;
+            else if (key.equals("hkSelect")) hkSelect = (NamedKeyStroke) value;
             else if (key.equals("hkClear")) hkClear = (NamedKeyStroke) value;
             return;
         }
@@ -391,12 +848,23 @@ public class MapAnnotator extends AbstractConfigurable
             else if (key.equals("btnTextText")) btnTextText = v;
             else if (key.equals("btnShapesText")) btnShapesText = v;
             else if (key.equals("btnGumText")) btnGumText = v;
+            else if (key.equals("btnSelectText")) btnSelectText = v;
             else if (key.equals("btnClearText")) btnClearText = v;
             else if (key.equals("hkDraw")) hkDraw = NamedHotKeyConfigurer.decode(v);
             else if (key.equals("hkText")) hkText = NamedHotKeyConfigurer.decode(v);
             else if (key.equals("hkShapes")) hkShapes = NamedHotKeyConfigurer.decode(v);
             else if (key.equals("hkGum")) hkGum = NamedHotKeyConfigurer.decode(v);
+            else if (key.equals("hkSelect")) hkSelect = NamedHotKeyConfigurer.decode(v);
             else if (key.equals("hkClear")) hkClear = NamedHotKeyConfigurer.decode(v);
+            else if (key.equals("compressRestore")) compressRestore = Boolean.parseBoolean(v);
+            else if (key.equals("eraseSendsResult")) eraseSendsResult = Boolean.parseBoolean(v);
+            else if (key.equals("digestIntervalSec")) digestIntervalSec = Math.max(0, Integer.parseInt(v));
+            else if (key.equals("consolidateIdleSec")) consolidateIdleSec = Math.max(0, Integer.parseInt(v));
+            else if (key.equals("adaptiveQuality")) adaptiveQuality = Boolean.parseBoolean(v);
+            else if (key.equals("qualityIdleMs")) qualityIdleMs = Math.max(0, Integer.parseInt(v));
+            else if (key.equals("draftHairlinePx")) draftHairlinePx = Math.max(0, Double.parseDouble(v));
+            else if (key.equals("predictInkMs")) predictInkMs = Math.max(0, Integer.parseInt(v));
+            else if (key.equals("gumMaskPreview")) gumMaskPreview = Boolean.parseBoolean(v);
         } catch (NumberFormatException ignored) {}
     }
 
@@ -416,17 +884,33 @@ public class MapAnnotator extends AbstractConfigurable
         else if (key.equals("btnTextText")) return btnTextText;
         else if (key.equals("btnShapesText")) return btnShapesText;
         else if (key.equals("btnGumText")) return btnGumText;
+        else if (key.equals("btnSelectText")) return btnSelectText;
         else if (key.equals("btnClearText")) return btnClearText;
         else if (key.equals("hkDraw")) return hkDraw == null ? null : NamedHotKeyConfigurer.encode(hkDraw);
         else if (key.equals("hkText")) return hkText == null ? null : NamedHotKeyConfigurer.encode(hkText);
         else if (key.equals("hkShapes")) return hkShapes == null ? null : NamedHotKeyConfigurer.encode(hkShapes);
         else if (key.equals("hkGum")) return hkGum == null ? null : NamedHotKeyConfigurer.encode(hkGum);
+        else if (key.equals("hkSelect")) return hkSelect == null ? null : NamedHotKeyConfigurer.encode(hkSelect);
         else if (key.equals("hkClear")) return hkClear == null ? null : NamedHotKeyConfigurer.encode(hkClear);
+        else if (key.equals("compressRestore")) return String.valueOf(compressRestore);
+        else if (key.equals("eraseSendsResult")) return String.valueOf(eraseSendsResult);
+        else if (key.equals("digestIntervalSec")) return String.valueOf(digestIntervalSec);
+        else if (key.equals("consolidateIdleSec")) return String.valueOf(consolidateIdleSec);
+        else if (key.equals("adaptiveQuality")) return String.valueOf(adaptiveQuality);
+        else if (key.equals("qualityIdleMs")) return String.valueOf(qualityIdleMs);
+        else if (key.equals("draftHairlinePx")) return String.valueOf(draftHairlinePx);
+        else if (key.equals("predictInkMs")) return String.valueOf(predictInkMs);
+        else if (key.equals("gumMaskPreview")) return String.valueOf(gumMaskPreview);
         return null;
     }
 
     @Override
     public void removeFrom(Buildable parent) {
+        digestTimer.stop();
+        consolidateTimer.stop();
+        propertyTimer.stop();
+        unwatchProperties();
+        if (recording != null) stopRecording();
         if (map != null) {
             map.removeDrawComponent(this);
             map.popMouseListener(this);
@@ -436,6 +920,7 @@ public class MapAnnotator extends AbstractConfigurable
             if (btnText != null) map.getToolBar().remove(btnText);
             if (btnShapes != null) map.getToolBar().remove(btnShapes);
             if (btnGum != null) map.getToolBar().remove(btnGum);
+            if (btnSelect != null) map.getToolBar().remove(btnSelect);
             if (btnClear != null) map.getToolBar().remove(btnClear);
         }
         GameModule.getGameModule().removeCommandEncoder(this);
@@ -450,6 +935,9 @@ public class MapAnnotator extends AbstractConfigurable
             GameModule.getGameModule().addCommandEncoder(this);
             GameModule.getGameModule().getGameState().addGameComponent(this);
             setupToolbar();
+            digestTimer.start();
+            consolidateTimer.start();
+            propertyTimer.start();
 
             SwingUtilities.invokeLater(() -> {
                 if (map != null && map.getView() != null) {
@@ -460,6 +948,11 @@ public class MapAnnotator extends AbstractConfigurable
         }
     }
 
+    // Headless use (ReplayHarness): only the map, no toolbar, listeners or module registration
+    void attachHeadless(Map m) {
+        this.map = m;
+    }
+
     private void setupToolbar() {
         JToolBar tb = map.getToolBar();
         tb.addSeparator();
@@ -468,26 +961,31 @@ public class MapAnnotator extends AbstractConfigurable
         btnText = new JToggleButton(btnTextText);
         btnShapes = new JToggleButton(btnShapesText);
         btnGum = new JToggleButton(btnGumText);
+        btnSelect = new JToggleButton(btnSelectText);
         btnClear = new JButton(btnClearText);
 
         btnDraw.addActionListener(e -> handleToggle(btnDraw, Mode.DRAW));
         btnText.addActionListener(e -> handleToggle(btnText, Mode.TEXT));
         btnGum.addActionListener(e -> handleToggle(btnGum, Mode.GUM));
+        btnSelect.addActionListener(e -> handleToggle(btnSelect, Mode.SELECT));
         setupShapesMenu();
 
         btnClear.addActionListener(e -> {
             if (JOptionPane.showConfirmDialog(map.getView(), "Clear all drawings on this map?", "Clear",
                     JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
                 Command c = new AnnotateCommand(map.getId(), "CLEAR_ALL", "");
-                c.execute(); GameModule.getGameModule().sendAndLog(c);
+                recordLocal(c);
+                executeAndSend(c);
             }
         });
+        setupSnapshotMenu();
 
-        tb.add(btnDraw); tb.add(btnText); tb.add(btnShapes); tb.add(btnGum); tb.add(btnClear);
+        tb.add(btnDraw); tb.add(btnText); tb.add(btnShapes); tb.add(btnGum); tb.add(btnSelect); tb.add(btnClear);
         bindHotkey(hkDraw, btnDraw);
         bindHotkey(hkText, btnText);
         bindHotkey(hkShapes, btnShapes);
         bindHotkey(hkGum, btnGum);
+        bindHotkey(hkSelect, btnSelect);
         bindHotkey(hkClear, btnClear);
     }
 
@@ -496,6 +994,7 @@ public class MapAnnotator extends AbstractConfigurable
         JMenuItem miArrow = new JMenuItem("Arrow");
         JMenuItem miRect = new JMenuItem("Rectangle");
         JMenuItem miOval = new JMenuItem("Ellipse");
+        JMenuItem miImport = new JMenuItem("Import SVG...");
 
         ActionListener shapeSelect = e -> {
             String cmd = e.getActionCommand();
@@ -511,7 +1010,10 @@ public class MapAnnotator extends AbstractConfigurable
         miArrow.addActionListener(shapeSelect);
         miRect.addActionListener(shapeSelect);
         miOval.addActionListener(shapeSelect);
+        miImport.addActionListener(e -> importSvgShape());
         shapeMenu.add(miArrow); shapeMenu.add(miRect); shapeMenu.add(miOval);
+        shapeMenu.addSeparator();
+        shapeMenu.add(miImport);
 
         btnShapes.addMouseListener(new MouseAdapter() {
             @Override public void mousePressed(MouseEvent e) {
@@ -521,6 +1023,234 @@ public class MapAnnotator extends AbstractConfigurable
         btnShapes.addActionListener(e -> handleToggle(btnShapes, Mode.SHAPE));
     }
 
+    private void importSvgShape() {
+        JFileChooser fc = new JFileChooser();
+        fc.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("SVG files", "svg"));
+        if (fc.showOpenDialog(map.getView()) != JFileChooser.APPROVE_OPTION) return;
+        final File f = fc.getSelectedFile();
+
+        // Parsing can take a while for big files: keep it off the EDT
+        new SwingWorker<SvgPath, Void>() {
+            @Override protected SvgPath doInBackground() throws IOException { return SvgImporter.load(f); }
+
+            @Override protected void done() {
+                try {
+                    customShape = get();
+                    customSymbol = new Symbol(Symbol.idFor(customShape), customShape);
+                }
+                catch (Exception ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(map.getView(), "Cannot import " + f.getName() + ":\n" + cause.getMessage(),
+                            "Import SVG", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                currentShape = ShapeType.CUSTOM;
+                btnShapes.setText(f.getName() + " ▼");
+                if (!btnShapes.isSelected()) btnShapes.doClick();
+                else setMode(Mode.SHAPE);
+            }
+        }.execute();
+    }
+
+    // ------------------- Snapshot files -------------------
+    // RMB on Clear: export this map's annotations to a .vdas file, or add the ones of a file (see AnnotationSnapshot);
+    // also starts and stops input recordings (see Input recording)
+    private void setupSnapshotMenu() {
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem miImport = new JMenuItem("Import annotations...");
+        JMenuItem miExport = new JMenuItem("Export annotations...");
+        JMenuItem miRecord = new JMenuItem("Record input session...");
+        miImport.addActionListener(e -> importSnapshot());
+        miExport.addActionListener(e -> exportSnapshot());
+        miRecord.addActionListener(e -> {
+            if (recording == null) startRecording();
+            else stopRecording();
+            miRecord.setText(recording == null ? "Record input session..." : "Stop recording input");
+        });
+        menu.add(miImport); menu.add(miExport);
+        menu.addSeparator();
+        menu.add(miRecord);
+
+        btnClear.addMouseListener(new MouseAdapter() {
+            @Override public void mousePressed(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) menu.show(btnClear, e.getX(), e.getY());
+            }
+        });
+    }
+
+    private JFileChooser snapshotChooser() {
+        JFileChooser fc = new JFileChooser();
+        fc.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Annotation snapshots", AnnotationSnapshot.EXTENSION));
+        return fc;
+    }
+
+    private void importSnapshot() {
+        JFileChooser fc = snapshotChooser();
+        if (fc.showOpenDialog(map.getView()) != JFileChooser.APPROVE_OPTION) return;
+        final File f = fc.getSelectedFile();
+
+        // Items are decoded from the mapped file off the EDT; the command is executed and sent on it. Texts at
+        // fractional values go as ADD_TEXT_X commands of their own: a version before TRANSFORM skips those, where it
+        // would drop a whole BATCH with one in it
+        new SwingWorker<Command, Void>() {
+            @Override protected Command doInBackground() throws IOException {
+                AnnotationSnapshot snap = AnnotationSnapshot.open(f);
+                ArrayList<String> items = new ArrayList<>(snap.pathCount() + snap.textCount());
+                ArrayList<Command> fractional = new ArrayList<>();
+                for (int i = 0; i < snap.pathCount(); i++) items.add(addPathItem(snap.path(i)));
+                for (int i = 0; i < snap.textCount(); i++) {
+                    TextItem t = snap.text(i);
+                    if (t.fractional()) fractional.add(new AnnotateCommand(map.getId(), "ADD_TEXT_X", t.data()));
+                    else items.add(addTextItem(t));
+                }
+                Command c = items.isEmpty() ? null : batchCommand(items);
+                for (Command t : fractional) {
+                    if (c == null) c = t;
+                    else c.append(t);
+                }
+                return c;
+            }
+
+            @Override protected void done() {
+                Command c;
+                try {
+                    c = get();
+                }
+                catch (Exception ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(map.getView(), "Cannot import " + f.getName() + ":\n" + cause.getMessage(),
+                            "Import annotations", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                if (c == null) return;
+                recordLocal(c);
+                executeAndSend(c);
+            }
+        }.execute();
+    }
+
+    private void exportSnapshot() {
+        JFileChooser fc = snapshotChooser();
+        if (fc.showSaveDialog(map.getView()) != JFileChooser.APPROVE_OPTION) return;
+        File chosen = fc.getSelectedFile();
+        final File f = chosen.getName().contains(".") ? chosen : new File(chosen.getPath() + "." + AnnotationSnapshot.EXTENSION);
+
+        // Published states never change: waiting for the commands executed so far, encoding and writing all
+        // happen in the background
+        new SwingWorker<Void, Void>() {
+            @Override protected Void doInBackground() throws IOException {
+                awaitApplied();
+                State s = state.get();
+                AnnotationSnapshot.write(f, AnnotationSnapshot.encode(s.paths, s.texts));
+                return null;
+            }
+
+            @Override protected void done() {
+                try {
+                    get();
+                }
+                catch (Exception ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(map.getView(), "Cannot write " + f.getName() + ":\n" + cause.getMessage(),
+                            "Export annotations", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    // ------------------- Input recording -------------------
+    // Logs what reaches this annotator until stopped (see InputRecording); commands sent without a mouse event
+    // go as LOCAL. In a replay, replayMode() and replayFrame() stand in for the toolbar and the frame ticks.
+    private void startRecording() {
+        JFileChooser fc = new JFileChooser();
+        fc.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Input recordings", InputRecording.EXTENSION));
+        if (fc.showSaveDialog(map.getView()) != JFileChooser.APPROVE_OPTION) return;
+        File chosen = fc.getSelectedFile();
+        File f = chosen.getName().contains(".") ? chosen : new File(chosen.getPath() + "." + InputRecording.EXTENSION);
+
+        // Settings the handlers depend on (colours, widths, radius, rendering); hotkeys mean nothing to a replay
+        String[] names = getAttributeNames(), values = new String[names.length];
+        Class<?>[] types = getAttributeTypes();
+        for (int i = 0; i < names.length; i++) {
+            if (types[i] != NamedKeyStroke.class) values[i] = getAttributeValueString(names[i]);
+        }
+
+        // Commands not applied yet go after the state, as if received first
+        ArrayList<String> pending = new ArrayList<>();
+        State s = stateWithPending(pending);
+        try {
+            InputRecording r = InputRecording.create(f, map.getId(), names, values,
+                    encodeState(s, COMMAND_PREFIX + map.getId() + "||SET_STATE||"));
+            for (String p : pending) r.received(COMMAND_PREFIX + p);
+            recording = r;
+        }
+        catch (IOException ex) {
+            JOptionPane.showMessageDialog(map.getView(), "Cannot write " + f.getName() + ":\n" + ex.getMessage(),
+                    "Record input session", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // The state the recorded commands lead to is written last, once they are applied, so that a replay can check
+    // that it reached it
+    private void stopRecording() {
+        InputRecording r = recording;
+        recording = null;
+        final String head = COMMAND_PREFIX + map.getId() + "||SET_STATE||";
+        enqueue(() -> {
+            publish();
+            try {
+                r.end(encodeState(state.get(), head));
+                r.close();
+            }
+            catch (IOException ex) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(map == null ? null : map.getView(),
+                        "The recording is incomplete:\n" + ex.getMessage(), "Record input session", JOptionPane.ERROR_MESSAGE));
+            }
+        });
+    }
+
+    private void recordLocal(Command c) {
+        InputRecording r = recording;
+        if (r == null) return;
+        r.local(encode(c));
+        for (Command sub : c.getSubCommands()) r.local(encode(sub));
+    }
+
+    // Id of a stroke or shape the mouse handlers create. It is recorded, and a replay takes the recorded one
+    // instead of a new one, so the commands received later that name the item find it.
+    private String newItemId() {
+        String id = replayIds.poll();
+        if (id == null) id = UUID.randomUUID().toString();
+        InputRecording r = recording;
+        if (r != null) r.id(id);
+        return id;
+    }
+
+    // InputReplayer: the ids the next event's handler created when it was recorded (none left from the last one)
+    void replayIds(List<String> ids) {
+        replayIds.clear();
+        replayIds.addAll(ids);
+    }
+
+    // What the toolbar and shape menu chose; customSvg is the imported shape's path data, if it changed
+    void replayMode(String modeName, String shapeName, String customSvg) {
+        if (customSvg != null) {
+            customShape = new SvgPath(null, 0, 0, customSvg);
+            customSymbol = new Symbol(Symbol.idFor(customShape), customShape);
+        }
+        currentShape = ShapeType.valueOf(shapeName);
+        setMode(Mode.valueOf(modeName));
+    }
+
+    // One frame tick's work, without the repaint (the replayer paints); true if it ran any, as the repaint tick()
+    // issues after it may then submit more (a draw that could not catch up in its budget)
+    boolean replayFrame() {
+        applyPendingInput();
+        boolean any = work.hasWork();
+        work.runFrame();
+        return any;
+    }
+
     private void bindHotkey(NamedKeyStroke nks, AbstractButton btn) {
         if (nks == null || nks.getKeyStroke() == null) return;
         KeyStroke ks = nks.getKeyStroke();
@@ -542,6 +1272,7 @@ public class MapAnnotator extends AbstractConfigurable
             if (clickedBtn != btnText) btnText.setSelected(false);
             if (clickedBtn != btnShapes) btnShapes.setSelected(false);
             if (clickedBtn != btnGum)  btnGum.setSelected(false);
+            if (clickedBtn != btnSelect) btnSelect.setSelected(false);
             setMode(targetMode);
         }
         else setMode(Mode.OFF);
@@ -549,13 +1280,21 @@ public class MapAnnotator extends AbstractConfigurable
 
     private void setMode(Mode m) {
         this.mode = m;
+        if (recording != null) recording.mode(m.name(), currentShape.name(), currentShape == ShapeType.CUSTOM ? customShape : null);
         dragging = false;
-        inProgressPoints = null;
-        eraserPath = null;
+        echoBase = null;
+        pendingSamples.clear();
+        inProgressPoints.clear();
+        ink.reset();
+        eraserPath.clear();
         shapeStart = null;
         previewPaths = null;
         previewTexts = null;
-        if (map != null) map.repaint();
+        gumMask = null;
+        selectedPaths.clear();
+        selectedTexts.clear();
+        endSelectDrag();
+        frames.requestRepaint();
     }
 
     // ------------------- Mouse Listener -------------------
@@ -565,31 +1304,39 @@ public class MapAnnotator extends AbstractConfigurable
 
         // map.pushMouseListener delivers MAP coords
         final Point mapLoc = e.getPoint();
+        if (recording != null) recording.mouse("PRESS", mapLoc, e);
 
         if (isLeftDown(e)) {
+            echoBase = null;
+            quality.interacted();
             if (mode == Mode.DRAW) {
                 dragging = true;
-                inProgressPoints = new ArrayList<>();
-                inProgressPoints.add(mapLoc);
+                inProgressPoints.clear();
+                inProgressPoints.add(mapLoc.x, mapLoc.y);
+                ink.reset();
+                ink.sample(mapLoc.x, mapLoc.y);
                 e.consume();
             }
             else if (mode == Mode.SHAPE) {
                 dragging = true;
                 shapeStart = mapLoc;
+                shapeId = newItemId();
                 cursorMap = mapLoc;
                 previewPaths = new ArrayList<>();
                 e.consume();
             }
             else if (mode == Mode.GUM) {
                 dragging = true;
-                eraserPath = new ArrayList<>();
-                eraserPath.add(mapLoc);
-
-                previewPaths = deepCopyPaths(paths);
-                previewTexts = deepCopyTexts(texts);
-
-                gumAppliedIdx = 0;
-                gumWorkScheduled = false;
+                eraserPath.clear();
+                eraserPath.add(mapLoc.x, mapLoc.y);
+
+                if (gumMaskPreview) gumMask = new GumMask();
+                else {
+                    gumSession = new EraserSession(eraserRadius);
+                    previewPaths = gumSession.previewPaths;
+                    previewTexts = gumSession.previewTexts;
+                }
+                cancelGumPreviewWork();
 
                 e.consume();
             }
@@ -597,7 +1344,13 @@ public class MapAnnotator extends AbstractConfigurable
                 handleTextClick(mapLoc);
                 e.consume();
             }
-            map.repaint();
+            else if (mode == Mode.SELECT) {
+                dragging = true;
+                pressSelect(mapLoc, e.isShiftDown());
+                e.consume();
+            }
+            pendingSamples.clear();
+            frames.requestRepaint();
         }
     }
 
@@ -607,73 +1360,124 @@ public class MapAnnotator extends AbstractConfigurable
 
         final Point mapLoc = map.componentToMap(e.getPoint());
         cursorMap = mapLoc;
+        if (recording != null) recording.mouse("DRAG", mapLoc, e);
 
         if (dragging) {
-            if (mode == Mode.DRAW && inProgressPoints != null) {
-                addIfFar(inProgressPoints, mapLoc, 2);
-                e.consume();
-            }
-            else if (mode == Mode.SHAPE && shapeStart != null) {
-                previewPaths = new ArrayList<>();
-                previewPaths.add(createPureShapePath(shapeStart, mapLoc, currentShape,
-                        new Color(drawR, drawG, drawB).getRGB(), drawWidth));
-                e.consume();
-            }
-            else if (mode == Mode.GUM && eraserPath != null) {
-                int before = eraserPath.size();
-                addIfFar(eraserPath, mapLoc, 2);
-                if (eraserPath.size() != before) scheduleGumPreviewWork();
-                e.consume();
-            }
-            map.repaint();
+            // Applied by the next frame tick (applyPendingInput); every sample is kept
+            pendingSamples.add(mapLoc.x, mapLoc.y);
+            if (mode == Mode.DRAW) ink.sample(mapLoc.x, mapLoc.y);
+            quality.interacted();
+            frames.requestRepaint();
+            e.consume();
+        }
+    }
+
+    // Frame tick work: fold the queued drag samples into the stroke, eraser path or shape preview
+    private void applyPendingInput() {
+        if (pendingSamples.isEmpty() || !dragging) {
+            pendingSamples.clear();
+            return;
+        }
+
+        if (mode == Mode.DRAW) {
+            for (int i = 0; i < pendingSamples.size(); i++) inProgressPoints.addIfFar(pendingSamples.x(i), pendingSamples.y(i), 2);
         }
+        else if (mode == Mode.SHAPE && shapeStart != null) {
+            // Only the latest pointer position matters for the preview
+            int last = pendingSamples.size() - 1;
+            previewPaths = new ArrayList<>();
+            previewPaths.add(createPureShapePath(shapeId, shapeStart, new Point(pendingSamples.x(last), pendingSamples.y(last)),
+                    currentShape, new Color(drawR, drawG, drawB).getRGB(), drawWidth));
+        }
+        else if (mode == Mode.GUM) {
+            int before = eraserPath.size();
+            for (int i = 0; i < pendingSamples.size(); i++) eraserPath.addIfFar(pendingSamples.x(i), pendingSamples.y(i), 2);
+            if (eraserPath.size() != before && gumSession != null) scheduleGumPreviewWork();
+        }
+        else if (mode == Mode.SELECT && selectDrag != null) {
+            int last = pendingSamples.size() - 1;
+            dragSelect(new Point(pendingSamples.x(last), pendingSamples.y(last)));
+        }
+        pendingSamples.clear();
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
         if (mode == Mode.OFF || map == null || !dragging) return;
+        if (recording != null) recording.mouse("RELEASE", e.getPoint(), e);
+        applyPendingInput();
         dragging = false;
+        ink.reset();
 
-        if (mode == Mode.DRAW && inProgressPoints != null && inProgressPoints.size() >= 2) {
-            SvgPath sp = new SvgPath(UUID.randomUUID().toString(), new Color(drawR, drawG, drawB).getRGB(), drawWidth);
-            sp.subs.add(polylineToSubpath(inProgressPoints));
+        if (mode == Mode.DRAW && inProgressPoints.size() >= 2) {
+            SvgPath sp = new SvgPath(newItemId(), new Color(drawR, drawG, drawB).getRGB(), drawWidth);
+            sp.subs().add(polylineToSubpath(inProgressPoints));
             sp.invalidateBounds();
             Command c = new AnnotateCommand(map.getId(), "ADD_PATH",
                     sp.id + ";" + sp.rgb + ";" + sp.w + ";" + sp.toSvgData());
-            c.execute(); GameModule.getGameModule().sendAndLog(c);
+            echoBase = state.get();
+            executeAndSend(c);
         }
         else if (mode == Mode.SHAPE && shapeStart != null && previewPaths != null && !previewPaths.isEmpty()) {
             SvgPath sp = previewPaths.get(0);
-            Command c = new AnnotateCommand(map.getId(), "ADD_PATH",
-                    sp.id + ";" + sp.rgb + ";" + sp.w + ";" + sp.toSvgData());
-            c.execute(); GameModule.getGameModule().sendAndLog(c);
+            Command c = sp instanceof SymbolInstance ? instanceCommand((SymbolInstance) sp)
+                    : new AnnotateCommand(map.getId(), "ADD_PATH", sp.id + ";" + sp.rgb + ";" + sp.w + ";" + sp.toSvgData());
+            echoBase = state.get();
+            executeAndSend(c);
+        }
+        // A result cut from a State that has been edited since would undo those edits: the stroke is sent instead
+        else if (mode == Mode.GUM && !eraserPath.isEmpty() && eraseSendsResult && gumSession != null && gumSession.edits == editsApplied) {
+            // Finish the preview and broadcast what it changed
+            finishGumPreview();
+            EraseResult result = gumSession.result(eraserPath);
+            if (!result.isEmpty()) {
+                Command c = new AnnotateCommand(map.getId(), "ERASE_RESULT", result.encode());
+                echoBase = state.get();
+                executeAndSend(c);
+            }
+        }
+        else if (mode == Mode.GUM && !eraserPath.isEmpty() && eraseSendsResult && gumMask != null) {
+            eraseInBackground();
         }
-        else if (mode == Mode.GUM && eraserPath != null && !eraserPath.isEmpty()) {
-            StringBuilder epStr = new StringBuilder();
-            epStr.append(eraserRadius).append(";");
-            for (Point p : eraserPath) epStr.append(p.x).append(",").append(p.y).append(";");
-            Command c = new AnnotateCommand(map.getId(), "ERASE_PATH", epStr.toString());
-            c.execute(); GameModule.getGameModule().sendAndLog(c);
+        else if (mode == Mode.SELECT) {
+            releaseSelect();
+        }
+        else if (mode == Mode.GUM && !eraserPath.isEmpty()) {
+            Command c = eraseSegCommand(eraserPath, eraserRadius);
+            echoBase = state.get();
+            executeAndSend(c);
         }
 
-        gumWorkScheduled = false;
+        cancelGumPreviewWork();
+        gumSession = null;
 
-        inProgressPoints = null;
-        eraserPath = null;
+        eraserPath.clear();
         shapeStart = null;
+        if (echoBase == null) clearPreviews();
+        quality.interacted();
+        frames.requestRepaint();
+        e.consume();
+    }
+
+    private void clearPreviews() {
+        inProgressPoints.clear();
         previewPaths = null;
         previewTexts = null;
-        map.repaint();
-        e.consume();
+        if (gumMask != null && !gumMask.erasing) gumMask = null;
+        endSelectDrag();
     }
 
     @Override
     public void mouseMoved(MouseEvent e) {
         if (map == null) return;
         cursorMap = map.componentToMap(e.getPoint());
+        if (recording != null && mode != Mode.OFF) recording.mouse("MOVE", cursorMap, e);
 
         // TEXT preview follows cursor
-        if (mode == Mode.TEXT || mode == Mode.GUM) map.repaint();
+        if (mode == Mode.TEXT || mode == Mode.GUM) {
+            quality.interacted();
+            frames.requestRepaint();
+        }
     }
 
     @Override public void mouseClicked(MouseEvent e) {}
@@ -682,22 +1486,24 @@ public class MapAnnotator extends AbstractConfigurable
 
     // ------------------- Text dialog actions -------------------
     private void handleTextClick(Point mapLoc) {
-        int idx = findTextHit(mapLoc);
+        State s = state.get();
+        int idx = findTextHit(s, mapLoc);
         if (idx >= 0) {
-            TextItem t = texts.get(idx);
+            TextItem t = s.texts.get(idx);
             String newText = JOptionPane.showInputDialog(map.getView(), "Edit text:", t.text);
             if (newText == null) return;
 
             if (newText.trim().isEmpty()) {
                 Command c = new AnnotateCommand(map.getId(), "REMOVE_TEXT", t.id);
-                c.execute(); GameModule.getGameModule().sendAndLog(c);
+                recordLocal(c);
+                executeAndSend(c);
             }
             else {
-                String payload = t.id + ";" + t.x + ";" + t.y + ";"
-                        + new Color(textR, textG, textB).getRGB() + ";"
-                        + safeFont(fontName) + ";" + fontSize + ";" + b64(newText.trim());
-                Command c = new AnnotateCommand(map.getId(), "ADD_TEXT", payload);
-                c.execute(); GameModule.getGameModule().sendAndLog(c);
+                TextItem edited = new TextItem(t.id, t.exactX, t.exactY, new Color(textR, textG, textB).getRGB(),
+                        safeFont(fontName), fontSize, newText.trim());
+                Command c = new AnnotateCommand(map.getId(), edited.fractional() ? "ADD_TEXT_X" : "ADD_TEXT", edited.data());
+                recordLocal(c);
+                executeAndSend(c);
             }
         }
         else {
@@ -712,132 +1518,875 @@ public class MapAnnotator extends AbstractConfigurable
                     + new Color(textR, textG, textB).getRGB() + ";"
                     + safeFont(fontName) + ";" + fontSize + ";" + b64(txt.trim());
             Command c = new AnnotateCommand(map.getId(), "ADD_TEXT", payload);
-            c.execute(); GameModule.getGameModule().sendAndLog(c);
+            recordLocal(c);
+            executeAndSend(c);
         }
     }
 
-    // ------------------- Gum Preview Worker -------------------
-    private void scheduleGumPreviewWork() {
-        if (gumWorkScheduled) return;
-        gumWorkScheduled = true;
+    // ------------------- Selection -------------------
+    // Click selects (shift toggles), dragging moves the selection, the corner handle scales it, empty space
+    // starts a marquee. Each move or scale is sent as one TRANSFORM (ids + matrix).
+    private void pressSelect(Point p, boolean extend) {
+        selectStart = p;
+        selectPreview = null;
+        selectStartBounds = selectionBounds();
 
-        SwingUtilities.invokeLater(() -> {
-            gumWorkScheduled = false;
-            runGumPreviewBurst();
+        if (selectStartBounds != null && onScaleHandle(selectStartBounds, p)) {
+            selectDrag = SelectDrag.SCALE;
+            return;
+        }
+
+        State s = state.get();
+        String textId = null, pathId = null;
+        int ti = findTextHit(s, p);
+        if (ti >= 0) textId = s.texts.get(ti).id;
+        else pathId = findPathHit(s, p);
+
+        if (textId == null && pathId == null) {
+            if (!extend) {
+                selectedPaths.clear();
+                selectedTexts.clear();
+            }
+            selectDrag = SelectDrag.MARQUEE;
+            marqueeExtends = extend;
+            marquee = new Rectangle(p.x, p.y, 0, 0);
+            return;
+        }
+
+        LinkedHashSet<String> set = textId != null ? selectedTexts : selectedPaths;
+        String id = textId != null ? textId : pathId;
+        if (set.contains(id)) {
+            if (extend) {
+                set.remove(id);
+                selectDrag = null;
+                return;
+            }
+        }
+        else {
+            if (!extend) {
+                selectedPaths.clear();
+                selectedTexts.clear();
+            }
+            set.add(id);
+        }
+        selectStartBounds = selectionBounds();
+        selectDrag = SelectDrag.MOVE;
+    }
+
+    private void dragSelect(Point p) {
+        if (selectDrag == SelectDrag.MARQUEE) {
+            marquee = new Rectangle(Math.min(selectStart.x, p.x), Math.min(selectStart.y, p.y),
+                    Math.abs(p.x - selectStart.x), Math.abs(p.y - selectStart.y));
+        }
+        else if (selectDrag == SelectDrag.MOVE) {
+            selectPreview = AffineTransform.getTranslateInstance(p.x - selectStart.x, p.y - selectStart.y);
+        }
+        else if (selectDrag == SelectDrag.SCALE && selectStartBounds != null) {
+            // Uniform scale about the top-left corner, so texts can follow
+            Rectangle b = selectStartBounds;
+            double w = Math.max(1, b.width), h = Math.max(1, b.height);
+            double s = Math.max(0.05, (w + h + (p.x - selectStart.x) + (p.y - selectStart.y)) / (w + h));
+            AffineTransform at = AffineTransform.getTranslateInstance(b.x, b.y);
+            at.scale(s, s);
+            at.translate(-b.x, -b.y);
+            selectPreview = at;
+        }
+    }
+
+    private void releaseSelect() {
+        if (selectDrag == SelectDrag.MARQUEE && marquee != null) {
+            if (!marqueeExtends) {
+                selectedPaths.clear();
+                selectedTexts.clear();
+            }
+            State s = state.get();
+            for (SvgPath sp : s.paths) if (marquee.contains(sp.getBounds())) selectedPaths.add(sp.id);
+            for (TextItem t : s.texts) if (marquee.contains(textBox(t))) selectedTexts.add(t.id);
+        }
+        else if (selectPreview != null && !selectPreview.isIdentity()
+                && (!selectedPaths.isEmpty() || !selectedTexts.isEmpty())) {
+            double[] m = new double[6];
+            selectPreview.getMatrix(m);
+            StringBuilder sb = new StringBuilder();
+            for (double v : m) sb.append(v).append(';');
+            sb.append(String.join(",", selectedPaths)).append(';').append(String.join(",", selectedTexts));
+
+            Command c = new AnnotateCommand(map.getId(), "TRANSFORM", sb.toString());
+            echoBase = state.get();
+            executeAndSend(c);
+            return; // the ghost stays until the move is published
+        }
+        endSelectDrag();
+    }
+
+    private void endSelectDrag() {
+        selectDrag = null;
+        selectStart = null;
+        selectStartBounds = null;
+        selectPreview = null;
+        marquee = null;
+    }
+
+    // MAP-space bounds of everything selected that still exists, or null
+    private Rectangle selectionBounds() {
+        State s = state.get();
+        Rectangle r = null;
+        for (String id : selectedPaths) {
+            SvgPath sp = s.path(id);
+            if (sp == null) continue;
+            if (r == null) r = new Rectangle(sp.getBounds());
+            else r.add(sp.getBounds());
+        }
+        if (!selectedTexts.isEmpty()) {
+            for (TextItem t : s.texts) {
+                if (!selectedTexts.contains(t.id)) continue;
+                if (r == null) r = textBox(t);
+                else r.add(textBox(t));
+            }
+        }
+        return r;
+    }
+
+    private boolean onScaleHandle(Rectangle b, Point p) {
+        double tol = SELECT_HANDLE_PX / map.getZoom();
+        return Math.abs(p.x - (b.x + b.width)) <= tol && Math.abs(p.y - (b.y + b.height)) <= tol;
+    }
+
+    // Topmost path passing within a few pixels of p (or within its own stroke)
+    private String findPathHit(State s, Point p) {
+        final double tol = Math.max(SELECT_HANDLE_PX / map.getZoom(), 1);
+        for (int i = s.paths.size() - 1; i >= 0; i--) {
+            SvgPath sp = s.paths.get(i);
+            double t = Math.max(tol, sp.w / 2);
+            Rectangle b = sp.getBounds();
+            if (p.x < b.x - t || p.x > b.x + b.width + t || p.y < b.y - t || p.y > b.y + b.height + t) continue;
+            if (pathNear(sp, p.x, p.y, t)) return sp.id;
+        }
+        return null;
+    }
+
+    private static boolean pathNear(SvgPath sp, double x, double y, double tol) {
+        final double tol2 = tol * tol;
+        for (SvgPath.Subpath sub : sp.subs()) {
+            double px = sub.startX, py = sub.startY;
+            for (SvgPath.Seg s : sub.segs) {
+                if (s instanceof SvgPath.LineTo) {
+                    SvgPath.LineTo l = (SvgPath.LineTo) s;
+                    if (segDist2(px, py, l.x, l.y, x, y) <= tol2) return true;
+                    px = l.x; py = l.y;
+                }
+                else {
+                    SvgPath.CubicTo c = (SvgPath.CubicTo) s;
+                    double[] pts = flattenCubic(px, py, c);
+                    for (int i = 2; i < pts.length; i += 2) {
+                        if (segDist2(pts[i - 2], pts[i - 1], pts[i], pts[i + 1], x, y) <= tol2) return true;
+                    }
+                    px = c.x; py = c.y;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static double segDist2(double ax, double ay, double bx, double by, double x, double y) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 < 1e-12 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / len2));
+        double ex = ax + t * dx - x, ey = ay + t * dy - y;
+        return ex * ex + ey * ey;
+    }
+
+    // TRANSFORM: m00;m10;m01;m11;m02;m12;pathIds;textIds (ids comma separated)
+    private void applyTransform(String data) {
+        String[] f = data.split(";", -1);
+        if (f.length < 8) return;
+
+        double[] m = new double[6];
+        try {
+            for (int i = 0; i < 6; i++) m[i] = Double.parseDouble(f[i]);
+        } catch (NumberFormatException ignored) { return; }
+        AffineTransform at = new AffineTransform(m);
+        editsApplied++;
+
+        // Stroke widths and font sizes scale with the drawings, so a scaled group keeps its proportions
+        double scale = Math.sqrt(Math.abs(at.getDeterminant()));
+        boolean scaled = Math.abs(scale - 1) >= 1e-9;
+
+        // Moved paths come to the top, in their stacking order: only their own batches change
+        HashSet<String> ids = new HashSet<>(Arrays.asList(f[6].split(",")));
+        ArrayList<SvgPath> moved = new ArrayList<>();
+        paths.removeIf(p -> {
+            if (!ids.contains(p.id)) return false;
+            moved.add(p);
+            return true;
         });
+        for (SvgPath old : moved) {
+            SvgPath sp = old.transformed(at);
+            if (scaled) sp.w = old.w * scale;
+            pathIndex.put(sp.id, sp);
+            paths.add(sp);
+            batches.removed(old);
+            batches.added(sp);
+            digestChanged(sp);
+        }
+
+        if (f[7].isEmpty()) return;
+        HashSet<String> textIds = new HashSet<>(Arrays.asList(f[7].split(",")));
+        for (int i = 0; i < texts.size(); i++) {
+            TextItem t = texts.get(i);
+            if (!textIds.contains(t.id)) continue;
+            // From the unrounded position and size: repeated transforms do not drift
+            Point2D p = at.transform(new Point2D.Double(t.exactX, t.exactY), null);
+            double size = scaled ? Math.max(1, t.exactSize * scale) : t.exactSize;
+            // Replaced, not modified: a gum preview may still hold the old item
+            TextItem nt = new TextItem(t.id, p.getX(), p.getY(), t.rgb, t.fontName, size, t.text);
+            texts.set(i, nt);
+            digestChanged(nt);
+        }
+    }
+
+    private void drawSelection(Graphics2D g2d, Map map, double zoom) {
+        Point o = map.mapToComponent(new Point(0, 0));
+        AffineTransform toView = new AffineTransform(zoom, 0, 0, zoom, o.x, o.y);
+        Stroke dashed = new BasicStroke(1f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[] { 4f, 4f }, 0f);
+
+        if (marquee != null) {
+            g2d.setStroke(dashed);
+            g2d.setColor(new Color(0, 0, 0, 160));
+            g2d.draw(toView.createTransformedShape(marquee));
+            return;
+        }
+
+        Rectangle b = selectPreview != null && selectStartBounds != null ? selectStartBounds : selectionBounds();
+        if (b == null) return;
+
+        if (selectPreview != null) {
+            // Ghost of the selection at its new place
+            State s = state.get();
+            Graphics2D gg = (Graphics2D) g2d.create();
+            gg.transform(toView);
+            gg.transform(selectPreview);
+            for (String id : selectedPaths) {
+                SvgPath sp = s.path(id);
+                if (sp == null) continue;
+                Path2D.Double shape = new Path2D.Double();
+                sp.appendTo(shape);
+                gg.setColor(new Color((sp.rgb & 0xFFFFFF) | 0x80000000, true));
+                gg.setStroke(new BasicStroke((float) sp.w, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                gg.draw(shape);
+            }
+            for (TextItem t : s.texts) {
+                if (!selectedTexts.contains(t.id)) continue;
+                gg.setColor(new Color((t.rgb & 0xFFFFFF) | 0x80000000, true));
+                gg.setFont(new Font(t.fontName, Font.PLAIN, t.fontSize));
+                gg.drawString(shownText(t), t.x, t.y);
+            }
+            gg.dispose();
+        }
+
+        java.awt.Shape outline = toView.createTransformedShape(
+                selectPreview != null ? selectPreview.createTransformedShape(b) : b);
+        g2d.setStroke(dashed);
+        g2d.setColor(new Color(0, 0, 0, 160));
+        g2d.draw(outline);
+
+        Rectangle ob = outline.getBounds();
+        int hs = SELECT_HANDLE_PX;
+        g2d.setStroke(new BasicStroke(1f));
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(ob.x + ob.width - hs / 2, ob.y + ob.height - hs / 2, hs, hs);
+        g2d.setColor(Color.BLACK);
+        g2d.drawRect(ob.x + ob.width - hs / 2, ob.y + ob.height - hs / 2, hs, hs);
+    }
+
+    // ------------------- Gum Preview Worker -------------------
+    // Interactive frame work: follows the eraser path until it has caught up with the pointer
+    private void scheduleGumPreviewWork() {
+        if (gumJob == null || !gumJob.isActive()) gumJob = work.submit(INTERACTIVE, this::runGumPreviewBurst);
     }
 
-    private void runGumPreviewBurst() {
-        if (map == null || !dragging || mode != Mode.GUM) return;
-        if (previewPaths == null || previewTexts == null || eraserPath == null) return;
+    private void cancelGumPreviewWork() {
+        if (gumJob != null) gumJob.cancel();
+        gumJob = null;
+    }
+
+    private boolean runGumPreviewBurst(long deadline) {
+        if (map == null || !dragging || mode != Mode.GUM) return true;
+        if (gumSession == null || eraserPath.isEmpty()) return true;
+
+        while (gumSession.appliedIdx < eraserPath.size() - 1 && System.nanoTime() < deadline) {
+            gumSession.step(eraserPath, gumSession.appliedIdx, gumSession.appliedIdx + 1);
+            gumSession.appliedIdx++;
+        }
+        return gumSession.appliedIdx >= eraserPath.size() - 1;
+    }
 
-        final long deadline = System.nanoTime() + gumWorkBudgetMs * 1_000_000L;
+    // Applies the eraser steps the time-sliced preview has not reached yet
+    private void finishGumPreview() {
+        if (eraserPath.size() == 1) {
+            gumSession.step(eraserPath, 0, 0);
+            return;
+        }
+        while (gumSession.appliedIdx < eraserPath.size() - 1) {
+            gumSession.step(eraserPath, gumSession.appliedIdx, gumSession.appliedIdx + 1);
+            gumSession.appliedIdx++;
+        }
+    }
 
-        while (gumAppliedIdx < eraserPath.size() - 1 && System.nanoTime() < deadline) {
-            Point a = eraserPath.get(gumAppliedIdx);
-            Point b = eraserPath.get(gumAppliedIdx + 1);
+    // ------------------- Gum mask preview -------------------
+    // gumMaskPreview: the drawings are rendered once into an image of the view and the eraser is punched out of
+    // it (DST_OUT) while dragging. The exact clipping runs once on release, off the EDT; the image stays up until
+    // its result is published.
+    private final class GumMask {
+        private BufferedImage image = null;
+        private Rectangle view = null;   // component area the picture covers
+        private double zoom = 0;
+        private int punched = 0;         // eraser points already punched out
+        boolean erasing = false;         // the release's exact erase is still running
+
+        void draw(Graphics2D g2d, Map map, State s, double zoom) {
+            Rectangle vr = map.getView().getVisibleRect();
+            if (image == null || !vr.equals(view) || zoom != this.zoom) render(map, s, vr, zoom);
+            punch(map);
+            g2d.drawImage(image, view.x, view.y, null);
+        }
 
-            ArrayList<Point> step = new ArrayList<>(2);
-            step.add(a);
-            step.add(b);
+        // The committed annotations at full quality; after a scroll or zoom the whole eraser path is punched again
+        private void render(Map map, State s, Rectangle vr, double zoom) {
+            view = new Rectangle(vr);
+            this.zoom = zoom;
+            punched = 0;
+            if (image == null || image.getWidth() != Math.max(1, vr.width) || image.getHeight() != Math.max(1, vr.height)) {
+                image = new BufferedImage(Math.max(1, vr.width), Math.max(1, vr.height), BufferedImage.TYPE_INT_ARGB_PRE);
+            }
 
-            eraseByGeometricClipping(previewPaths, previewTexts, step, eraserRadius);
-            gumAppliedIdx++;
+            Graphics2D ig = image.createGraphics();
+            ig.setComposite(AlphaComposite.Clear);
+            ig.fillRect(0, 0, image.getWidth(), image.getHeight());
+            ig.setComposite(AlphaComposite.SrcOver);
+            ig.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            ig.translate(-vr.x, -vr.y);
+            batches.draw(ig, map, map.componentToMap(vr), -1, Long.MAX_VALUE);
+            drawTexts(ig, map, s.texts, zoom);
+            ig.dispose();
         }
 
-        map.repaint();
+        // Eraser capsules not punched out yet; the first point is a zero-length line, drawn as a round dot
+        private void punch(Map map) {
+            int n = eraserPath.size();
+            if (punched >= n) return;
+
+            Graphics2D ig = image.createGraphics();
+            ig.translate(-view.x, -view.y);
+            ig.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            ig.setComposite(AlphaComposite.DstOut);
+            ig.setStroke(new BasicStroke((float) (2 * eraserRadius * zoom), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            int from = Math.max(0, punched - 1);
+            Point prev = map.mapToComponent(new Point(eraserPath.x(from), eraserPath.y(from)));
+            for (int i = punched; i < n; i++) {
+                Point cur = map.mapToComponent(new Point(eraserPath.x(i), eraserPath.y(i)));
+                ig.drawLine(prev.x, prev.y, cur.x, cur.y);
+                prev = cur;
+            }
+            punched = n;
+            ig.dispose();
+        }
+    }
 
-        if (gumAppliedIdx < eraserPath.size() - 1) scheduleGumPreviewWork();
+    // ERASE_SEG: "radius;x,y;x,y;..."
+    private Command eraseSegCommand(PointBuffer ep, int radius) {
+        StringBuilder epStr = new StringBuilder();
+        epStr.append(radius).append(";");
+        for (int i = 0; i < ep.size(); i++) epStr.append(ep.x(i)).append(",").append(ep.y(i)).append(";");
+        return new AnnotateCommand(map.getId(), "ERASE_SEG", epStr.toString());
     }
 
-    // ------------------- Shapes -------------------
-    private SvgPath createPureShapePath(Point p1, Point p2, ShapeType type, int rgb, double w) {
-        SvgPath sp = new SvgPath(UUID.randomUUID().toString(), rgb, w);
+    // Release with eraseSendsResult: the same clipping as ERASE_SEG, on the published state, then ERASE_RESULT
+    private void eraseInBackground() {
+        final GumMask mask = gumMask;
+        final State s = state.get();
+        final PointBuffer ep = new PointBuffer();
+        for (int i = 0; i < eraserPath.size(); i++) ep.add(eraserPath.x(i), eraserPath.y(i));
+        final int radius = eraserRadius;
+        mask.erasing = true;
+
+        new SwingWorker<EraseResult, Void>() {
+            @Override protected EraseResult doInBackground() {
+                EraseResult r = new EraseResult();
+                eraseByGeometricClipping(new ArrayList<>(s.paths), new ArrayList<>(s.texts), ep, radius, r);
+                return r;
+            }
 
-        if (type == ShapeType.ARROW) {
-            SvgPath.Subpath line = new SvgPath.Subpath(p1.x, p1.y);
-            line.segs.add(new SvgPath.LineTo(p2.x, p2.y));
-            sp.subs.add(line);
+            @Override protected void done() {
+                mask.erasing = false;
+                EraseResult r; // null if the worker failed
+                try {
+                    r = get();
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    reportFailure("erasing in the background", e instanceof ExecutionException ? e.getCause() : e);
+                    r = null;
+                }
+
+                // The picture goes once the erase is published, or now if nothing was erased
+                boolean current = gumMask == mask && !dragging;
+                if (r == null || !r.isEmpty()) {
+                    if (current) echoBase = state.get();
+                    // The stroke is sent instead of the result if the worker failed (every client erases it on its
+                    // apply thread, this one too), or if s has been edited since: the result would undo the edits
+                    executeAndSend(r != null && editsApplied == s.edits ? new AnnotateCommand(map.getId(), "ERASE_RESULT", r.encode())
+                            : eraseSegCommand(ep, radius));
+                }
+                else if (current) gumMask = null;
+                frames.requestRepaint();
+            }
+        }.execute();
+    }
+
+    // One gum drag. Preview lists are shallow copies, a path is copied when first cut. The result cuts the
+    // touched paths again with the whole stroke, so it matches ERASE_SEG.
+    private final class EraserSession {
+        final ArrayList<SvgPath> previewPaths;
+        final ArrayList<TextItem> previewTexts;
+        int appliedIdx = 0;
+        final long edits; // of the State the preview started from
+
+        private final int radius;
+        private final IdentityHashMap<SvgPath, SvgPath> owned = new IdentityHashMap<>(); // preview copy -> committed path
+        private final IdentityHashMap<SvgPath.CubicTo, double[]> flat = new IdentityHashMap<>();
+        private final IdentityHashMap<TextItem, Rectangle> textBoxes = new IdentityHashMap<>();
+        private final LinkedHashSet<String> removedTexts = new LinkedHashSet<>();
+        private final EraserShape er = new EraserShape();
+        private ArrayList<SvgPath.Subpath> spare = null; // list replaced by the last cut, reused by the next one
+
+        EraserSession(int radius) {
+            State s = state.get();
+            this.edits = s.edits;
+            this.radius = radius;
+            this.previewPaths = new ArrayList<>(s.paths);
+            this.previewTexts = new ArrayList<>(s.texts);
+        }
 
-            double angle = Math.atan2(p2.y - p1.y, p2.x - p1.x);
-            int head = 20;
+        // Erases along pts[from..to] (MAP coords)
+        void step(PointBuffer pts, int from, int to) {
+            if (radius <= 0) return;
+
+            er.reset(radius);
+            er.addStroke(pts, from, to);
+
+            for (int i = 0; i < previewPaths.size(); i++) {
+                SvgPath sp = previewPaths.get(i);
+                Rectangle box = sp.getBounds();
+                if (!er.touches(box.x - 1, box.y - 1, box.x + box.width + 1, box.y + box.height + 1)) continue;
+
+                boolean own = owned.containsKey(sp);
+                ArrayList<SvgPath.Subpath> out = erasedSubpaths(sp, er, flat, own ? spare : null);
+                if (out == null) continue;
+
+                ArrayList<SvgPath.Subpath> replaced = null;
+                if (own) replaced = sp.subs();
+                else {
+                    // First cut: the preview gets its own path object, the committed one is left as it is.
+                    // Untouched subpaths are shared; the eraser never edits a subpath in place.
+                    SvgPath cp = new SvgPath(sp.id, sp.rgb, sp.w);
+                    previewPaths.set(i, cp);
+                    owned.put(cp, sp);
+                    sp = cp;
+                }
+                sp.setSubpaths(out);
+                if (replaced != null) spare = replaced;
+            }
 
-            Point h1 = new Point((int) (p2.x - head * Math.cos(angle - Math.PI / 6)),
-                    (int) (p2.y - head * Math.sin(angle - Math.PI / 6)));
-            Point h2 = new Point((int) (p2.x - head * Math.cos(angle + Math.PI / 6)),
-                    (int) (p2.y - head * Math.sin(angle + Math.PI / 6)));
+            for (int j = previewTexts.size() - 1; j >= 0; j--) {
+                TextItem t = previewTexts.get(j);
+                Rectangle box = textBoxes.get(t);
+                if (box == null) {
+                    box = textBox(t);
+                    textBoxes.put(t, box);
+                }
+                if (!er.touches(box.x - 1, box.y - 1, box.x + box.width + 1, box.y + box.height + 1)) continue;
 
-            SvgPath.Subpath s1 = new SvgPath.Subpath(p2.x, p2.y);
-            s1.segs.add(new SvgPath.LineTo(h1.x, h1.y));
-            sp.subs.add(s1);
+                for (int k = 0; k < er.n; k++) {
+                    if (eraserHitsBox(er.sx[k] / ERASE_SCALE, er.sy[k] / ERASE_SCALE, radius, box)) {
+                        previewTexts.remove(j);
+                        removedTexts.add(t.id);
+                        break;
+                    }
+                }
+            }
+        }
 
-            SvgPath.Subpath s2 = new SvgPath.Subpath(p2.x, p2.y);
-            s2.segs.add(new SvgPath.LineTo(h2.x, h2.y));
-            sp.subs.add(s2);
+        EraseResult result(PointBuffer pts) {
+            EraseResult r = new EraseResult();
+            if (radius <= 0) return r;
+            er.reset(radius);
+            er.addStroke(pts, 0, pts.size() - 1);
+            for (SvgPath cp : previewPaths) {
+                SvgPath committed = owned.get(cp);
+                if (committed == null) continue;
+                ArrayList<SvgPath.Subpath> out = erasedSubpaths(committed, er, flat, null);
+                if (out == null) continue;
+                SvgPath cut = new SvgPath(committed.id, committed.rgb, committed.w);
+                cut.setSubpaths(out);
+                r.changedPaths.add(cut);
+            }
+            r.removedTexts.addAll(removedTexts);
+            return r;
         }
-        else if (type == ShapeType.RECTANGLE) {
-            int x = Math.min(p1.x, p2.x), y = Math.min(p1.y, p2.y);
-            int rw = Math.abs(p1.x - p2.x), rh = Math.abs(p1.y - p2.y);
+    }
 
-            ArrayList<Point> box = new ArrayList<>();
-            box.add(new Point(x, y));
-            box.add(new Point(x + rw, y));
-            box.add(new Point(x + rw, y + rh));
-            box.add(new Point(x, y + rh));
-            box.add(new Point(x, y));
-            sp.subs.add(polylineToSubpath(box));
+    // ------------------- Frame scheduler -------------------
+    // At most one tick per display frame: queued input, a slice of frame work, one repaint. The first request
+    // after an idle period runs at once.
+    private final class FrameScheduler {
+        private final long frameNanos = 1_000_000_000L / displayRefreshRate();
+        private final javax.swing.Timer timer = new javax.swing.Timer(0, e -> tick());
+        private boolean scheduled = false;
+        private long lastTick = 0;
+
+        FrameScheduler() {
+            timer.setRepeats(false);
+            timer.setCoalesce(true);
+        }
+
+        void requestRepaint() {
+            if (scheduled) return;
+            scheduled = true;
+
+            long wait = lastTick + frameNanos - System.nanoTime();
+            if (wait <= 0) SwingUtilities.invokeLater(this::tick);
+            else {
+                timer.setInitialDelay((int) Math.max(1, wait / 1_000_000L));
+                timer.restart();
+            }
         }
-        else if (type == ShapeType.ELLIPSE) {
-            int x = Math.min(p1.x, p2.x), y = Math.min(p1.y, p2.y);
-            int rw = Math.abs(p1.x - p2.x), rh = Math.abs(p1.y - p2.y);
 
-            double cx = x + rw / 2.0, cy = y + rh / 2.0;
-            double rx = rw / 2.0, ry = rh / 2.0;
+        private void tick() {
+            if (!scheduled) return;
+            scheduled = false;
+            lastTick = System.nanoTime();
 
-            final double k = 0.5522847498307936;
-            double ox = rx * k;
-            double oy = ry * k;
+            applyPendingInput();
+            boolean more = work.runFrame();
+            if (map != null) map.repaint();
+            if (more) requestRepaint();
+        }
+    }
 
-            SvgPath.Subpath ell = new SvgPath.Subpath(cx + rx, cy);
-            ell.segs.add(new SvgPath.CubicTo(cx + rx, cy + oy, cx + ox, cy + ry, cx, cy + ry));
-            ell.segs.add(new SvgPath.CubicTo(cx - ox, cy + ry, cx - rx, cy + oy, cx - rx, cy));
-            ell.segs.add(new SvgPath.CubicTo(cx - rx, cy - oy, cx - ox, cy - ry, cx, cy - ry));
-            ell.segs.add(new SvgPath.CubicTo(cx + ox, cy - ry, cx + rx, cy - oy, cx + rx, cy));
-            sp.subs.add(ell);
+    private static int displayRefreshRate() {
+        int hz = DisplayMode.REFRESH_RATE_UNKNOWN;
+        if (!GraphicsEnvironment.isHeadless()) {
+            hz = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
         }
+        return hz == DisplayMode.REFRESH_RATE_UNKNOWN ? 60 : Math.max(30, Math.min(240, hz));
+    }
 
-        sp.invalidateBounds();
-        return sp;
+    // ------------------- Frame work -------------------
+    // Long EDT work runs in slices, one per frame, by priority: previews, catch-up, maintenance. A task works
+    // until the deadline and returns whether it has finished; if not, it runs again next frame.
+    private static final int INTERACTIVE = 0, CATCH_UP = 1, MAINTENANCE = 2;
+    private static final int[] FRAME_BUDGET_MS = { 6, 4, 2 };
+
+    private interface FrameTask {
+        boolean run(long deadlineNanos);
+    }
+
+    private static final class FrameJob {
+        final FrameTask task;
+        boolean cancelled = false, done = false;
+
+        FrameJob(FrameTask task) { this.task = task; }
+
+        void cancel() { cancelled = true; }
+        boolean isActive() { return !cancelled && !done; }
+    }
+
+    private final class WorkScheduler {
+        private final List<ArrayDeque<FrameJob>> queues = Arrays.asList(new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>());
+
+        FrameJob submit(int priority, FrameTask task) {
+            FrameJob job = new FrameJob(task);
+            queues.get(priority).add(job);
+            frames.requestRepaint();
+            return job;
+        }
+
+        boolean hasWork() {
+            for (ArrayDeque<FrameJob> q : queues) {
+                for (FrameJob j : q) if (!j.cancelled) return true;
+            }
+            return false;
+        }
+
+        // One frame's share (FrameScheduler.tick); true if work is left for the next frame
+        boolean runFrame() {
+            boolean left = false;
+            for (int p = 0; p < queues.size(); p++) {
+                ArrayDeque<FrameJob> q = queues.get(p);
+                q.removeIf(j -> j.cancelled);
+                if (left || q.isEmpty()) {
+                    left |= !q.isEmpty();
+                    continue;
+                }
+
+                long deadline = System.nanoTime() + FRAME_BUDGET_MS[p] * 1_000_000L;
+                for (int n = q.size(); n > 0 && System.nanoTime() < deadline; n--) {
+                    FrameJob job = q.pollFirst();
+                    if (job.cancelled) continue;
+                    boolean finished = true;
+                    try { finished = job.task.run(deadline); }
+                    catch (RuntimeException e) { reportFailure("frame work", e); }
+                    if (finished) job.done = true;
+                    else if (!job.cancelled) q.addLast(job);
+                }
+                left |= !q.isEmpty();
+            }
+            return left;
+        }
+    }
+
+    // Catch-up frame work: the style batches follow the published State over the next frames, and the shapes of
+    // the batches last drawn stale are rebuilt. A draw only rebuilds them in what is left of its budget, which
+    // drawing the batches before them can use up frame after frame.
+    private void catchUp() {
+        if (catchUpJob == null || !catchUpJob.isActive()) {
+            catchUpJob = work.submit(CATCH_UP, deadline -> batches.sync(state.get(), deadline)
+                    && batches.rebuildVisible(lastVisibleMap, deadline));
+        }
+    }
+
+    // ------------------- Adaptive quality -------------------
+    // Input, scrolling and zooming put the map in draft mode (no antialiasing, hairlines); one repaint
+    // qualityIdleMs after the last of them brings full quality back.
+    private final class QualityGovernor {
+        private final javax.swing.Timer settle = new javax.swing.Timer(0, e -> settled());
+        private long lastInput = Long.MIN_VALUE / 2;
+        private Rectangle lastView = null;
+        private double lastZoom = 0;
+
+        QualityGovernor() {
+            settle.setRepeats(false);
+        }
+
+        void interacted() {
+            if (!adaptiveQuality) return;
+            lastInput = System.nanoTime();
+            settle.setInitialDelay(Math.max(1, qualityIdleMs));
+            settle.restart();
+        }
+
+        // Called at the start of each paint; true while the map should be drawn in draft mode
+        boolean draft(Map map, double zoom) {
+            if (!adaptiveQuality) return false;
+
+            Rectangle view = map.getView() == null ? null : map.getView().getVisibleRect();
+            if (lastView != null && view != null && (!view.equals(lastView) || zoom != lastZoom)) interacted();
+            lastView = view;
+            lastZoom = zoom;
+
+            return dragging || System.nanoTime() - lastInput < qualityIdleMs * 1_000_000L;
+        }
+
+        private void settled() {
+            if (map != null) map.repaint();
+        }
+    }
+
+    // Draft hints on a copy of g (dispose it after use): g keeps its own hints for whatever is drawn afterwards
+    private static Graphics2D draftGraphics(Graphics2D g) {
+        Graphics2D d = (Graphics2D) g.create();
+        d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_NORMALIZE);
+        d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        return d;
+    }
+
+    // ------------------- Predictive ink -------------------
+    // While drawing, a half-transparent tail carries the pointer's last motion on for predictInkMs. It is made
+    // again on every paint and never becomes part of the stroke.
+    private final class InkPredictor {
+        private static final int WINDOW = 4;              // samples the motion is estimated from
+        private static final long MIN_GAP_NANOS = 2_000_000L;   // closer samples (coalesced events) are merged
+        private static final long STALE_NANOS = 50_000_000L;    // no sample for that long: the pointer has stopped
+        private static final long STEP_NANOS = 4_000_000L;
+        private static final double MAX_TURN = Math.PI / 2;     // total turn of a tail
+
+        private final double[] xs = new double[WINDOW], ys = new double[WINDOW];
+        private final long[] ts = new long[WINDOW];
+        private int n = 0;
+        private final javax.swing.Timer stopped = new javax.swing.Timer(0, e -> { if (map != null) map.repaint(); });
+        final PointBuffer tail = new PointBuffer();
+
+        InkPredictor() {
+            stopped.setRepeats(false);
+        }
+
+        void reset() {
+            n = 0;
+            tail.clear();
+            stopped.stop();
+        }
+
+        void sample(int x, int y) {
+            if (predictInkMs <= 0) return;
+            long now = System.nanoTime();
+            if (n > 0 && now - ts[n - 1] < MIN_GAP_NANOS) n--; // same event burst: keep the latest position
+            else if (n == WINDOW) {
+                System.arraycopy(xs, 1, xs, 0, WINDOW - 1);
+                System.arraycopy(ys, 1, ys, 0, WINDOW - 1);
+                System.arraycopy(ts, 1, ts, 0, WINDOW - 1);
+                n--;
+            }
+            xs[n] = x; ys[n] = y; ts[n] = now;
+            n++;
+
+            // A tail drawn now must go once the pointer stops, when no sample would ask for a repaint
+            stopped.setInitialDelay((int) (STALE_NANOS / 1_000_000L) + 1);
+            stopped.restart();
+        }
+
+        // Fills tail from the stroke's last point onwards; false if there is nothing to predict
+        boolean predict(PointBuffer stroke) {
+            tail.clear();
+            if (predictInkMs <= 0 || n < 3 || stroke.isEmpty()) return false;
+
+            long now = System.nanoTime();
+            if (now - ts[n - 1] > STALE_NANOS) return false;
+
+            // Velocity of the last interval, turning rate between the first and last intervals of the window
+            double dt2 = (ts[n - 1] - ts[n - 2]) / 1e9, dt1 = (ts[1] - ts[0]) / 1e9;
+            double vx = (xs[n - 1] - xs[n - 2]) / dt2, vy = (ys[n - 1] - ys[n - 2]) / dt2;
+            double speed = Math.hypot(vx, vy);
+            if (speed < 1) return false;
+            double turn = Math.atan2(vy, vx) - Math.atan2(ys[1] - ys[0], xs[1] - xs[0]);
+            if (turn > Math.PI) turn -= 2 * Math.PI;
+            else if (turn < -Math.PI) turn += 2 * Math.PI;
+            double omega = turn / ((ts[n - 1] - ts[0]) / 1e9 - (dt1 + dt2) / 2);
+
+            // From the last sample to the paint (at most predictInkMs of it), then predictInkMs beyond
+            long ahead = Math.min(now - ts[n - 1], predictInkMs * 1_000_000L) + predictInkMs * 1_000_000L;
+            double horizon = ahead / 1e9;
+            if (Math.abs(omega) * horizon > MAX_TURN) omega = Math.copySign(MAX_TURN / horizon, omega);
+
+            tail.add(stroke.x(stroke.size() - 1), stroke.y(stroke.size() - 1));
+            double x = xs[n - 1], y = ys[n - 1], heading = Math.atan2(vy, vx);
+            for (long t = 0; t < ahead; t += STEP_NANOS) {
+                double dt = Math.min(STEP_NANOS, ahead - t) / 1e9;
+                heading += omega * dt;
+                x += speed * dt * Math.cos(heading);
+                y += speed * dt * Math.sin(heading);
+                tail.add((int) Math.round(x), (int) Math.round(y));
+            }
+            return tail.size() > 1;
+        }
     }
 
-    private SvgPath.Subpath polylineToSubpath(List<Point> pts) {
-        SvgPath.Subpath sp = new SvgPath.Subpath(pts.get(0).x, pts.get(0).y);
-        for (int i = 1; i < pts.size(); i++) {
-            Point p = pts.get(i);
-            sp.segs.add(new SvgPath.LineTo(p.x, p.y));
+    // ------------------- Shapes -------------------
+    // Shapes are symbol instances: the drag only decides the transform of a shared geometry
+    private SvgPath createPureShapePath(String id, Point p1, Point p2, ShapeType type, int rgb, double w) {
+        AffineTransform at = new AffineTransform();
+        Symbol sym;
+
+        if (type == ShapeType.ARROW) {
+            // One symbol per length (map units): rotated and moved to the start point
+            sym = Symbol.create("arrow:" + Math.round(p1.distance(p2)));
+            at.translate(p1.x, p1.y);
+            at.rotate(Math.atan2(p2.y - p1.y, p2.x - p1.x));
+        }
+        else if (type == ShapeType.RECTANGLE || type == ShapeType.ELLIPSE) {
+            int x = Math.min(p1.x, p2.x), y = Math.min(p1.y, p2.y);
+            int rw = Math.abs(p1.x - p2.x), rh = Math.abs(p1.y - p2.y);
+
+            if (type == ShapeType.RECTANGLE) {
+                sym = Symbol.create("rect");
+                at.translate(x, y);
+                at.scale(rw, rh);
+            }
+            else {
+                sym = Symbol.create("ellipse");
+                at.translate(x + rw / 2.0, y + rh / 2.0);
+                at.scale(rw / 2.0, rh / 2.0);
+            }
+        }
+        else if (type == ShapeType.CUSTOM && customSymbol != null) {
+            // Stretch the imported template over the dragged box (mirrored if dragged backwards)
+            Rectangle tb = customShape.getBounds();
+            double sx = tb.width > 0 ? (p2.x - p1.x) / (double) tb.width : 1.0;
+            double sy = tb.height > 0 ? (p2.y - p1.y) / (double) tb.height : 1.0;
+            at.translate(p1.x, p1.y);
+            at.scale(sx, sy);
+            at.translate(-tb.x, -tb.y);
+            sym = customSymbol;
+        }
+        else {
+            return new SvgPath(id, rgb, w);
         }
+        return new SymbolInstance(id, rgb, w, sym, at);
+    }
+
+    private SvgPath.Subpath polylineToSubpath(PointBuffer pts) {
+        SvgPath.Subpath sp = new SvgPath.Subpath(pts.x(0), pts.y(0));
+        sp.segs.ensureCapacity(pts.size() - 1);
+        for (int i = 1; i < pts.size(); i++) sp.segs.add(new SvgPath.LineTo(pts.x(i), pts.y(i)));
         return sp;
     }
 
     // ------------------- Network Sync & State -------------------
+    // A local change: applied here, then sent to the other players and the log (if a module is loaded, which
+    // headless replays do without)
+    private void executeAndSend(Command c) {
+        c.execute();
+        GameModule gm = GameModule.getGameModule();
+        if (gm != null) gm.sendAndLog(c);
+    }
+
     @Override public Command decode(String command) {
-        return command.startsWith(COMMAND_PREFIX) ? new AnnotateCommand(command.substring(COMMAND_PREFIX.length())) : null;
+        if (!command.startsWith(COMMAND_PREFIX)) return null;
+        InputRecording r = recording;
+        if (r != null && map != null && command.startsWith(COMMAND_PREFIX + map.getId() + "||")) r.received(command);
+        return new AnnotateCommand(command.substring(COMMAND_PREFIX.length()));
     }
 
     @Override public String encode(Command c) {
         return c instanceof AnnotateCommand ? COMMAND_PREFIX + ((AnnotateCommand) c).payload : null;
     }
 
+    // A sync (a player rejoining) and a load run setup(false), the restore commands, then setup(true): what was
+    // cleared is held until then for the restore to reuse (see restoreState)
     @Override public void setup(boolean gameStarting) {
         if (!gameStarting) {
-            paths.clear();
-            texts.clear();
-            if (map != null) map.repaint();
+            enqueue(() -> {
+                heldPaths.addAll(paths);
+                heldTexts.addAll(texts);
+                clearAnnotations();
+                clearSymbols();
+                abortStateInflater();
+            });
+        }
+        else {
+            enqueue(() -> {
+                heldPaths = new ArrayList<>();
+                heldTexts = new ArrayList<>();
+            });
         }
     }
 
+    // The published state, then the commands executed since that it does not include yet: called on the EDT
+    // (saves, players joining), it does not wait for the apply thread
     @Override public Command getRestoreCommand() {
-        return new AnnotateCommand(map.getId(), "SET_STATE", encodeState());
+        ArrayList<String> pending = new ArrayList<>();
+        State s = stateWithPending(pending);
+        Command c = compressRestore ? encodeCompressedState(s) : restoreCommand(s);
+        for (String p : pending) c.append(new AnnotateCommand(p));
+        return c;
+    }
+
+    // Whether the published state has any drawing or text (symbols alone draw nothing); offline tools call
+    // awaitApplied() first
+    boolean hasAnnotations() {
+        State s = state.get();
+        return !s.paths.isEmpty() || !s.texts.isEmpty();
     }
 
     private class AnnotateCommand extends Command {
@@ -845,84 +2394,1403 @@ public class MapAnnotator extends AbstractConfigurable
         AnnotateCommand(String mapId, String action, String data) { this.payload = mapId + "||" + action + "||" + data; }
         AnnotateCommand(String fullPayload) { this.payload = fullPayload; }
 
+        // Parsing and applying happen on the apply thread, in the order commands are executed
         @Override
         protected void executeCommand() {
-            if (map == null) return;
+            if (map == null || !payload.startsWith(map.getId() + "||")) return;
+            final String p = payload;
+            enqueue(() -> applyCommand(p), p);
+        }
 
-            String[] parts = payload.split("\\Q||\\E", 3);
-            if (parts.length < 3 || !parts[0].equals(map.getId())) return;
+        @Override protected Command myUndoCommand() { return null; }
+    }
 
-            String action = parts[1], data = parts[2];
+    // ------------------- Command application -------------------
+    // A single worker applies queued changes to the working copy (paths / texts / pathIndex) and publishes
+    // a new State when the queue runs dry. Published lists and the objects in them are never modified:
+    // changes replace paths and texts instead. Errors in a command skip that command only.
+
+    // The committed annotations after a given number of applied changes
+    private static final class State {
+        static final State EMPTY = new State(0, 0, new ArrayList<>(), new ArrayList<>(), Collections.emptyMap());
+
+        final long version;
+        final long edits; // editsApplied when published
+        final List<SvgPath> paths;
+        final List<TextItem> texts;
+        final java.util.Map<String, Symbol> symbols; // unmodifiable, shared by States until a symbol is added
+        private volatile HashMap<String, SvgPath> index = null; // built on the first lookup by id
+
+        State(long version, long edits, ArrayList<SvgPath> paths, ArrayList<TextItem> texts, java.util.Map<String, Symbol> symbols) {
+            this.version = version;
+            this.edits = edits;
+            this.paths = Collections.unmodifiableList(paths);
+            this.texts = Collections.unmodifiableList(texts);
+            this.symbols = symbols;
+        }
 
-            if (action.equals("ADD_PATH")) {
-                String[] p = data.split(";", 4);
-                paths.removeIf(x -> x.id.equals(p[0]));
-                paths.add(new SvgPath(p[0], Integer.parseInt(p[1]), Double.parseDouble(p[2]), p.length > 3 ? p[3] : ""));
+        SvgPath path(String id) {
+            HashMap<String, SvgPath> m = index;
+            if (m == null) {
+                m = new HashMap<>(paths.size() * 2);
+                for (SvgPath sp : paths) m.put(sp.id, sp);
+                index = m;
             }
-            else if (action.equals("ADD_TEXT")) {
-                String[] t = data.split(";", 7);
-                texts.removeIf(x -> x.id.equals(t[0]));
-                texts.add(new TextItem(t[0], Integer.parseInt(t[1]), Integer.parseInt(t[2]),
-                        Integer.parseInt(t[3]), t[4], Integer.parseInt(t[5]), unb64(t[6])));
-            }
-            else if (action.equals("REMOVE_TEXT")) {
-                texts.removeIf(t -> t.id.equals(data));
-            }
-            else if (action.equals("ERASE_PATH")) {
-                String[] eData = data.split(";");
-                int radius = Integer.parseInt(eData[0]);
-                ArrayList<Point> ep = new ArrayList<>();
-                for (int i = 1; i < eData.length; i++) {
-                    if (eData[i].isEmpty()) continue;
-                    String[] xy = eData[i].split(",");
-                    if (xy.length != 2) continue;
-                    ep.add(new Point(Integer.parseInt(xy[0]), Integer.parseInt(xy[1])));
+            return m.get(id);
+        }
+    }
+
+    private final transient ThreadPoolExecutor applier = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "MapAnnotator apply");
+                t.setDaemon(true);
+                return t;
+            });
+    private final transient ConcurrentLinkedQueue<Runnable> applyQueue = new ConcurrentLinkedQueue<>();
+    private final transient AtomicBoolean applyScheduled = new AtomicBoolean(false);
+    private long appliedVersion = 0; // apply thread only
+    private long enqueuedOps = 0;    // guarded by applyQueue: op n is applied as version n
+
+    // A command executed but not in the published state yet (see stateWithPending)
+    private static final class PendingCommand {
+        final long version;
+        final String payload;
+        PendingCommand(long version, String payload) { this.version = version; this.payload = payload; }
+    }
+    private final transient ConcurrentLinkedQueue<PendingCommand> pendingCommands = new ConcurrentLinkedQueue<>();
+
+    private void enqueue(Runnable op) { enqueue(op, null); }
+
+    // payload: the command the op applies, kept until a published state includes it
+    private void enqueue(Runnable op, String payload) {
+        synchronized (applyQueue) {
+            enqueuedOps++;
+            if (payload != null) pendingCommands.add(new PendingCommand(enqueuedOps, payload));
+            applyQueue.add(op);
+        }
+        if (applyScheduled.compareAndSet(false, true)) applier.execute(this::drainApplyQueue);
+    }
+
+    // The published state, and into 'pending' the payloads of the commands executed after it, in order; digest
+    // traffic is left out, a restore or recording replays it for nothing. Neither waits for the apply thread.
+    private static final java.util.Set<String> DIGEST_ACTIONS =
+            new HashSet<>(Arrays.asList("DIGEST", "DIGEST_REQ", "DIGEST_TREE", "PULL"));
+
+    private State stateWithPending(List<String> pending) {
+        // Copied before the state is read: a command published in the meantime is in both, and skipped
+        ArrayList<PendingCommand> queued = new ArrayList<>(pendingCommands);
+        State s = state.get();
+        for (PendingCommand c : queued) {
+            if (c.version <= s.version) continue;
+            int a = c.payload.indexOf("||"), b = c.payload.indexOf("||", a + 2);
+            if (b < 0 || !DIGEST_ACTIONS.contains(c.payload.substring(a + 2, b))) pending.add(c.payload);
+        }
+        return s;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MapAnnotator.class);
+    private static final java.util.Set<String> reported = ConcurrentHashMap.newKeySet();
+
+    // A failure goes to VASSAL's error log, and the first of each kind to the chat; the apply thread and the frame
+    // ticks go on with the next command or task
+    private static void reportFailure(String what, Throwable e) {
+        log.error("Drawing annotator: {} failed", what, e);
+        if (reported.add(what)) SwingUtilities.invokeLater(() -> {
+            GameModule gm = GameModule.getGameModule();
+            if (gm != null) gm.warn("Drawing annotator: " + what + " failed (details in the error log)");
+        });
+    }
+
+    // Malformed data from another client is logged and dropped
+    private static void reportBadData(String action, String data) {
+        log.warn("Drawing annotator: ignored malformed {} ({})", action, data.length() > 80 ? data.substring(0, 80) + "..." : data);
+    }
+
+    private void drainApplyQueue() {
+        while (true) {
+            long publishAt = System.nanoTime() + PUBLISH_INTERVAL_NANOS;
+            Runnable op;
+            while ((op = applyQueue.poll()) != null) {
+                appliedVersion++;
+                batches.begin(appliedVersion);
+                try { op.run(); }
+                catch (RuntimeException e) { reportFailure("applying a command", e); }
+
+                if (System.nanoTime() > publishAt) {
+                    publish();
+                    publishAt = System.nanoTime() + PUBLISH_INTERVAL_NANOS;
                 }
-                eraseByGeometricClipping(paths, texts, ep, radius);
-            }
-            else if (action.equals("CLEAR_ALL")) {
-                paths.clear(); texts.clear();
-            }
-            else if (action.equals("SET_STATE")) {
-                decodeState(data);
             }
+            publish();
 
-            map.repaint();
+            // Something queued between the last poll and clearing the flag is picked up here
+            applyScheduled.set(false);
+            if (applyQueue.isEmpty() || !applyScheduled.compareAndSet(false, true)) return;
         }
+    }
 
-        @Override protected Command myUndoCommand() { return null; }
+    private void publish() {
+        if (state.get().version == appliedVersion) return;
+        state.set(new State(appliedVersion, editsApplied, new ArrayList<>(paths), new ArrayList<>(texts), publishedSymbols));
+        PendingCommand c;
+        while ((c = pendingCommands.peek()) != null && c.version <= appliedVersion) pendingCommands.poll();
+        SwingUtilities.invokeLater(frames::requestRepaint);
     }
 
-    private String encodeState() {
-        ArrayList<String> items = new ArrayList<>();
-        for (SvgPath p : paths) {
-            String d = p.toSvgData();
-            if (!d.isEmpty()) items.add("P;" + p.id + ";" + p.rgb + ";" + p.w + ";" + d);
+    // Waits until everything executed so far is applied and published (restore, export, headless replay)
+    void awaitApplied() {
+        CountDownLatch done = new CountDownLatch(1);
+        enqueue(() -> {
+            publish();
+            done.countDown();
+        });
+        try { done.await(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    private void applyCommand(String payload) {
+        String[] parts = payload.split("\\Q||\\E", 3);
+        if (parts.length < 3) return;
+
+        String action = parts[1], data = parts[2];
+
+        Runnable op = parseItemOp(action, data);
+        if (op != null) {
+            op.run();
         }
-        for (TextItem t : texts) {
-            items.add("T;" + t.id + ";" + t.x + ";" + t.y + ";" + t.rgb + ";" + t.fontName + ";" + t.fontSize + ";" + b64(t.text));
+        else if (action.equals("BATCH")) {
+            applyBatch(data);
+        }
+        else if (action.equals("ERASE_RESULT")) {
+            applyEraseResult(data);
+        }
+        else if (action.equals("DIGEST")) {
+            onDigest(data);
+        }
+        else if (action.equals("DIGEST_REQ")) {
+            reply("DIGEST_TREE", treeData(data));
+        }
+        else if (action.equals("DIGEST_TREE")) {
+            reply("PULL", pullData(data));
+        }
+        else if (action.equals("PULL")) {
+            reply("RESYNC", resyncData(data));
+        }
+        else if (action.equals("RESYNC")) {
+            onResync(data);
+        }
+        else if (action.equals("TRANSFORM")) {
+            applyTransform(data);
+        }
+        else if (action.equals("CLEAR_ALL")) {
+            clearAnnotations();
+        }
+        else if (action.equals("SET_STATE")) {
+            decodeState(data);
+        }
+        else if (action.equals("SET_STATE_Z")) {
+            beginStateInflater(data);
+        }
+        else if (action.equals("STATE_CHUNK")) {
+            feedStateInflater(data);
+        }
+        else if (action.equals("STATE_END")) {
+            finishStateInflater();
         }
-        return String.join("@@", items);
     }
 
-    private void decodeState(String data) {
-        paths.clear(); texts.clear();
-        if (data == null || data.isEmpty()) return;
+    // ADD_PATH, ADD_INSTANCE, SYMBOL, ADD_TEXT(_X), REMOVE_TEXT, ERASE_SEG and MERGE (alone or in a BATCH): parsed
+    // first, applied by the returned op, so a malformed one throws before anything changes. Null for any other action.
+    private Runnable parseItemOp(String action, String data) {
+        if (action.equals("ADD_PATH")) {
+            String[] p = data.split(";", 4);
+            SvgPath sp = new SvgPath(p[0], Integer.parseInt(p[1]), Double.parseDouble(p[2]), p.length > 3 ? p[3] : "");
+            return () -> putPath(sp);
+        }
+        if (action.equals("ADD_TEXT") || action.equals("ADD_TEXT_X")) {
+            String[] t = data.split(";", 7);
+            TextItem ti = new TextItem(t[0], Double.parseDouble(t[1]), Double.parseDouble(t[2]),
+                    Integer.parseInt(t[3]), t[4], Double.parseDouble(t[5]), unb64(t[6]));
+            return () -> putText(ti);
+        }
+        if (action.equals("ADD_INSTANCE")) {
+            String[] p = data.split(";", 10);
+            String id = p[0], symbolId = p[3];
+            int rgb = Integer.parseInt(p[1]);
+            double w = Double.parseDouble(p[2]);
+            AffineTransform at = new AffineTransform(Double.parseDouble(p[4]), Double.parseDouble(p[5]), Double.parseDouble(p[6]),
+                    Double.parseDouble(p[7]), Double.parseDouble(p[8]), Double.parseDouble(p[9]));
+            return () -> {
+                Symbol sym = symbol(symbolId);
+                if (sym != null) putPath(new SymbolInstance(id, rgb, w, sym, at));
+            };
+        }
+        if (action.equals("SYMBOL")) {
+            String[] p = data.split(";", 2);
+            String svg = p[1];
+            return () -> defineSymbol(p[0], svg);
+        }
+        if (action.equals("MERGE")) {
+            String[] ids = data.split(",");
+            return () -> mergePaths(ids);
+        }
+        if (action.equals("REMOVE_TEXT")) {
+            return () -> {
+                texts.removeIf(t -> t.id.equals(data));
+                digestRemovedText(data);
+            };
+        }
+        // ERASE_SEG: an eraser stroke (radius;x,y;x,y;...) for the segment eraser. Versions before it sent ERASE_PATH
+        // and cut it as polylines; old logs still replay with that cut (see Legacy eraser).
+        if (action.equals("ERASE_SEG") || action.equals("ERASE_PATH")) {
+            final boolean legacy = action.equals("ERASE_PATH");
+            String[] eData = data.split(";");
+            int radius = Integer.parseInt(eData[0]);
+            PointBuffer ep = new PointBuffer();
+            for (int i = 1; i < eData.length; i++) {
+                if (eData[i].isEmpty()) continue;
+                String[] xy = eData[i].split(",");
+                if (xy.length != 2) continue;
+                ep.add(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+            }
+            return () -> {
+                EraseResult er = new EraseResult();
+                if (legacy) eraseAsPolylines(paths, texts, ep, radius, er);
+                else eraseByGeometricClipping(paths, texts, ep, radius, er);
+                if (!er.isEmpty()) editsApplied++;
+                for (SvgPath sp : er.changedPaths) {
+                    batches.replaced(pathIndex.put(sp.id, sp), sp);
+                    digestChanged(sp);
+                }
+                for (String id : er.removedTexts) digestRemovedText(id);
+            };
+        }
+        return null;
+    }
 
+    // BATCH items: "ACTION;data" sub-operations joined by "@@", applied in order as a single change (one
+    // version, one published State, one repaint). Every item is parsed before the first one is applied; an
+    // unknown or malformed one is logged and skipped, so every client of this version drops the same items.
+    private void applyBatch(String data) {
+        if (data == null || data.isEmpty()) return;
+        ArrayList<Runnable> ops = new ArrayList<>();
         for (String item : data.split("@@")) {
             String[] parts = item.split(";", 2);
+            Runnable op;
+            try {
+                op = parts.length < 2 ? null : parseItemOp(parts[0], parts[1]);
+            }
+            catch (RuntimeException e) {
+                op = null;
+            }
+            if (op == null) reportBadData("BATCH item", item);
+            else ops.add(op);
+        }
+        for (Runnable op : ops) op.run();
+    }
+
+    // One message for several of the payloads above ("ACTION;data" each)
+    private Command batchCommand(List<String> items) {
+        return new AnnotateCommand(map.getId(), "BATCH", String.join("@@", items));
+    }
+
+    private static String addPathItem(SvgPath sp) {
+        return "ADD_PATH;" + sp.id + ";" + sp.rgb + ";" + sp.w + ";" + sp.toSvgData();
+    }
+
+    private static String addTextItem(TextItem t) {
+        return (t.fractional() ? "ADD_TEXT_X;" : "ADD_TEXT;") + t.data();
+    }
+
+    // Upsert: a re-added id moves to the top, like a new stroke
+    private void putPath(SvgPath sp) {
+        SvgPath old = pathIndex.put(sp.id, sp);
+        if (old != null) {
+            paths.remove(old);
+            batches.removed(old);
+            editsApplied++;
+        }
+        paths.add(sp);
+        batches.added(sp);
+        digestChanged(sp);
+    }
+
+    // Upsert: an edited text moves to the top
+    private void putText(TextItem t) {
+        if (texts.removeIf(x -> x.id.equals(t.id))) editsApplied++;
+        texts.add(t);
+        digestChanged(t);
+    }
+
+    private void clearAnnotations() {
+        editsApplied++;
+        paths.clear();
+        texts.clear();
+        pathIndex.clear();
+        batches.clear();
+        clearDigest();
+    }
+
+    // ERASE_RESULT items: "P;id;svg" new geometry, "D;id" path erased completely, "T;id" text erased
+    private void applyEraseResult(String data) {
+        if (data == null || data.isEmpty()) return;
+        editsApplied++;
+        HashSet<String> deadPaths = new HashSet<>(), deadTexts = new HashSet<>();
+        HashMap<String, SvgPath> cut = new HashMap<>();
+
+        for (String item : data.split("@@")) {
+            String[] parts = item.split(";", 3);
+            if (parts.length < 2) continue;
+
+            if (parts[0].equals("P") && parts.length == 3) {
+                SvgPath old = pathIndex.get(parts[1]);
+                if (old != null) {
+                    SvgPath sp = new SvgPath(old.id, old.rgb, old.w, parts[2]);
+                    pathIndex.put(sp.id, sp);
+                    batches.replaced(old, sp);
+                    cut.put(sp.id, sp);
+                    digestChanged(sp);
+                }
+            }
+            else if (parts[0].equals("D")) {
+                SvgPath sp = pathIndex.remove(parts[1]);
+                if (sp != null) {
+                    deadPaths.add(sp.id);
+                    batches.removed(sp);
+                    digestRemovedPath(sp.id);
+                }
+            }
+            else if (parts[0].equals("T")) {
+                deadTexts.add(parts[1]);
+                digestRemovedText(parts[1]);
+            }
+        }
+
+        if (!cut.isEmpty()) paths.replaceAll(p -> cut.getOrDefault(p.id, p));
+        if (!deadPaths.isEmpty()) paths.removeIf(p -> deadPaths.contains(p.id));
+        if (!deadTexts.isEmpty()) texts.removeIf(t -> deadTexts.contains(t.id));
+    }
+
+    // Offline compaction only (AnnotationCompactor): drops polyline points that lie within tolerance
+    // (map units) of the simplified line. Shapes and paths with curves are left alone.
+    void simplifyPaths(double tolerance) {
+        if (tolerance <= 0) return;
+        enqueue(() -> {
+            HashMap<String, SvgPath> simpler = new HashMap<>();
+            for (SvgPath old : paths) {
+                if (old instanceof SymbolInstance || old.hasCurves()) continue;
+
+                SvgPath sp = new SvgPath(old.id, old.rgb, old.w);
+                boolean changed = false;
+                for (SvgPath.Subpath sub : old.subs()) {
+                    SvgPath.Subpath s = simplify(sub, tolerance);
+                    changed |= s != sub;
+                    sp.subs().add(s);
+                }
+                if (!changed) continue;
+                pathIndex.put(sp.id, sp);
+                batches.replaced(old, sp);
+                simpler.put(sp.id, sp);
+                digestChanged(sp);
+            }
+            if (!simpler.isEmpty()) paths.replaceAll(p -> simpler.getOrDefault(p.id, p));
+        });
+    }
+
+    // Douglas-Peucker on a straight-line subpath; returns sub itself when no point can go
+    private static SvgPath.Subpath simplify(SvgPath.Subpath sub, double tolerance) {
+        int n = sub.segs.size() + 1;
+        if (n < 3) return sub;
+        double[] x = new double[n], y = new double[n];
+        x[0] = sub.startX;
+        y[0] = sub.startY;
+        for (int i = 1; i < n; i++) {
+            SvgPath.LineTo l = (SvgPath.LineTo) sub.segs.get(i - 1);
+            x[i] = l.x;
+            y[i] = l.y;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        double tol2 = tolerance * tolerance;
+        ArrayDeque<int[]> todo = new ArrayDeque<>();
+        todo.push(new int[] { 0, n - 1 });
+        int kept = 2;
+        while (!todo.isEmpty()) {
+            int[] r = todo.pop();
+            int far = -1;
+            double farD2 = tol2;
+            for (int i = r[0] + 1; i < r[1]; i++) {
+                double d2 = segDist2(x[r[0]], y[r[0]], x[r[1]], y[r[1]], x[i], y[i]);
+                if (d2 > farD2) { far = i; farD2 = d2; }
+            }
+            if (far < 0) continue;
+            keep[far] = true;
+            kept++;
+            todo.push(new int[] { r[0], far });
+            todo.push(new int[] { far, r[1] });
+        }
+        if (kept == n) return sub;
+
+        SvgPath.Subpath s = new SvgPath.Subpath(x[0], y[0]);
+        for (int i = 1; i < n; i++) if (keep[i]) s.segs.add(new SvgPath.LineTo(x[i], y[i]));
+        return s;
+    }
+
+    private void forEachStateItem(State s, Consumer<String> out) {
+        // Every defined symbol, used or not: clients that joined later must know the same ones
+        for (Symbol sym : s.symbols.values()) {
+            if (!sym.isBuiltin()) out.accept("S;" + sym.id + ";" + sym.geometry.toSvgData());
+        }
+        for (SvgPath p : s.paths) {
+            String item = stateItem(p);
+            if (item != null) out.accept(item);
+        }
+        for (TextItem t : s.texts) out.accept(stateItem(t));
+    }
+
+    // "P" (or "I" for an instance) item of a path; null if nothing is left to draw (such paths are not restored)
+    private static String stateItem(SvgPath p) {
+        String item = p.item;
+        if (item == null) {
+            if (p instanceof SymbolInstance) item = "I;" + ((SymbolInstance) p).instanceData();
+            else {
+                String d = p.toSvgData();
+                item = d.isEmpty() ? "" : "P;" + p.id + ";" + p.rgb + ";" + p.w + ";" + d;
+            }
+            p.item = item;
+        }
+        return item.isEmpty() ? null : item;
+    }
+
+    private static String stateItem(TextItem t) {
+        String item = t.item;
+        if (item == null) {
+            item = (t.fractional() ? "TX;" : "T;") + t.data();
+            t.item = item;
+        }
+        return item;
+    }
+
+    // 'head' followed by the state items, copied once into a buffer of the final size
+    private String encodeState(State s, String head) {
+        ArrayList<String> items = new ArrayList<>();
+        forEachStateItem(s, items::add);
+        int size = head.length() + Math.max(0, items.size() - 1) * 2;
+        for (String item : items) size += item.length();
+
+        StringBuilder sb = new StringBuilder(size).append(head);
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) sb.append("@@");
+            sb.append(items.get(i));
+        }
+        return sb.toString();
+    }
+
+    private AnnotateCommand restoreCommand(State s) {
+        return new AnnotateCommand(encodeState(s, map.getId() + "||SET_STATE||"));
+    }
+
+    private void decodeState(String data) {
+        restoreState(data == null || data.isEmpty() ? Collections.emptyList() : Arrays.asList(data.split("@@")));
+    }
+
+    // What setup(false) cleared, until the game starts (apply thread only)
+    private ArrayList<SvgPath> heldPaths = new ArrayList<>();
+    private ArrayList<TextItem> heldTexts = new ArrayList<>();
+
+    // The items replace the annotations. A plain path or a text this client holds as the same state item (now, or
+    // before setup(false)) is kept rather than parsed again, with its cached bounds, digest and text layout. VASSAL
+    // sends a rejoining player the whole state all the same: the provider cannot know what the joiner holds.
+    private void restoreState(List<String> items) {
+        HashMap<String, Object> held = new HashMap<>();
+        for (List<SvgPath> ps : Arrays.asList(heldPaths, paths)) {
+            for (SvgPath sp : ps) {
+                String item = sp.getClass() == SvgPath.class ? stateItem(sp) : null;
+                if (item != null) held.put(item, sp);
+            }
+        }
+        for (List<TextItem> ts : Arrays.asList(heldTexts, texts)) {
+            for (TextItem t : ts) held.put(stateItem(t), t);
+        }
+        heldPaths = new ArrayList<>();
+        heldTexts = new ArrayList<>();
+        clearAnnotations();
+
+        for (String item : items) {
+            Object mine = held.remove(item);
+            if (mine instanceof SvgPath) putPath((SvgPath) mine);
+            else if (mine instanceof TextItem) {
+                texts.add((TextItem) mine);
+                digestChanged((TextItem) mine);
+            }
+            else decodeStateItem(item);
+        }
+    }
+
+    private void decodeStateItem(String item) {
+        String[] parts = item.split(";", 2);
+        if (parts.length < 2) return;
+
+        if (parts[0].equals("P")) {
+            String[] p = parts[1].split(";", 4);
+            putPath(new SvgPath(p[0], Integer.parseInt(p[1]), Double.parseDouble(p[2]), p.length > 3 ? p[3] : ""));
+        }
+        else if (parts[0].equals("I")) {
+            parseItemOp("ADD_INSTANCE", parts[1]).run();
+        }
+        else if (parts[0].equals("S")) {
+            parseItemOp("SYMBOL", parts[1]).run();
+        }
+        else if (parts[0].equals("T") || parts[0].equals("TX")) {
+            String[] t = parts[1].split(";", 7);
+            TextItem ti = new TextItem(t[0], Double.parseDouble(t[1]), Double.parseDouble(t[2]),
+                    Integer.parseInt(t[3]), t[4], Double.parseDouble(t[5]), unb64(t[6]));
+            texts.add(ti);
+            digestChanged(ti);
+        }
+    }
+
+    // ------------------- Symbols -------------------
+    // Known symbol, or a built-in one created on first use; null if the id is unknown (its SYMBOL never arrived)
+    private Symbol symbol(String id) {
+        Symbol sym = symbols.get(id);
+        if (sym == null) {
+            sym = Symbol.create(id);
+            if (sym != null) addSymbol(sym);
+        }
+        return sym;
+    }
+
+    // Content-addressed: the first definition of an id wins, later ones are the same geometry
+    private void defineSymbol(String id, String svg) {
+        if (symbols.containsKey(id) || Symbol.builtin(id) != null) return;
+        addSymbol(new Symbol(id, new SvgPath(id, 0, 0, svg)));
+    }
+
+    private void addSymbol(Symbol sym) {
+        symbols.put(sym.id, sym);
+        publishedSymbols = Collections.unmodifiableMap(new HashMap<>(symbols));
+    }
+
+    private void clearSymbols() {
+        symbols.clear();
+        publishedSymbols = Collections.emptyMap();
+    }
+
+    // ADD_INSTANCE, preceded by the symbol's definition the first time an imported shape is used on this map
+    private Command instanceCommand(SymbolInstance si) {
+        Symbol sym = si.symbol;
+        if (sym.isBuiltin() || state.get().symbols.containsKey(sym.id)) {
+            return new AnnotateCommand(map.getId(), "ADD_INSTANCE", si.instanceData());
+        }
+        return batchCommand(Arrays.asList("SYMBOL;" + sym.id + ";" + sym.geometry.toSvgData(), "ADD_INSTANCE;" + si.instanceData()));
+    }
+
+    // ------------------- State digest -------------------
+    // Every digestIntervalSec each client sends (unlogged) the root of a hash tree over its items, leaves by id.
+    // A client that disagrees twice with the authority (lowest session id, see authority) replaces the leaves
+    // that differ with the authority's:
+    //   DIGEST -> DIGEST_REQ -> DIGEST_TREE -> PULL -> RESYNC
+    // Stacking order is not digested; replaced items go on top.
+
+    private static final int DIGEST_LEAVES = 4096, DIGEST_GROUPS = 64;
+    private static final int LEAVES_PER_GROUP = DIGEST_LEAVES / DIGEST_GROUPS;
+
+    private final transient String peerId = UUID.randomUUID().toString();
+    private final transient HashSet<String> suspectPeers = new HashSet<>(); // apply thread only: differed last round
+    private final transient ConcurrentHashMap<String, Long> peersSeen = new ConcurrentHashMap<>(); // id -> last DIGEST
+    private final transient HashSet<String> peersAgreeing = new HashSet<>(); // apply thread only: same root last round
+    // Every player heard from sent the root this client held, and nothing changed here since (see Consolidation)
+    private transient volatile boolean digestConfirmed = false;
+    private final transient javax.swing.Timer digestTimer = new javax.swing.Timer(1000, e -> sendDigest());
+    private transient long lastDigest = 0;
+
+    private void sendDigest() {
+        if (digestIntervalSec <= 0 || map == null) return;
+        if (System.nanoTime() - lastDigest < digestIntervalSec * 1_000_000_000L) return;
+        lastDigest = System.nanoTime();
+
+        ServerConnection server = GameModule.getGameModule().getServer();
+        if (server == null || !server.isConnected()) return;
+        // Observers check themselves against the players but are never authoritative, nor consolidate
+        if (observing()) return;
+        digestRound();
+    }
+
+    // Headless tools (SyncCheck): a consolidation pass over the published state, if this client would consolidate
+    // online (see consolidatesHere); the merges, executed but not sent, or null
+    Command consolidateHeadless() {
+        awaitApplied();
+        return peerId.equals(authority()) && digestConfirmed ? consolidator.scanAll(state.get()) : null;
+    }
+
+    // One round: the root as of everything executed so far (also headless tools, see linkHeadless)
+    void digestRound() {
+        final String mapId = map.getId();
+        enqueue(() -> sendToOthers(new AnnotateCommand(mapId, "DIGEST", peerId + ";" + rootDigest(groupDigests(leafDigests())))));
+    }
+
+    // Headless tools (SyncCheck): digest traffic goes to 'others' instead of the server
+    private transient volatile Consumer<Command> headlessOthers = null;
+
+    void linkHeadless(Consumer<Command> others) {
+        headlessOthers = others;
+    }
+
+    // Digest traffic is not part of the game: sent to the other players only, never logged
+    private void sendToOthers(Command c) {
+        Consumer<Command> others = headlessOthers;
+        if (others != null) {
+            others.accept(c);
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            ServerConnection server = GameModule.getGameModule().getServer();
+            if (server != null && server.isConnected()) server.sendToOthers(c);
+        });
+    }
+
+    // Each step answers the previous one; null when there is nothing to send
+    private void reply(String action, String data) {
+        if (data != null) sendToOthers(new AnnotateCommand(map.getId(), action, data));
+    }
+
+    // DIGEST: "from;root"
+    private void onDigest(String data) {
+        String[] p = data.split(";", 2);
+        if (p.length < 2) { reportBadData("DIGEST", data); return; }
+        String peer = p[0];
+        if (peer.equals(peerId)) return;
+        peersSeen.put(peer, System.nanoTime());
+        long[] groups = groupDigests(leafDigests());
+        if (rootDigest(groups).equals(p[1])) {
+            suspectPeers.remove(peer);
+            peersAgreeing.add(peer);
+            digestConfirmed = peersAgreeing.containsAll(recentPeers());
+            return;
+        }
+        peersAgreeing.remove(peer);
+        digestConfirmed = false;
+        if (!peer.equals(authority())) return;
+        // The first mismatch may only be commands still in flight
+        if (suspectPeers.add(peer)) return;
+        suspectPeers.remove(peer);
+
+        reply("DIGEST_REQ", peer + ";" + peerId + ";" + hexList(groups, 0, DIGEST_GROUPS));
+    }
+
+    // DIGEST_REQ: "to;from;group,group,..." (hex) -> DIGEST_TREE: "from;to;g=leaf,leaf,...|g=..."
+    private String treeData(String request) {
+        String[] p = request.split(";", 3);
+        if (p.length < 3 || !p[0].equals(peerId)) return null;
+        long[] theirs = hexes(p[2], DIGEST_GROUPS);
+        if (theirs == null) { reportBadData("DIGEST_REQ", request); return null; }
+
+        long[] leaves = leafDigests();
+        long[] groups = groupDigests(leaves);
+        StringBuilder out = new StringBuilder();
+        for (int g = 0; g < DIGEST_GROUPS; g++) {
+            if (groups[g] == theirs[g]) continue;
+            if (out.length() > 0) out.append('|');
+            out.append(g).append('=').append(hexList(leaves, g * LEAVES_PER_GROUP, LEAVES_PER_GROUP));
+        }
+        return out.length() == 0 ? null : p[1] + ";" + peerId + ";" + out;
+    }
+
+    // DIGEST_TREE -> PULL: "from;to;leaf,leaf,..."
+    private String pullData(String tree) {
+        String[] p = tree.split(";", 3);
+        if (p.length < 3 || !p[0].equals(peerId)) return null;
+
+        long[] leaves = leafDigests();
+        StringBuilder out = new StringBuilder();
+        for (String group : p[2].split("\\|")) {
+            String[] gl = group.split("=", 2);
+            int g = gl.length < 2 ? -1 : index(gl[0], DIGEST_GROUPS);
+            long[] theirs = g < 0 ? null : hexes(gl[1], LEAVES_PER_GROUP);
+            if (theirs == null) { reportBadData("DIGEST_TREE", tree); return null; }
+            for (int k = 0; k < LEAVES_PER_GROUP; k++) {
+                int leaf = g * LEAVES_PER_GROUP + k;
+                if (leaves[leaf] == theirs[k]) continue;
+                if (out.length() > 0) out.append(',');
+                out.append(leaf);
+            }
+        }
+        return out.length() == 0 ? null : p[1] + ";" + peerId + ";" + out;
+    }
+
+    // PULL -> RESYNC: "from;leaf,leaf,...;items" (items as in SET_STATE)
+    private String resyncData(String pull) {
+        String[] p = pull.split(";", 3);
+        if (p.length < 3 || !p[0].equals(peerId)) return null;
+        boolean[] wanted = leafSet(p[2]);
+        if (wanted == null) { reportBadData("PULL", pull); return null; }
+
+        // Custom symbols first, for the instances that use them
+        LinkedHashSet<Symbol> used = new LinkedHashSet<>();
+        ArrayList<String> items = new ArrayList<>();
+        for (SvgPath sp : paths) {
+            if (!wanted[leaf(sp.id)]) continue;
+            String item = stateItem(sp);
+            if (item == null) continue;
+            items.add(item);
+            if (sp instanceof SymbolInstance && !((SymbolInstance) sp).symbol.isBuiltin()) used.add(((SymbolInstance) sp).symbol);
+        }
+        for (TextItem t : texts) if (wanted[leaf(t.id)]) items.add(stateItem(t));
+        ArrayList<String> symbolItems = new ArrayList<>();
+        for (Symbol sym : used) symbolItems.add("S;" + sym.id + ";" + sym.geometry.toSvgData());
+        items.addAll(0, symbolItems);
+
+        return p[1] + ";" + p[2] + ";" + String.join("@@", items);
+    }
+
+    // RESYNC: the authoritative client's items of the leaves listed replace this client's. Items held the same
+    // stay where they are in stacking order; others are added on top, and those the other client lacks removed.
+    private void onResync(String data) {
+        String[] p = data.split(";", 3);
+        if (p.length < 3 || !p[0].equals(peerId)) return;
+        boolean[] leaves = leafSet(p[1]);
+        if (leaves == null) { reportBadData("RESYNC", data); return; }
+
+        List<String> items = p[2].isEmpty() ? Collections.emptyList() : Arrays.asList(p[2].split("@@"));
+        HashSet<String> theirs = new HashSet<>();
+        for (String item : items) {
+            String[] parts = item.split(";", 3);
+            if (parts.length >= 2 && !parts[0].equals("S")) theirs.add(parts[0].startsWith("T") ? "T" + parts[1] : "P" + parts[1]);
+        }
+
+        paths.removeIf(sp -> {
+            if (!leaves[leaf(sp.id)] || theirs.contains("P" + sp.id)) return false;
+            pathIndex.remove(sp.id);
+            batches.removed(sp);
+            digestRemovedPath(sp.id);
+            return true;
+        });
+        texts.removeIf(t -> {
+            if (!leaves[leaf(t.id)] || theirs.contains("T" + t.id)) return false;
+            digestRemovedText(t.id);
+            return true;
+        });
+
+        for (String item : items) {
+            String[] parts = item.split(";", 3);
             if (parts.length < 2) continue;
+            if (parts[0].equals("P") || parts[0].equals("I")) {
+                SvgPath mine = pathIndex.get(parts[1]);
+                if (mine != null && digestOf(mine) == hash64(item)) continue;
+            }
+            else if (parts[0].equals("T") || parts[0].equals("TX")) {
+                TextItem mine = null;
+                for (TextItem t : texts) if (t.id.equals(parts[1])) mine = t;
+                if (mine != null) {
+                    if (digestOf(mine) == hash64(item)) continue;
+                    texts.remove(mine);
+                    editsApplied++;
+                }
+            }
+            decodeStateItem(item); // upserts paths and instances; symbols are only ever added
+        }
+    }
+
+    // The player with the lowest session id heard from in the last three digest rounds, this one included
+    // unless it observes; null if none. It is the one others repair themselves from, and the one that consolidates.
+    private String authority() {
+        String lowest = observing() ? null : peerId;
+        for (String peer : recentPeers()) {
+            if (lowest == null || peer.compareTo(lowest) < 0) lowest = peer;
+        }
+        return lowest;
+    }
+
+    // The other players heard from in the last three digest rounds
+    private List<String> recentPeers() {
+        long now = System.nanoTime(), rounds = 3L * digestIntervalSec * 1_000_000_000L;
+        ArrayList<String> recent = new ArrayList<>();
+        for (java.util.Map.Entry<String, Long> e : peersSeen.entrySet()) {
+            if (now - e.getValue() < rounds) recent.add(e.getKey());
+        }
+        return recent;
+    }
+
+    private static boolean observing() {
+        return GameModule.getGameModule() != null && PlayerRoster.isObserver();
+    }
+
+    // null when malformed
+    private static boolean[] leafSet(String list) {
+        boolean[] in = new boolean[DIGEST_LEAVES];
+        for (String b : list.split(",")) {
+            int leaf = index(b, DIGEST_LEAVES);
+            if (leaf < 0) return null;
+            in[leaf] = true;
+        }
+        return in;
+    }
+
+    // -1 unless a number in [0, bound)
+    private static int index(String s, int bound) {
+        try {
+            int i = Integer.parseInt(s);
+            return i >= 0 && i < bound ? i : -1;
+        }
+        catch (NumberFormatException e) { return -1; }
+    }
+
+    // null unless exactly count hex values
+    private static long[] hexes(String list, int count) {
+        String[] s = list.split(",");
+        if (s.length != count) return null;
+        long[] v = new long[count];
+        try { for (int i = 0; i < count; i++) v[i] = Long.parseUnsignedLong(s[i], 16); }
+        catch (NumberFormatException e) { return null; }
+        return v;
+    }
+
+    private static String hexList(long[] v, int from, int count) {
+        StringBuilder sb = new StringBuilder(count * 17);
+        for (int i = from; i < from + count; i++) {
+            if (i > from) sb.append(',');
+            sb.append(Long.toHexString(v[i]));
+        }
+        return sb.toString();
+    }
+
+    // Leaf sums, kept up to date from the items changed since the last digest rather than recomputed over the
+    // map. Apply thread only, like the working copy they describe. Changes are only tracked from the first
+    // digest on (a full pass), so a game without digests keeps nothing.
+    private transient boolean digestTracked = false;
+    private final transient long[] leafSums = new long[DIGEST_LEAVES];
+    private final transient HashMap<String, Long> digestCounted = new HashMap<>();  // "P"/"T" + id -> hash in leafSums
+    private final transient HashMap<String, Object> digestPending = new HashMap<>(); // "P"/"T" + id -> current item, null if gone
+
+    private void digestChanged(SvgPath sp) { digestPut("P" + sp.id, sp); }
+    private void digestChanged(TextItem t) { digestPut("T" + t.id, t); }
+    private void digestRemovedPath(String id) { digestPut("P" + id, null); }
+    private void digestRemovedText(String id) { digestPut("T" + id, null); }
+
+    private void digestPut(String key, Object item) {
+        digestConfirmed = false;
+        if (digestTracked) digestPending.put(key, item);
+    }
+
+    private void clearDigest() {
+        digestConfirmed = false;
+        Arrays.fill(leafSums, 0);
+        digestCounted.clear();
+        digestPending.clear();
+    }
+
+    private long[] leafDigests() {
+        if (!digestTracked) {
+            digestTracked = true;
+            for (SvgPath sp : paths) digestChanged(sp);
+            for (TextItem t : texts) digestChanged(t);
+        }
+        for (java.util.Map.Entry<String, Object> e : digestPending.entrySet()) {
+            String key = e.getKey();
+            int leaf = leaf(key.substring(1));
+            Long old = digestCounted.remove(key);
+            if (old != null) leafSums[leaf] -= old;
+            Object item = e.getValue();
+            long h = item instanceof SvgPath ? digestOf((SvgPath) item) : item instanceof TextItem ? digestOf((TextItem) item) : 0;
+            if (h == 0) continue;
+            digestCounted.put(key, h);
+            leafSums[leaf] += h;
+        }
+        digestPending.clear();
+        return leafSums;
+    }
+
+    // Cached on the items, which are never modified once applied; 0 for a path with nothing left (not restored either)
+    private static long digestOf(SvgPath sp) {
+        if (sp.digest == 0) {
+            String item = stateItem(sp);
+            if (item != null) sp.digest = hash64(item);
+        }
+        return sp.digest;
+    }
+
+    private static long digestOf(TextItem t) {
+        if (t.digest == 0) t.digest = hash64(stateItem(t));
+        return t.digest;
+    }
+
+    private static long[] groupDigests(long[] leaves) {
+        long[] g = new long[DIGEST_GROUPS];
+        for (int i = 0; i < DIGEST_LEAVES; i++) g[i / LEAVES_PER_GROUP] += leaves[i];
+        return g;
+    }
+
+    private static String rootDigest(long[] groups) {
+        long h = 0xcbf29ce484222325L;
+        for (long g : groups) h = mix64(h ^ g);
+        return Long.toHexString(h);
+    }
+
+    private static int leaf(String id) {
+        return (int) (mix64(id.hashCode()) & (DIGEST_LEAVES - 1));
+    }
+
+    // FNV-1a over the chars, then a final mix
+    private static long hash64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    // ------------------- Consolidation -------------------
+    // After consolidateIdleSec idle, small neighbouring paths of one style are merged into one path (first id
+    // kept) and sent as a BATCH of MERGEs. Only one client scans (see consolidatesHere); a selection holding
+    // merged ids moves to the merged path.
+
+    private static final int MERGE_CELL = 256;        // map units per side: merged paths stay small enough to cull
+    private static final int MERGE_MAX_PATHS = 32;
+    private static final int MERGES_PER_BATCH = 200;
+
+    private final class Consolidator {
+        private long seenVersion = -1, idleSince = 0;
+        private boolean passDone = false;  // scanned this version already
+        private FrameJob job = null;       // the scan in progress
+        private int cursor = 0;
+        private final ArrayList<String> merges = new ArrayList<>();
+        private long onlineSince = 0;
+
+        void tick() {
+            if (consolidateIdleSec <= 0 || map == null) return;
+            State s = state.get();
+            if (s.version != seenVersion || dragging || !consolidatesHere()) {
+                seenVersion = s.version;
+                idleSince = System.nanoTime();
+                passDone = false;
+                cursor = 0;
+                merges.clear();
+                if (job != null) job.cancel();
+                job = null;
+                return;
+            }
+            if (passDone || job != null || System.nanoTime() - idleSince < consolidateIdleSec * 1_000_000_000L) return;
+            job = work.submit(MAINTENANCE, deadline -> scan(s, deadline));
+        }
+
+        // One slice of the scan; once through, sends what it found
+        private boolean scan(State s, long deadline) {
+            while (cursor < s.paths.size() && merges.size() < MERGES_PER_BATCH && System.nanoTime() < deadline) {
+                cursor = scanRun(s.paths, cursor);
+            }
+            if (cursor < s.paths.size() && merges.size() < MERGES_PER_BATCH) return false; // more next frame
+
+            passDone = true;
+            job = null;
+            if (merges.isEmpty()) return true;
+            Command c = batchCommand(merges);
+            merges.clear();
+            recordLocal(c);
+            executeAndSend(c);
+            return true;
+        }
+
+        // Alone, or online the authority once the digest confirms the state (and three rounds have passed).
+        // Never an observer or a log replay, whose log has its merges already.
+        private boolean consolidatesHere() {
+            GameModule gm = GameModule.getGameModule();
+            if (gm == null) return true; // headless tools
+            if (observing()) return false;
+            if (gm.getLogger() instanceof BasicLogger && ((BasicLogger) gm.getLogger()).isReplaying()) return false;
+
+            ServerConnection server = gm.getServer();
+            if (server == null || !server.isConnected()) {
+                onlineSince = 0;
+                return true;
+            }
+            if (digestIntervalSec <= 0) return false; // nothing tells who else is there
+            long now = System.nanoTime(), rounds = 3L * digestIntervalSec * 1_000_000_000L;
+            if (onlineSince == 0) onlineSince = now;
+            if (now - onlineSince < rounds) return false;
+            return peerId.equals(authority()) && digestConfirmed;
+        }
+
+        // The whole pass over s at once (headless tools); the merges, executed, or null if none
+        Command scanAll(State s) {
+            merges.clear();
+            for (int i = 0; i < s.paths.size(); ) i = scanRun(s.paths, i);
+            if (merges.isEmpty()) return null;
+            Command c = batchCommand(merges);
+            merges.clear();
+            executeAndSend(c);
+            return c;
+        }
+
+        // One run starting at i; returns where the next one starts
+        private int scanRun(List<SvgPath> ps, int i) {
+            SvgPath first = ps.get(i);
+            if (!mergeable(first)) return i + 1;
+
+            Rectangle union = new Rectangle(first.getBounds());
+            int j = i + 1;
+            while (j < ps.size() && j - i < MERGE_MAX_PATHS) {
+                SvgPath p = ps.get(j);
+                if (p.rgb != first.rgb || p.w != first.w || !mergeable(p)) break;
+                Rectangle u = union.union(p.getBounds());
+                if (u.width > MERGE_CELL || u.height > MERGE_CELL) break;
+                union = u;
+                j++;
+            }
+            if (j - i < 2) return j;
+
+            StringBuilder ids = new StringBuilder("MERGE;");
+            for (int k = i; k < j; k++) {
+                if (k > i) ids.append(',');
+                ids.append(ps.get(k).id);
+            }
+            merges.add(ids.toString());
+            return j;
+        }
+
+        // Shapes keep their symbol; selected paths are left alone while the user may act on them
+        private boolean mergeable(SvgPath p) {
+            if (p instanceof SymbolInstance || selectedPaths.contains(p.id)) return false;
+            Rectangle b = p.getBounds();
+            return b.width <= MERGE_CELL && b.height <= MERGE_CELL;
+        }
+    }
+
+    // MERGE: "id,id,..." paths that are neighbours in stacking order with one style, merged into the first.
+    // Skipped unless that is still true here (a path erased, moved or restacked since).
+    private void mergePaths(String[] ids) {
+        if (ids.length < 2) return;
+        SvgPath first = pathIndex.get(ids[0]);
+        if (first == null || first instanceof SymbolInstance) return;
+        int at = paths.indexOf(first);
+        if (at < 0 || at + ids.length > paths.size()) return;
+
+        StringBuilder svg = new StringBuilder();
+        for (int k = 0; k < ids.length; k++) {
+            SvgPath p = paths.get(at + k);
+            if (!p.id.equals(ids[k]) || p instanceof SymbolInstance || p.rgb != first.rgb || p.w != first.w) return;
+            String d = p.toSvgData();
+            if (d.isEmpty()) continue;
+            if (svg.length() > 0) svg.append(' ');
+            svg.append(d);
+        }
+
+        SvgPath merged = new SvgPath(first.id, first.rgb, first.w, svg.toString());
+        for (int k = 1; k < ids.length; k++) {
+            pathIndex.remove(ids[k]);
+            digestRemovedPath(ids[k]);
+        }
+        pathIndex.put(merged.id, merged);
+        digestChanged(merged);
+        paths.set(at, merged);
+        paths.subList(at + 1, at + ids.length).clear();
+        // The merged path can reach past the batch the first one was in
+        batches.invalidate();
+
+        editsApplied++;
+        final List<String> gone = Arrays.asList(ids).subList(1, ids.length);
+        SwingUtilities.invokeLater(() -> {
+            if (selectedPaths.removeAll(gone)) selectedPaths.add(merged.id);
+        });
+    }
+
+    // ------------------- Compressed restore -------------------
+    // SET_STATE_Z (chunk count) + N x STATE_CHUNK (index;base64 deflate bytes) + STATE_END.
+    // Items are the same as in SET_STATE; the receiver splits them off as the chunks come in and
+    // applies them at STATE_END, so neither side ever holds the whole uncompressed state string.
+
+    private transient StateInflater stateInflater = null;
+
+    private Command encodeCompressedState(State s) {
+        final String mapId = map.getId();
+        final ChunkSink sink = new ChunkSink();
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        final byte[] sep = "@@".getBytes(StandardCharsets.UTF_8);
+
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(sink, deflater, 8192)) {
+            final boolean[] first = { true };
+            forEachStateItem(s, item -> {
+                try {
+                    if (!first[0]) dos.write(sep);
+                    first[0] = false;
+                    dos.write(item.getBytes(StandardCharsets.UTF_8));
+                }
+                catch (IOException e) { throw new IllegalStateException(e); }
+            });
+            dos.finish();
+        }
+        catch (IOException | IllegalStateException e) {
+            // The sink does not fail; fall back to the plain format just in case
+            return restoreCommand(s);
+        }
+        finally {
+            deflater.end();
+        }
+        ArrayList<byte[]> chunks = sink.finish();
+
+        Command c = new AnnotateCommand(mapId, "SET_STATE_Z", String.valueOf(chunks.size()));
+        for (int i = 0; i < chunks.size(); i++) {
+            c.append(new AnnotateCommand(mapId, "STATE_CHUNK", i + ";" + Base64.getEncoder().encodeToString(chunks.get(i))));
+            chunks.set(i, null);
+        }
+        c.append(new AnnotateCommand(mapId, "STATE_END", ""));
+        return c;
+    }
+
+    // Cuts the deflater's output into chunks of RESTORE_CHUNK_BYTES, wherever the items fall
+    private static final class ChunkSink extends OutputStream {
+        private final ArrayList<byte[]> chunks = new ArrayList<>();
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(RESTORE_CHUNK_BYTES);
+
+        @Override public void write(int b) {
+            buf.write(b);
+            if (buf.size() == RESTORE_CHUNK_BYTES) cut();
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, RESTORE_CHUNK_BYTES - buf.size());
+                buf.write(b, off, n);
+                off += n;
+                len -= n;
+                if (buf.size() == RESTORE_CHUNK_BYTES) cut();
+            }
+        }
+
+        private void cut() {
+            chunks.add(buf.toByteArray());
+            buf.reset();
+        }
+
+        ArrayList<byte[]> finish() {
+            if (buf.size() > 0) cut();
+            return chunks;
+        }
+    }
+
+    // The items are staged and replace the annotations only at a complete STATE_END; a broken restore keeps them
+    private void beginStateInflater(String data) {
+        abortStateInflater();
+        try { stateInflater = new StateInflater(Integer.parseInt(data.trim())); }
+        catch (NumberFormatException e) { reportFailure("restoring compressed annotations", e); }
+    }
+
+    private void feedStateInflater(String data) {
+        if (stateInflater == null) return;
+        String[] c = data.split(";", 2);
+        try {
+            if (c.length < 2 || Integer.parseInt(c[0]) != stateInflater.nextChunk) {
+                throw new DataFormatException("chunk " + stateInflater.nextChunk + " missing");
+            }
+            stateInflater.feed(Base64.getDecoder().decode(c[1]));
+        }
+        catch (IllegalArgumentException | DataFormatException e) {
+            abortStateInflater();
+            reportFailure("restoring compressed annotations", e);
+        }
+    }
+
+    private void finishStateInflater() {
+        if (stateInflater == null) return;
+        StateInflater in = stateInflater;
+        boolean complete = in.nextChunk == in.expectedChunks && in.inflater.finished();
+        abortStateInflater();
+        if (!complete) {
+            reportFailure("restoring compressed annotations",
+                    new DataFormatException(in.nextChunk + " of " + in.expectedChunks + " chunks, stream incomplete"));
+            return;
+        }
+        in.finish();
+        restoreState(in.items);
+    }
+
+    private void abortStateInflater() {
+        if (stateInflater != null) stateInflater.inflater.end();
+        stateInflater = null;
+    }
+
+    private final class StateInflater {
+        final Inflater inflater = new Inflater();
+        final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer bytes = ByteBuffer.allocate(16 * 1024);
+        final CharBuffer chars = CharBuffer.allocate(16 * 1024);
+        final StringBuilder pending = new StringBuilder();
+        final ArrayList<String> items = new ArrayList<>();
+        final int expectedChunks;
+        int nextChunk = 0;
+
+        StateInflater(int expectedChunks) { this.expectedChunks = expectedChunks; }
+
+        void feed(byte[] compressed) throws DataFormatException {
+            nextChunk++;
+            inflater.setInput(compressed);
+            while (true) {
+                int n = inflater.inflate(bytes.array(), bytes.position(), bytes.remaining());
+                if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) break;
+                bytes.position(bytes.position() + n);
+
+                // Multi-byte characters split across inflate calls stay in 'bytes' until complete
+                bytes.flip();
+                utf8.decode(bytes, chars, false);
+                bytes.compact();
+                chars.flip();
+                pending.append(chars);
+                chars.clear();
+
+                drainItems();
+            }
+        }
+
+        void finish() {
+            if (pending.length() > 0) items.add(pending.toString());
+            pending.setLength(0);
+        }
+
+        private void drainItems() {
+            int start = 0, sep;
+            while ((sep = pending.indexOf("@@", start)) >= 0) {
+                items.add(pending.substring(start, sep));
+                start = sep + 2;
+            }
+            if (start > 0) pending.delete(0, start);
+        }
+    }
+
+    // ------------------- Live text -------------------
+    // "$name$" in a text shows the map's (or else the module's) property. Each name is watched once and its
+    // changes counted; a text is resolved again only when its count moved. Properties that cannot be watched are
+    // polled once a second, and watches no text uses any more are dropped.
+
+    private static final Pattern PROPERTY_REF = Pattern.compile("\\$([^$]+)\\$");
+    private static final String[] NO_REFS = new String[0];
+
+    private final class PropertyWatch implements PropertyChangeListener {
+        MutableProperty source;       // null: not watchable (yet), polled
+        String polled;                // the value last polled while not watchable
+        long changes = 0;
+        boolean drawn = false;        // a drawn text depends on it since the last change
+
+        PropertyWatch(MutableProperty source) { this.source = source; }
+
+        @Override public void propertyChange(PropertyChangeEvent e) { changed(); }
+
+        void changed() {
+            changes++;
+            if (drawn) {
+                drawn = false;
+                frames.requestRepaint();
+            }
+        }
+    }
+
+    private final transient HashMap<String, PropertyWatch> watches = new HashMap<>(); // EDT only
+    private final transient javax.swing.Timer propertyTimer = new javax.swing.Timer(1000, e -> checkWatches());
+    private transient long watchesSwept = -1; // EDT only: the state version last swept for unused watches
+
+    // The string to display for t (EDT)
+    private String shownText(TextItem t) {
+        if (t.refs == null) t.refs = propertyRefs(t.text);
+        if (t.refs.length == 0) return t.text;
+
+        long stamp = 0;
+        for (String name : t.refs) {
+            PropertyWatch w = watches.computeIfAbsent(name, this::watch);
+            w.drawn = true;
+            stamp += w.changes;
+        }
+        if (stamp != t.shownStamp) {
+            t.shown = resolveProperties(t.text);
+            t.shownStamp = stamp;
+        }
+        return t.shown;
+    }
+
+    private static String[] propertyRefs(String text) {
+        if (text.indexOf('$') < 0) return NO_REFS;
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        Matcher m = PROPERTY_REF.matcher(text);
+        while (m.find()) names.add(m.group(1));
+        return names.isEmpty() ? NO_REFS : names.toArray(new String[0]);
+    }
+
+    private String resolveProperties(String text) {
+        Matcher m = PROPERTY_REF.matcher(text);
+        StringBuilder out = new StringBuilder();
+        while (m.find()) {
+            Object v = map.getProperty(m.group(1));
+            m.appendReplacement(out, Matcher.quoteReplacement(v != null ? v.toString() : m.group()));
+        }
+        m.appendTail(out);
+        return out.toString();
+    }
+
+    private PropertyWatch watch(String name) {
+        MutableProperty p = mutableProperty(name);
+        PropertyWatch w = new PropertyWatch(p);
+        if (p != null) p.addMutablePropertyChangeListener(w);
+        else w.polled = String.valueOf(map.getProperty(name));
+        return w;
+    }
+
+    private MutableProperty mutableProperty(String name) {
+        MutableProperty p = map.getMutableProperty(name);
+        GameModule module = GameModule.getGameModule();
+        if (p == null && module != null) p = module.getMutableProperty(name);
+        return p;
+    }
+
+    // Once a second (EDT): poll what cannot be watched, and release the watches of names no text uses any more
+    private void checkWatches() {
+        if (watches.isEmpty() || map == null) return;
+        for (java.util.Map.Entry<String, PropertyWatch> e : watches.entrySet()) {
+            PropertyWatch w = e.getValue();
+            if (w.source != null) continue;
+            MutableProperty p = mutableProperty(e.getKey());
+            String v = String.valueOf(map.getProperty(e.getKey()));
+            if (p != null) {
+                w.source = p;
+                p.addMutablePropertyChangeListener(w);
+            }
+            if (p != null || !v.equals(w.polled)) {
+                w.polled = v;
+                w.changed();
+            }
+        }
+
+        final State s = state.get();
+        if (s.version == watchesSwept) return;
+        watchesSwept = s.version;
+        HashSet<String> used = new HashSet<>();
+        for (TextItem t : s.texts) {
+            if (t.refs == null) t.refs = propertyRefs(t.text);
+            Collections.addAll(used, t.refs);
+        }
+        if (previewTexts != null) {
+            for (TextItem t : previewTexts) if (t.refs != null) Collections.addAll(used, t.refs);
+        }
+        for (Iterator<java.util.Map.Entry<String, PropertyWatch>> it = watches.entrySet().iterator(); it.hasNext(); ) {
+            java.util.Map.Entry<String, PropertyWatch> e = it.next();
+            if (used.contains(e.getKey())) continue;
+            if (e.getValue().source != null) e.getValue().source.removeMutablePropertyChangeListener(e.getValue());
+            it.remove();
+        }
+    }
 
-            if (parts[0].equals("P")) {
-                String[] p = parts[1].split(";", 4);
-                paths.add(new SvgPath(p[0], Integer.parseInt(p[1]), Double.parseDouble(p[2]), p.length > 3 ? p[3] : ""));
-            }
-            else if (parts[0].equals("T")) {
-                String[] t = parts[1].split(";", 7);
-                texts.add(new TextItem(t[0], Integer.parseInt(t[1]), Integer.parseInt(t[2]),
-                        Integer.parseInt(t[3]), t[4], Integer.parseInt(t[5]), unb64(t[6])));
-            }
+    private void unwatchProperties() {
+        for (PropertyWatch w : watches.values()) {
+            if (w.source != null) w.source.removeMutablePropertyChangeListener(w);
         }
+        watches.clear();
+        watchesSwept = -1;
     }
 
     // ------------------- Drawing -------------------
@@ -934,40 +3802,73 @@ public class MapAnnotator extends AbstractConfigurable
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
         final double zoom = map.getZoom();
-
-        ArrayList<SvgPath> pToDraw = (dragging && mode == Mode.GUM && previewPaths != null) ? previewPaths : paths;
-        ArrayList<TextItem> tToDraw = (dragging && mode == Mode.GUM && previewTexts != null) ? previewTexts : texts;
-
-        // Draw committed (or gum-preview) paths
-        for (SvgPath sp : pToDraw) {
-            drawSvgPath(g2d, map, sp, zoom);
+        final boolean draft = quality.draft(map, zoom);
+
+        // One published state for the whole paint; the batches catch up with it within the frame's budget
+        final State s = state.get();
+        final long catchUpDeadline = System.nanoTime() + FRAME_BUDGET_MS[CATCH_UP] * 1_000_000L;
+        final boolean synced = batches.sync(s, catchUpDeadline);
+
+        // Only paths touching the repainted area are drawn (and therefore parsed, see SvgPath.raw)
+        Rectangle clip = g.getClipBounds();
+        Rectangle visibleMap = clip == null ? null : map.componentToMap(clip);
+        lastVisibleMap = visibleMap;
+
+        // The preview of a local commit stays until the batches show the newer State all over the repainted area
+        if (echoBase != null && s != echoBase && synced && batches.rebuildVisible(visibleMap, catchUpDeadline)) {
+            echoBase = null;
+            if (!dragging) clearPreviews();
+        }
+        final boolean showPreview = dragging || echoBase != null;
+
+        List<SvgPath> pToDraw = (showPreview && mode == Mode.GUM && previewPaths != null) ? previewPaths : s.paths;
+        List<TextItem> tToDraw = (showPreview && mode == Mode.GUM && previewTexts != null) ? previewTexts : s.texts;
+
+        // Draw committed paths in style batches, or the gum preview path by path (or as a masked picture)
+        final boolean masked = gumMask != null && mode == Mode.GUM;
+        Graphics2D gc = draft ? draftGraphics(g2d) : g2d;
+        boolean drawnWhole = true;
+        if (masked) gumMask.draw(gc, map, s, zoom);
+        else if (pToDraw == s.paths) {
+            drawnWhole = batches.draw(gc, map, visibleMap, draft ? draftHairlinePx : -1, catchUpDeadline);
+        }
+        else {
+            for (SvgPath sp : pToDraw) {
+                if (visibleMap != null && !isVisible(sp, visibleMap)) continue;
+                drawSvgPath(gc, map, sp, zoom);
+            }
         }
+        if (gc != g2d) gc.dispose();
+        if (!synced || !drawnWhole) catchUp();
 
         // Shape preview (while dragging)
-        if (dragging && mode == Mode.SHAPE && previewPaths != null) {
+        if (showPreview && mode == Mode.SHAPE && previewPaths != null) {
             for (SvgPath sp : previewPaths) {
                 drawSvgPath(g2d, map, sp, zoom);
             }
         }
 
         // In-progress freehand
-        if (mode == Mode.DRAW && inProgressPoints != null && inProgressPoints.size() > 1) {
-            g2d.setColor(new Color(drawR, drawG, drawB));
-            g2d.setStroke(new BasicStroke((float) (drawWidth * zoom), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            for (int i = 1; i < inProgressPoints.size(); i++) {
-                Point a = map.mapToComponent(inProgressPoints.get(i - 1));
-                Point b = map.mapToComponent(inProgressPoints.get(i));
-                g2d.drawLine(a.x, a.y, b.x, b.y);
+        if (mode == Mode.DRAW && inProgressPoints.size() > 1) {
+            // Straight from the sample buffer, through the map -> component transform (as the style batches)
+            Point o = map.mapToComponent(new Point(0, 0));
+            Graphics2D gs = (Graphics2D) g2d.create();
+            gs.transform(new AffineTransform(zoom, 0, 0, zoom, o.x, o.y));
+            gs.setColor(new Color(drawR, drawG, drawB));
+            gs.setStroke(new BasicStroke((float) drawWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            gs.drawPolyline(inProgressPoints.xs, inProgressPoints.ys, inProgressPoints.size());
+            if (dragging && ink.predict(inProgressPoints)) {
+                gs.setColor(new Color(drawR, drawG, drawB, 128));
+                gs.drawPolyline(ink.tail.xs, ink.tail.ys, ink.tail.size());
             }
+            gs.dispose();
         }
 
         // Committed (or gum-preview) texts
-        for (TextItem t : tToDraw) {
-            g2d.setColor(new Color(t.rgb, true));
-            int zFont = Math.max(1, (int) Math.round(t.fontSize * zoom));
-            g2d.setFont(new Font(t.fontName, Font.PLAIN, zFont));
-            Point p = map.mapToComponent(new Point(t.x, t.y));
-            g2d.drawString(t.text, p.x, p.y);
+        if (!masked) {
+            Graphics2D gt = draft ? draftGraphics(g2d) : g2d;
+            drawTexts(gt, map, tToDraw, zoom);
+            if (gt != g2d) gt.dispose();
         }
 
         // Text preview at cursor (draw-only)
@@ -986,6 +3887,9 @@ public class MapAnnotator extends AbstractConfigurable
             g2d.drawString(TEXT_PREVIEW_SAMPLE, p.x, p.y);
         }
 
+        // Selection outline, scale handle and move/scale ghost
+        if (mode == Mode.SELECT) drawSelection(g2d, map, zoom);
+
         // Eraser cursor
         if (mode == Mode.GUM && cursorMap != null) {
             Point c = map.mapToComponent(cursorMap);
@@ -1000,12 +3904,264 @@ public class MapAnnotator extends AbstractConfigurable
         g2d.dispose();
     }
 
+    private void drawTexts(Graphics2D g2d, Map map, List<TextItem> texts, double zoom) {
+        for (TextItem t : texts) {
+            g2d.setColor(new Color(t.rgb, true));
+            int zFont = Math.max(1, (int) Math.round(t.exactSize * zoom));
+            g2d.setFont(new Font(t.fontName, Font.PLAIN, zFont));
+            Point p = map.mapToComponent(new Point(t.x, t.y));
+            g2d.drawString(shownText(t), p.x, p.y);
+        }
+    }
+
+    private static boolean isVisible(SvgPath sp, Rectangle visibleMap) {
+        Rectangle b = sp.getBounds();
+        int pad = (int) Math.ceil(sp.w) + 1;
+        return b.x - pad < visibleMap.x + visibleMap.width && b.x + b.width + pad > visibleMap.x
+                && b.y - pad < visibleMap.y + visibleMap.height && b.y + b.height + pad > visibleMap.y;
+    }
+
+    // ------------------- Style batches -------------------
+    // Committed paths grouped by (rgb, width), each batch drawn as one shape. A path joins a lower batch only if
+    // no other style in between overlaps it, so z-order holds. The EDT replays the apply thread's changes up to
+    // the State it draws, time-sliced (see Frame work).
+    private static final class StyleBatches {
+        private static final int MAX_PATHS = 512;          // keeps cached shapes (and lazy parsing) local
+        private static final double MAX_EXTENT = 2048;     // map units per side
+        private static final int MAX_SCAN = 64;            // batches looked at before giving up and opening a new one
+        private static final int MAX_PENDING = 50_000;     // map not painted for a long time: regroup instead
+
+        private static final int ADDED = 0, REMOVED = 1, REPLACED = 2, REGROUP = 3, CLEARED = 4;
+        private static final BasicStroke HAIRLINE = new BasicStroke(0f);
+
+        private static final class Change {
+            final long version;
+            final int kind;
+            final SvgPath a, b;
+
+            Change(long version, int kind, SvgPath a, SvgPath b) {
+                this.version = version; this.kind = kind; this.a = a; this.b = b;
+            }
+        }
+
+        private static final class Batch {
+            final int rgb;
+            final double w;
+            final ArrayList<SvgPath> members = new ArrayList<>();
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            Path2D.Double shape = null;
+            boolean stale = false;   // members removed or replaced since the shape was built
+            Color color = null;
+            BasicStroke stroke = null, draftStroke = null;
+
+            Batch(int rgb, double w) { this.rgb = rgb; this.w = w; }
+
+            boolean overlaps(Rectangle b, double pad) {
+                return b.x - pad <= maxX && b.x + b.width + pad >= minX && b.y - pad <= maxY && b.y + b.height + pad >= minY;
+            }
+
+            boolean fits(Rectangle b) {
+                return members.size() < MAX_PATHS
+                        && Math.max(maxX, b.x + b.width + w) - Math.min(minX, b.x - w) <= MAX_EXTENT
+                        && Math.max(maxY, b.y + b.height + w) - Math.min(minY, b.y - w) <= MAX_EXTENT;
+            }
+
+            void add(SvgPath sp, Rectangle b) {
+                members.add(sp);
+                minX = Math.min(minX, b.x - w); maxX = Math.max(maxX, b.x + b.width + w);
+                minY = Math.min(minY, b.y - w); maxY = Math.max(maxY, b.y + b.height + w);
+                if (shape != null) sp.appendTo(shape);
+            }
+
+            boolean visible(Rectangle m) {
+                return m == null || !(maxX < m.x || minX > m.x + m.width || maxY < m.y || minY > m.y + m.height);
+            }
+
+            void rebuild() {
+                shape = new Path2D.Double(Path2D.WIND_NON_ZERO);
+                for (SvgPath sp : members) sp.appendTo(shape);
+                stale = false;
+            }
+        }
+
+        // Apply thread side
+        private final ArrayDeque<Change> pending = new ArrayDeque<>(); // guarded by itself
+        private long postVersion = 0;
+
+        void begin(long version) { postVersion = version; }
+
+        void added(SvgPath sp) { post(ADDED, sp, null); }
+
+        void removed(SvgPath sp) { post(REMOVED, sp, null); }
+
+        // Erased: the new path lies within the old one's bounds and takes its place
+        void replaced(SvgPath old, SvgPath sp) {
+            if (old != null) post(REPLACED, old, sp);
+        }
+
+        // Paths merged in place (MERGE): batches are rebuilt from scratch on the next draw
+        void invalidate() { post(REGROUP, null, null); }
+
+        void clear() { post(CLEARED, null, null); }
+
+        private void post(int kind, SvgPath a, SvgPath b) {
+            synchronized (pending) {
+                if (pending.size() >= MAX_PENDING) {
+                    // The dropped changes lead up to postVersion: the regroup waits for a State at least that new,
+                    // one that contains them all
+                    pending.clear();
+                    pending.add(new Change(postVersion, REGROUP, null, null));
+                }
+                pending.add(new Change(postVersion, kind, a, b));
+            }
+        }
+
+        // EDT side
+        private ArrayList<Batch> stack = new ArrayList<>();
+        private IdentityHashMap<SvgPath, Batch> owner = new IdentityHashMap<>();
+        private boolean dirty = true;
+        private long builtVersion = -1;
+
+        // Catch-up left for later frames: changes taken from pending but not replayed yet, and a regroup in
+        // progress. A regroup is built aside and swapped in when complete, so the batches drawn meanwhile are whole.
+        private final ArrayDeque<Change> backlog = new ArrayDeque<>();
+        private State regroupOf = null;
+        private int regroupAt = 0;
+        private ArrayList<Batch> nextStack = null;
+        private IdentityHashMap<SvgPath, Batch> nextOwner = null;
+
+        // Brings the batches up to s, working until the deadline; true once they match s
+        boolean sync(State s, long deadline) {
+            if (s.version == builtVersion && backlog.isEmpty() && regroupOf == null) return true;
+
+            synchronized (pending) {
+                while (!pending.isEmpty() && pending.peekFirst().version <= s.version) backlog.add(pending.pollFirst());
+            }
+
+            while (true) {
+                if (regroupOf != null && !regroup(deadline)) return false;
+
+                Change c = backlog.peekFirst();
+                if (c == null) break;
+                if (System.nanoTime() > deadline) return false;
+                backlog.pollFirst();
+
+                if (c.kind == REGROUP) dirty = true;
+                else if (dirty || c.version <= builtVersion) continue;
+                else if (c.kind == CLEARED) {
+                    stack.clear();
+                    owner.clear();
+                }
+                else if (c.kind == ADDED) place(c.a, stack, owner);
+                else if (c.kind == REMOVED) {
+                    Batch b = owner.remove(c.a);
+                    if (b == null) continue;
+                    b.members.remove(c.a);
+                    b.stale = true; // bounds stay conservative
+                    if (b.members.isEmpty()) stack.remove(b);
+                }
+                else {
+                    Batch b = owner.remove(c.a);
+                    if (b == null) continue;
+                    b.members.set(b.members.indexOf(c.a), c.b);
+                    owner.put(c.b, b);
+                    b.stale = true;
+                }
+            }
+
+            if (dirty) {
+                dirty = false;
+                regroupOf = s;
+                regroupAt = 0;
+                nextStack = new ArrayList<>();
+                nextOwner = new IdentityHashMap<>();
+                return regroup(deadline);
+            }
+            builtVersion = s.version;
+            return true;
+        }
+
+        private boolean regroup(long deadline) {
+            List<SvgPath> ps = regroupOf.paths;
+            while (regroupAt < ps.size()) {
+                if ((regroupAt & 63) == 0 && System.nanoTime() > deadline) return false;
+                place(ps.get(regroupAt++), nextStack, nextOwner);
+            }
+            stack = nextStack;
+            owner = nextOwner;
+            builtVersion = regroupOf.version;
+            regroupOf = null;
+            nextStack = null;
+            nextOwner = null;
+            return true;
+        }
+
+        private static void place(SvgPath sp, ArrayList<Batch> stack, IdentityHashMap<SvgPath, Batch> owner) {
+            Rectangle b = sp.getBounds();
+            Batch target = null;
+
+            for (int i = stack.size() - 1, scanned = 0; i >= 0 && scanned < MAX_SCAN; i--, scanned++) {
+                Batch cand = stack.get(i);
+                if (cand.rgb == sp.rgb && cand.w == sp.w) {
+                    if (cand.fits(b)) { target = cand; break; }
+                }
+                else if (cand.overlaps(b, sp.w)) break;
+            }
+
+            if (target == null) {
+                target = new Batch(sp.rgb, sp.w);
+                stack.add(target);
+            }
+            target.add(sp, b);
+            owner.put(sp, target);
+        }
+
+        // EDT: rebuilds the stale shapes of the batches in visibleMap until the deadline; true if none is left stale
+        boolean rebuildVisible(Rectangle visibleMap, long deadline) {
+            for (Batch b : stack) {
+                if (!b.stale || !b.visible(visibleMap)) continue;
+                if (System.nanoTime() >= deadline) return false;
+                b.rebuild();
+            }
+            return true;
+        }
+
+        boolean draw(Graphics2D g2d, Map map, Rectangle visibleMap, double hairlinePx, long deadline) {
+            // Batches are kept in map coordinates: draw them through the map -> component transform
+            final double zoom = map.getZoom();
+            final boolean draft = hairlinePx >= 0;
+            Point o = map.mapToComponent(new Point(0, 0));
+            Graphics2D g = (Graphics2D) g2d.create();
+            g.transform(new AffineTransform(zoom, 0, 0, zoom, o.x, o.y));
+
+            boolean complete = true;
+            for (Batch b : stack) {
+                if (!b.visible(visibleMap)) continue;
+
+                if (b.shape == null || (b.stale && System.nanoTime() < deadline)) b.rebuild();
+                else if (b.stale) complete = false;
+                if (b.color == null) {
+                    b.color = new Color(b.rgb, true);
+                    b.stroke = new BasicStroke((float) b.w, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+                    b.draftStroke = new BasicStroke((float) b.w, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL);
+                }
+                g.setColor(b.color);
+                if (!draft) g.setStroke(b.stroke);
+                else g.setStroke(b.w * zoom < hairlinePx ? HAIRLINE : b.draftStroke);
+                g.draw(b.shape);
+            }
+            g.dispose();
+            return complete;
+        }
+    }
+
     private void drawSvgPath(Graphics2D g2d, Map map, SvgPath sp, double zoom) {
         g2d.setColor(new Color(sp.rgb, true));
         g2d.setStroke(new BasicStroke((float) (sp.w * zoom), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
 
         if (!sp.hasCurves()) {
-            for (SvgPath.Subpath sub : sp.subs) {
+            for (SvgPath.Subpath sub : sp.subs()) {
                 Point prev = map.mapToComponent(new Point((int) Math.round(sub.startX), (int) Math.round(sub.startY)));
                 for (SvgPath.Seg seg : sub.segs) {
                     SvgPath.LineTo l = (SvgPath.LineTo) seg;
@@ -1017,7 +4173,7 @@ public class MapAnnotator extends AbstractConfigurable
         }
         else {
             Path2D.Double p = new Path2D.Double();
-            for (SvgPath.Subpath sub : sp.subs) {
+            for (SvgPath.Subpath sub : sp.subs()) {
                 Point mv = map.mapToComponent(new Point((int) Math.round(sub.startX), (int) Math.round(sub.startY)));
                 p.moveTo(mv.x, mv.y);
                 for (SvgPath.Seg seg : sub.segs) {
@@ -1040,120 +4196,533 @@ public class MapAnnotator extends AbstractConfigurable
     }
 
     // ------------------- Eraser -------------------
-    private static class Segment {
-        Point a, b;
-        Segment(Point a, Point b) { this.a = a; this.b = b; }
+    // Pieces shorter than this (map units) are dropped after a cut instead of leaving specks behind
+    private static final double ERASE_MIN_PIECE = 0.5;
+
+    // Dense eraser samples in map units; a point of a segment is erased if it lies inside any sample's circle.
+    // One instance serves a whole erase (or gum drag): samples, cut ranges and scratch arrays are reused.
+    private static final class EraserShape {
+        double[] x = new double[64], y = new double[64];
+        int[] sx = new int[64], sy = new int[64]; // the same samples on the ERASE_SCALE grid
+        int n;
+        double r, r2;
+        double minX, minY, maxX, maxY; // eraser box including radius
+
+        // Parameter ranges cut from the current segment, then the ones kept: flat {a0, b0, a1, b1, ...}
+        double[] cuts = new double[32], kept = new double[32];
+        int cutCount, keptCount;
+
+        // Scratch for pointAt / subSegment
+        final double[] pt = new double[2], bx = new double[4], by = new double[4];
+
+        void reset(double r) {
+            this.r = r;
+            this.r2 = r * r;
+            n = 0;
+            minX = minY = Double.POSITIVE_INFINITY;
+            maxX = maxY = Double.NEGATIVE_INFINITY;
+        }
+
+        // Samples pts[from..to] (MAP coords) at most 2 units apart, on the ERASE_SCALE grid
+        void addStroke(PointBuffer pts, int from, int to) {
+            for (int i = from; i <= to; i++) {
+                int cx = pts.x(i) * ERASE_SCALE, cy = pts.y(i) * ERASE_SCALE;
+                if (i == from) {
+                    addSample(cx, cy);
+                    continue;
+                }
+                int lx = pts.x(i - 1) * ERASE_SCALE, ly = pts.y(i - 1) * ERASE_SCALE;
+                int dx = cx - lx, dy = cy - ly;
+                double d = Math.sqrt(dx * (double) dx + dy * (double) dy);
+
+                int steps = Math.max(1, (int) (d / (2.0 * ERASE_SCALE)));
+                for (int j = 1; j <= steps; j++) addSample(lx + dx * j / steps, ly + dy * j / steps);
+            }
+        }
+
+        private void addSample(int scaledX, int scaledY) {
+            if (n == x.length) {
+                x = Arrays.copyOf(x, 2 * n);
+                y = Arrays.copyOf(y, 2 * n);
+                sx = Arrays.copyOf(sx, 2 * n);
+                sy = Arrays.copyOf(sy, 2 * n);
+            }
+            sx[n] = scaledX;
+            sy[n] = scaledY;
+            x[n] = scaledX / (double) ERASE_SCALE;
+            y[n] = scaledY / (double) ERASE_SCALE;
+            minX = Math.min(minX, x[n] - r); maxX = Math.max(maxX, x[n] + r);
+            minY = Math.min(minY, y[n] - r); maxY = Math.max(maxY, y[n] + r);
+            n++;
+        }
+
+        boolean touches(double bx0, double by0, double bx1, double by1) {
+            return bx1 >= minX && bx0 <= maxX && by1 >= minY && by0 <= maxY;
+        }
+
+        // Adds the parameter ranges of A->B (mapped onto [t0, t1]) that lie inside the eraser to cuts
+        void cutLine(double ax, double ay, double bx, double by, double t0, double t1) {
+            double sx0 = Math.min(ax, bx) - r, sx1 = Math.max(ax, bx) + r;
+            double sy0 = Math.min(ay, by) - r, sy1 = Math.max(ay, by) + r;
+            double dx = bx - ax, dy = by - ay;
+            double A = dx * dx + dy * dy;
+
+            for (int i = 0; i < n; i++) {
+                double cx = x[i], cy = y[i];
+                if (cx < sx0 || cx > sx1 || cy < sy0 || cy > sy1) continue;
+
+                double fx = ax - cx, fy = ay - cy;
+                double C = fx * fx + fy * fy - r2;
+                if (A < 1e-12) {
+                    if (C <= 0) addCut(t0, t1);
+                    continue;
+                }
+                double B = 2 * (fx * dx + fy * dy);
+                double det = B * B - 4 * A * C;
+                if (det <= 0) continue;
+
+                double sq = Math.sqrt(det);
+                double u0 = Math.max(0, (-B - sq) / (2 * A));
+                double u1 = Math.min(1, (-B + sq) / (2 * A));
+                if (u1 <= u0) continue;
+                addCut(t0 + u0 * (t1 - t0), t0 + u1 * (t1 - t0));
+            }
+        }
+
+        private void addCut(double a, double b) {
+            if (cutCount + 2 > cuts.length) cuts = Arrays.copyOf(cuts, 2 * cuts.length);
+            cuts[cutCount++] = a;
+            cuts[cutCount++] = b;
+        }
+
+        // Fills kept with the complement of cuts within [0, 1]; specks are dropped
+        void keepComplement(double segLength) {
+            // Insertion sort by range start: a segment rarely has more than a few cuts
+            for (int i = 2; i < cutCount; i += 2) {
+                double a = cuts[i], b = cuts[i + 1];
+                int j = i - 2;
+                while (j >= 0 && cuts[j] > a) {
+                    cuts[j + 2] = cuts[j];
+                    cuts[j + 3] = cuts[j + 1];
+                    j -= 2;
+                }
+                cuts[j + 2] = a;
+                cuts[j + 3] = b;
+            }
+
+            final double eps = 1e-9;
+            final double minT = segLength > 0 ? ERASE_MIN_PIECE / segLength : 1;
+            if (kept.length < cutCount + 2) kept = new double[cutCount + 2];
+
+            keptCount = 0;
+            double from = 0;
+            for (int i = 0; i < cutCount; i += 2) {
+                if (cuts[i] > from + eps && cuts[i] - from >= minT) {
+                    kept[keptCount++] = from;
+                    kept[keptCount++] = cuts[i];
+                }
+                from = Math.max(from, cuts[i + 1]);
+            }
+            if (from < 1 - eps && 1 - from >= minT) {
+                kept[keptCount++] = from;
+                kept[keptCount++] = 1;
+            }
+        }
     }
 
-    private void eraseByGeometricClipping(ArrayList<SvgPath> pList, ArrayList<TextItem> tList,
-                                          ArrayList<Point> rawEpList, int radiusMapUnits) {
-        if (radiusMapUnits <= 0) return;
+    // What an erase changed, by id, so it can be sent instead of the eraser stroke (ERASE_RESULT)
+    private static class EraseResult {
+        final LinkedHashSet<SvgPath> changedPaths = new LinkedHashSet<>();
+        final LinkedHashSet<String> removedTexts = new LinkedHashSet<>();
 
-        final int scale = ERASE_SCALE;
-        final int radius = radiusMapUnits * scale;
+        boolean isEmpty() { return changedPaths.isEmpty() && removedTexts.isEmpty(); }
+
+        String encode() {
+            ArrayList<String> items = new ArrayList<>();
+            for (SvgPath sp : changedPaths) {
+                String d = sp.toSvgData();
+                items.add(d.isEmpty() ? "D;" + sp.id : "P;" + sp.id + ";" + d);
+            }
+            for (String id : removedTexts) items.add("T;" + id);
+            return String.join("@@", items);
+        }
+    }
 
-        ArrayList<Point> scaledRaw = new ArrayList<>(rawEpList.size());
-        for (Point p : rawEpList) scaledRaw.add(new Point(p.x * scale, p.y * scale));
+    private void eraseByGeometricClipping(ArrayList<SvgPath> pList, ArrayList<TextItem> tList,
+                                          PointBuffer rawEp, int radiusMapUnits, EraseResult result) {
+        if (radiusMapUnits <= 0 || rawEp.isEmpty()) return;
 
-        ArrayList<Point> denseEpList = densifyEraserScaled(scaledRaw);
-        Rectangle erBox = buildEraserBox(denseEpList, radius);
-        if (erBox == null) return;
+        EraserShape er = new EraserShape();
+        er.reset(radiusMapUnits);
+        er.addStroke(rawEp, 0, rawEp.size() - 1);
 
         if (pList != null) {
-            for (SvgPath sp : pList) {
+            for (int i = 0; i < pList.size(); i++) {
+                SvgPath sp = pList.get(i);
                 Rectangle spBox = sp.getBounds();
-                Rectangle erBoxMap = new Rectangle(
-                        (int) Math.floor(erBox.x / (double) scale) - 1,
-                        (int) Math.floor(erBox.y / (double) scale) - 1,
-                        (int) Math.ceil(erBox.width / (double) scale) + 2,
-                        (int) Math.ceil(erBox.height / (double) scale) + 2
-                );
-                if (!spBox.intersects(erBoxMap)) continue;
-
-                ArrayList<ArrayList<Point>> polySubs = sp.toScaledPolylineSubpaths(ERASE_FLATNESS, scale);
-                ArrayList<ArrayList<Point>> newSubpaths = new ArrayList<>();
-
-                for (ArrayList<Point> sub : polySubs) {
-                    if (sub.size() < 2) continue;
-
-                    List<Segment> activeSegments = new ArrayList<>();
-                    for (int i = 0; i < sub.size() - 1; i++) activeSegments.add(new Segment(sub.get(i), sub.get(i + 1)));
-
-                    for (Point ep : denseEpList) {
-                        List<Segment> nextGen = new ArrayList<>();
-                        for (Segment s : activeSegments) nextGen.addAll(cutSegmentWithCircle(s, ep, radius));
-                        activeSegments = nextGen;
-                        if (activeSegments.isEmpty()) break;
-                    }
+                if (!er.touches(spBox.x - 1, spBox.y - 1, spBox.x + spBox.width + 1, spBox.y + spBox.height + 1)) continue;
+
+                SvgPath cut = erasedPath(sp, er);
+                if (cut == null) continue;
+                pList.set(i, cut);
+                if (result != null) result.changedPaths.add(cut);
+            }
+        }
+
+        if (tList != null) {
+            for (int i = 0; i < er.n; i++) {
+                final int epX = er.sx[i] / ERASE_SCALE;
+                final int epY = er.sy[i] / ERASE_SCALE;
+
+                tList.removeIf(t -> {
+                    boolean hit = eraserHitsBox(epX, epY, radiusMapUnits, textBox(t));
+                    if (hit && result != null) result.removedTexts.add(t.id);
+                    return hit;
+                });
+            }
+        }
+    }
+
+    // The erased replacement of sp (same id and style), or null if the eraser missed it
+    private static SvgPath erasedPath(SvgPath sp, EraserShape er) {
+        ArrayList<SvgPath.Subpath> out = erasedSubpaths(sp, er, null, null);
+        if (out == null) return null;
+        SvgPath cut = new SvgPath(sp.id, sp.rgb, sp.w);
+        cut.setSubpaths(out);
+        return cut;
+    }
+
+    // Rebuilds only what the eraser cuts; the new subpath list (sp is not modified), or null if nothing was erased.
+    // flat: optional cache of flattened cubics; spare: optional list to fill instead of a new one.
+    private static ArrayList<SvgPath.Subpath> erasedSubpaths(SvgPath sp, EraserShape er,
+                                                             IdentityHashMap<SvgPath.CubicTo, double[]> flat,
+                                                             ArrayList<SvgPath.Subpath> spare) {
+        ArrayList<SvgPath.Subpath> in = sp.subs();
+        ArrayList<SvgPath.Subpath> out = null;
+
+        for (int i = 0; i < in.size(); i++) {
+            SvgPath.Subpath sub = in.get(i);
+            sub.ensureBounds();
+            ArrayList<SvgPath.Subpath> pieces = er.touches(sub.minX, sub.minY, sub.maxX, sub.maxY)
+                    ? eraseFromSubpath(sub, er, flat) : null;
+
+            if (pieces == null) {
+                if (out != null) out.add(sub);
+                continue;
+            }
+            if (out == null) {
+                if (spare == null) out = new ArrayList<>(in.size() + pieces.size());
+                else {
+                    out = spare;
+                    out.clear();
+                }
+                for (int k = 0; k < i; k++) out.add(in.get(k));
+            }
+            out.addAll(pieces);
+        }
+        return out;
+    }
 
-                    if (activeSegments.isEmpty()) continue;
-
-                    ArrayList<Point> cur = new ArrayList<>();
-                    cur.add(activeSegments.get(0).a);
-                    cur.add(activeSegments.get(0).b);
-
-                    for (int i = 1; i < activeSegments.size(); i++) {
-                        Segment s = activeSegments.get(i);
-                        if (s.a.equals(cur.get(cur.size() - 1))) cur.add(s.b);
-                        else {
-                            pruneSubpath(cur);
-                            if (cur.size() >= 2) newSubpaths.add(cur);
-                            cur = new ArrayList<>();
-                            cur.add(s.a);
-                            cur.add(s.b);
-                        }
+    // Returns the surviving pieces, or null if the eraser removed nothing from this subpath
+    private static ArrayList<SvgPath.Subpath> eraseFromSubpath(SvgPath.Subpath sub, EraserShape er,
+                                                               IdentityHashMap<SvgPath.CubicTo, double[]> flat) {
+        final ArrayList<SvgPath.Seg> segs = sub.segs;
+        ArrayList<SvgPath.Subpath> res = null; // created at the first cut
+        SvgPath.Subpath cur = null;
+        double px = sub.startX, py = sub.startY;
+
+        for (int k = 0; k < segs.size(); k++) {
+            SvgPath.Seg s = segs.get(k);
+            er.cutCount = 0;
+            double ex, ey, len;
+
+            if (s instanceof SvgPath.LineTo) {
+                SvgPath.LineTo l = (SvgPath.LineTo) s;
+                ex = l.x; ey = l.y;
+                len = Math.hypot(ex - px, ey - py);
+                if (er.touches(Math.min(px, ex), Math.min(py, ey), Math.max(px, ex), Math.max(py, ey))) {
+                    er.cutLine(px, py, ex, ey, 0, 1);
+                }
+            }
+            else {
+                SvgPath.CubicTo c = (SvgPath.CubicTo) s;
+                ex = c.x; ey = c.y;
+                len = Math.hypot(c.x1 - px, c.y1 - py) + Math.hypot(c.x2 - c.x1, c.y2 - c.y1) + Math.hypot(ex - c.x2, ey - c.y2);
+                if (er.touches(Math.min(Math.min(px, ex), Math.min(c.x1, c.x2)), Math.min(Math.min(py, ey), Math.min(c.y1, c.y2)),
+                        Math.max(Math.max(px, ex), Math.max(c.x1, c.x2)), Math.max(Math.max(py, ey), Math.max(c.y1, c.y2)))) {
+                    cutCubic(px, py, c, er, flat);
+                }
+            }
+
+            if (er.cutCount == 0) {
+                if (res != null) {
+                    if (cur == null) { cur = new SvgPath.Subpath(px, py); res.add(cur); }
+                    cur.segs.add(s);
+                }
+            }
+            else {
+                if (res == null) {
+                    // Everything before the first cut survives as one piece
+                    res = new ArrayList<>();
+                    if (k > 0) {
+                        cur = new SvgPath.Subpath(sub.startX, sub.startY);
+                        for (int j = 0; j < k; j++) cur.segs.add(segs.get(j));
+                        res.add(cur);
+                    }
+                }
+                er.keepComplement(len);
+                for (int i = 0; i < er.keptCount; i += 2) {
+                    double a = er.kept[i], b = er.kept[i + 1];
+                    if (cur == null || a > 0) {
+                        pointAt(px, py, s, a, er.pt);
+                        cur = new SvgPath.Subpath(er.pt[0], er.pt[1]);
+                        res.add(cur);
                     }
-                    pruneSubpath(cur);
-                    if (cur.size() >= 2) newSubpaths.add(cur);
+                    cur.segs.add(subSegment(px, py, s, a, b, er));
+                    if (b < 1) cur = null;
                 }
+                if (er.keptCount == 0) cur = null;
+            }
+
+            px = ex; py = ey;
+        }
+        return res;
+    }
+
+    // Cuts each chord of the flattened cubic, in curve parameter space
+    private static void cutCubic(double x0, double y0, SvgPath.CubicTo c, EraserShape er,
+                                 IdentityHashMap<SvgPath.CubicTo, double[]> flat) {
+        double[] pts = flat == null ? null : flat.get(c);
+        if (pts == null) {
+            pts = flattenCubic(x0, y0, c);
+            if (flat != null) flat.put(c, pts);
+        }
+
+        final int steps = pts.length / 2 - 1;
+        for (int i = 1; i <= steps; i++) {
+            double ax = pts[2 * i - 2], ay = pts[2 * i - 1], bx = pts[2 * i], by = pts[2 * i + 1];
+            if (er.touches(Math.min(ax, bx), Math.min(ay, by), Math.max(ax, bx), Math.max(ay, by))) {
+                er.cutLine(ax, ay, bx, by, (i - 1) / (double) steps, i / (double) steps);
+            }
+        }
+    }
+
+    // Chord end points {x0, y0, x1, y1, ...} at uniform t, step count from Wang's formula
+    private static double[] flattenCubic(double x0, double y0, SvgPath.CubicTo c) {
+        double ddx = Math.max(Math.abs(x0 - 2 * c.x1 + c.x2), Math.abs(c.x1 - 2 * c.x2 + c.x));
+        double ddy = Math.max(Math.abs(y0 - 2 * c.y1 + c.y2), Math.abs(c.y1 - 2 * c.y2 + c.y));
+        int steps = (int) Math.ceil(Math.sqrt(0.75 * Math.hypot(ddx, ddy) / ERASE_FLATNESS));
+        steps = Math.max(1, Math.min(512, steps));
+
+        double[] pts = new double[2 * (steps + 1)];
+        pts[0] = x0; pts[1] = y0;
+        for (int i = 1; i < steps; i++) {
+            double t = i / (double) steps, mt = 1 - t;
+            double a = mt * mt * mt, b = 3 * mt * mt * t, d = 3 * mt * t * t, e = t * t * t;
+            pts[2 * i] = a * x0 + b * c.x1 + d * c.x2 + e * c.x;
+            pts[2 * i + 1] = a * y0 + b * c.y1 + d * c.y2 + e * c.y;
+        }
+        pts[2 * steps] = c.x; pts[2 * steps + 1] = c.y;
+        return pts;
+    }
+
+    private static void pointAt(double x0, double y0, SvgPath.Seg s, double t, double[] out) {
+        if (t <= 0) {
+            out[0] = x0; out[1] = y0;
+        }
+        else if (s instanceof SvgPath.LineTo) {
+            SvgPath.LineTo l = (SvgPath.LineTo) s;
+            if (t >= 1) { out[0] = l.x; out[1] = l.y; }
+            else { out[0] = x0 + t * (l.x - x0); out[1] = y0 + t * (l.y - y0); }
+        }
+        else {
+            SvgPath.CubicTo c = (SvgPath.CubicTo) s;
+            if (t >= 1) { out[0] = c.x; out[1] = c.y; return; }
+            double mt = 1 - t;
+            double a = mt * mt * mt, b = 3 * mt * mt * t, d = 3 * mt * t * t, e = t * t * t;
+            out[0] = a * x0 + b * c.x1 + d * c.x2 + e * c.x;
+            out[1] = a * y0 + b * c.y1 + d * c.y2 + e * c.y;
+        }
+    }
+
+    // The part of the segment between parameters a and b (de Casteljau for cubics)
+    private static SvgPath.Seg subSegment(double x0, double y0, SvgPath.Seg s, double a, double b, EraserShape er) {
+        if (s instanceof SvgPath.LineTo) {
+            pointAt(x0, y0, s, b, er.pt);
+            return new SvgPath.LineTo(er.pt[0], er.pt[1]);
+        }
+        SvgPath.CubicTo c = (SvgPath.CubicTo) s;
+        if (a <= 0 && b >= 1) return new SvgPath.CubicTo(c.x1, c.y1, c.x2, c.y2, c.x, c.y);
+
+        double[] px = er.bx, py = er.by;
+        px[0] = x0; px[1] = c.x1; px[2] = c.x2; px[3] = c.x;
+        py[0] = y0; py[1] = c.y1; py[2] = c.y2; py[3] = c.y;
+        if (b < 1) {
+            splitLeft(px, b);
+            splitLeft(py, b);
+        }
+        if (a > 0) {
+            double ta = a / b; // 'a' rescaled into the already truncated [0, b] curve
+            splitRight(px, ta);
+            splitRight(py, ta);
+        }
+        return new SvgPath.CubicTo(px[1], py[1], px[2], py[2], px[3], py[3]);
+    }
+
+    // In place: control values of the [0, t] part of the cubic
+    private static void splitLeft(double[] p, double t) {
+        double p01 = p[0] + (p[1] - p[0]) * t, p12 = p[1] + (p[2] - p[1]) * t, p23 = p[2] + (p[3] - p[2]) * t;
+        double p012 = p01 + (p12 - p01) * t, p123 = p12 + (p23 - p12) * t;
+        p[1] = p01; p[2] = p012; p[3] = p012 + (p123 - p012) * t;
+    }
+
+    // In place: control values of the [t, 1] part of the cubic
+    private static void splitRight(double[] p, double t) {
+        double p01 = p[0] + (p[1] - p[0]) * t, p12 = p[1] + (p[2] - p[1]) * t, p23 = p[2] + (p[3] - p[2]) * t;
+        double p012 = p01 + (p12 - p01) * t, p123 = p12 + (p23 - p12) * t;
+        p[0] = p012 + (p123 - p012) * t; p[1] = p123; p[2] = p23;
+    }
+
+    // ------------------- Legacy eraser -------------------
+    // ERASE_PATH, as cut before ERASE_SEG: paths flattened to polylines on the ERASE_SCALE grid, every segment
+    // clipped against a circle at each densified eraser point, survivors rounded back onto the grid.
+
+    private static class Segment {
+        Point a, b;
+        Segment(Point a, Point b) { this.a = a; this.b = b; }
+    }
+
+    private void eraseAsPolylines(ArrayList<SvgPath> pList, ArrayList<TextItem> tList, PointBuffer rawEp,
+                                  int radiusMapUnits, EraseResult result) {
+        if (radiusMapUnits <= 0 || rawEp.isEmpty()) return;
+
+        final int scale = ERASE_SCALE;
+        final int radius = radiusMapUnits * scale;
 
-                if (!polylineEquals(polySubs, newSubpaths)) {
-                    sp.setFromScaledPolylineSubpaths(newSubpaths, scale);
+        ArrayList<Point> denseEpList = densifyEraserScaled(rawEp);
+        Rectangle erBox = buildEraserBox(denseEpList, radius);
+        Rectangle erBoxMap = new Rectangle(
+                (int) Math.floor(erBox.x / (double) scale) - 1,
+                (int) Math.floor(erBox.y / (double) scale) - 1,
+                (int) Math.ceil(erBox.width / (double) scale) + 2,
+                (int) Math.ceil(erBox.height / (double) scale) + 2
+        );
+
+        for (int p = 0; p < pList.size(); p++) {
+            SvgPath sp = pList.get(p);
+            if (!sp.getBounds().intersects(erBoxMap)) continue;
+
+            ArrayList<ArrayList<Point>> polySubs = toScaledPolylines(sp, scale);
+            ArrayList<ArrayList<Point>> newSubpaths = new ArrayList<>();
+
+            for (ArrayList<Point> sub : polySubs) {
+                List<Segment> activeSegments = new ArrayList<>();
+                for (int i = 0; i < sub.size() - 1; i++) activeSegments.add(new Segment(sub.get(i), sub.get(i + 1)));
+
+                for (Point ep : denseEpList) {
+                    List<Segment> nextGen = new ArrayList<>();
+                    for (Segment s : activeSegments) nextGen.addAll(cutSegmentWithCircle(s, ep, radius));
+                    activeSegments = nextGen;
+                    if (activeSegments.isEmpty()) break;
+                }
+                if (activeSegments.isEmpty()) continue;
+
+                ArrayList<Point> cur = new ArrayList<>();
+                cur.add(activeSegments.get(0).a);
+                cur.add(activeSegments.get(0).b);
+                for (int i = 1; i < activeSegments.size(); i++) {
+                    Segment s = activeSegments.get(i);
+                    if (s.a.equals(cur.get(cur.size() - 1))) cur.add(s.b);
+                    else {
+                        pruneSubpath(cur);
+                        if (cur.size() >= 2) newSubpaths.add(cur);
+                        cur = new ArrayList<>();
+                        cur.add(s.a);
+                        cur.add(s.b);
+                    }
                 }
+                pruneSubpath(cur);
+                if (cur.size() >= 2) newSubpaths.add(cur);
+            }
+
+            if (polySubs.equals(newSubpaths)) continue;
+            SvgPath cut = new SvgPath(sp.id, sp.rgb, sp.w);
+            ArrayList<SvgPath.Subpath> subs = new ArrayList<>(newSubpaths.size());
+            for (ArrayList<Point> pts : newSubpaths) {
+                SvgPath.Subpath s = new SvgPath.Subpath(pts.get(0).x / (double) scale, pts.get(0).y / (double) scale);
+                for (int i = 1; i < pts.size(); i++) s.segs.add(new SvgPath.LineTo(pts.get(i).x / (double) scale, pts.get(i).y / (double) scale));
+                subs.add(s);
             }
+            cut.setSubpaths(subs);
+            pList.set(p, cut);
+            result.changedPaths.add(cut);
         }
 
-        if (tList != null) {
-            for (Point epScaled : denseEpList) {
-                final int epX = epScaled.x / scale;
-                final int epY = epScaled.y / scale;
-                Point ep = new Point(epX, epY);
+        for (Point epScaled : denseEpList) {
+            final int epX = epScaled.x / scale, epY = epScaled.y / scale;
+            tList.removeIf(t -> {
+                boolean hit = eraserHitsBox(epX, epY, radiusMapUnits, textBox(t));
+                if (hit) result.removedTexts.add(t.id);
+                return hit;
+            });
+        }
+    }
 
-                tList.removeIf(t -> {
-                    FontMetrics fm = map.getView().getFontMetrics(new Font(t.fontName, Font.PLAIN, t.fontSize));
-                    Rectangle box = new Rectangle(t.x, t.y - fm.getAscent(),
-                            Math.max(1, fm.stringWidth(t.text)), Math.max(1, fm.getHeight()));
-                    Rectangle exp = new Rectangle(box.x - radiusMapUnits, box.y - radiusMapUnits,
-                            box.width + 2 * radiusMapUnits, box.height + 2 * radiusMapUnits);
-                    if (!exp.contains(ep)) return false;
-                    int cx = Math.max(box.x, Math.min(box.x + box.width, ep.x));
-                    int cy = Math.max(box.y, Math.min(box.y + box.height, ep.y));
-                    return dist2(ep, new Point(cx, cy)) <= radiusMapUnits * radiusMapUnits;
-                });
+    private static ArrayList<ArrayList<Point>> toScaledPolylines(SvgPath path, int scale) {
+        ArrayList<ArrayList<Point>> out = new ArrayList<>();
+        if (!path.hasCurves()) {
+            for (SvgPath.Subpath sp : path.subs()) {
+                ArrayList<Point> pts = new ArrayList<>();
+                pts.add(new Point((int) Math.round(sp.startX * scale), (int) Math.round(sp.startY * scale)));
+                for (SvgPath.Seg s : sp.segs) {
+                    SvgPath.LineTo l = (SvgPath.LineTo) s;
+                    Point np = new Point((int) Math.round(l.x * scale), (int) Math.round(l.y * scale));
+                    if (!np.equals(pts.get(pts.size() - 1))) pts.add(np);
+                }
+                if (pts.size() >= 2) out.add(pts);
+            }
+            return out;
+        }
+
+        PathIterator it = path.buildMapPath().getPathIterator(null, ERASE_FLATNESS);
+        double[] c = new double[6];
+        ArrayList<Point> cur = null;
+        while (!it.isDone()) {
+            int seg = it.currentSegment(c);
+            if (seg == PathIterator.SEG_MOVETO) {
+                if (cur != null && cur.size() >= 2) out.add(cur);
+                cur = new ArrayList<>();
+                cur.add(new Point((int) Math.round(c[0] * scale), (int) Math.round(c[1] * scale)));
             }
+            else if (seg == PathIterator.SEG_LINETO) {
+                if (cur == null) cur = new ArrayList<>();
+                Point np = new Point((int) Math.round(c[0] * scale), (int) Math.round(c[1] * scale));
+                if (cur.isEmpty() || !np.equals(cur.get(cur.size() - 1))) cur.add(np);
+            }
+            it.next();
         }
+        if (cur != null && cur.size() >= 2) out.add(cur);
+        return out;
     }
 
-    private ArrayList<Point> densifyEraserScaled(ArrayList<Point> rawScaled) {
+    private static ArrayList<Point> densifyEraserScaled(PointBuffer raw) {
         ArrayList<Point> dense = new ArrayList<>();
-        if (rawScaled.isEmpty()) return dense;
-
-        for (int i = 0; i < rawScaled.size(); i++) {
-            if (i == 0) dense.add(rawScaled.get(i));
+        for (int i = 0; i < raw.size(); i++) {
+            int x = raw.x(i) * ERASE_SCALE, y = raw.y(i) * ERASE_SCALE;
+            if (i == 0) dense.add(new Point(x, y));
             else {
-                Point last = rawScaled.get(i - 1), cur = rawScaled.get(i);
-                int dx = cur.x - last.x, dy = cur.y - last.y;
+                int lx = raw.x(i - 1) * ERASE_SCALE, ly = raw.y(i - 1) * ERASE_SCALE;
+                int dx = x - lx, dy = y - ly;
                 double d = Math.sqrt(dx * (double) dx + dy * (double) dy);
 
                 int steps = Math.max(1, (int) (d / (2.0 * ERASE_SCALE)));
-                for (int j = 1; j <= steps; j++) dense.add(new Point(last.x + dx * j / steps, last.y + dy * j / steps));
+                for (int j = 1; j <= steps; j++) dense.add(new Point(lx + dx * j / steps, ly + dy * j / steps));
             }
         }
         return dense;
     }
 
-    private Rectangle buildEraserBox(ArrayList<Point> denseScaled, int radiusScaled) {
-        if (denseScaled == null || denseScaled.isEmpty()) return null;
+    private static Rectangle buildEraserBox(ArrayList<Point> denseScaled, int radiusScaled) {
         Rectangle r = null;
         for (Point ep : denseScaled) {
             Rectangle b = new Rectangle(ep.x - radiusScaled, ep.y - radiusScaled, radiusScaled * 2, radiusScaled * 2);
@@ -1163,7 +4732,7 @@ public class MapAnnotator extends AbstractConfigurable
         return r;
     }
 
-    private List<Segment> cutSegmentWithCircle(Segment seg, Point c, int r) {
+    private static List<Segment> cutSegmentWithCircle(Segment seg, Point c, int r) {
         int minx = Math.min(seg.a.x, seg.b.x), maxx = Math.max(seg.a.x, seg.b.x);
         int miny = Math.min(seg.a.y, seg.b.y), maxy = Math.max(seg.a.y, seg.b.y);
         if (maxx < c.x - r || minx > c.x + r || maxy < c.y - r || miny > c.y + r) {
@@ -1211,86 +4780,74 @@ public class MapAnnotator extends AbstractConfigurable
         return res;
     }
 
+    private static void pruneSubpath(ArrayList<Point> pts) {
+        for (int i = pts.size() - 2; i >= 0; i--) {
+            if (pts.get(i).equals(pts.get(i + 1))) pts.remove(i + 1);
+        }
+        for (int i = pts.size() - 1; i >= 1; i--) {
+            int dx = pts.get(i).x - pts.get(i - 1).x;
+            int dy = pts.get(i).y - pts.get(i - 1).y;
+            if (dx * dx + dy * dy <= 1) pts.remove(i);
+        }
+    }
+
     // ------------------- Hit testing / utilities -------------------
-    private int findTextHit(Point local) {
-        for (int i = texts.size() - 1; i >= 0; i--) {
-            TextItem t = texts.get(i);
-            FontMetrics fm = map.getView().getFontMetrics(new Font(t.fontName, Font.PLAIN, t.fontSize));
-            if (new Rectangle(t.x, t.y - fm.getAscent(),
-                    Math.max(1, fm.stringWidth(t.text)), Math.max(1, fm.getHeight())).contains(local)) return i;
+    private int findTextHit(State s, Point local) {
+        for (int i = s.texts.size() - 1; i >= 0; i--) {
+            if (textBox(s.texts.get(i)).contains(local)) return i;
         }
         return -1;
     }
 
-    private void addIfFar(ArrayList<Point> pts, Point p, int minDist) {
-        if (pts.isEmpty() || dist2(pts.get(pts.size() - 1), p) >= minDist * minDist) pts.add(p);
+    // Metrics of a view's FontMetrics (no antialiasing, whole advances) without a component: any thread measures
+    private static final FontRenderContext TEXT_FRC = new FontRenderContext(null, false, false);
+
+    // MAP-space box of a text item as last displayed (baseline at t.y), measured once per displayed string
+    private static Rectangle textBox(TextItem t) {
+        String shown = t.shown;
+        if (shown == null) shown = t.text;
+        TextBox b = t.box;
+        if (b == null || !b.text.equals(shown)) {
+            Font f = new Font(t.fontName, Font.PLAIN, t.fontSize);
+            LineMetrics lm = f.getLineMetrics(shown, TEXT_FRC);
+            int ascent = (int) Math.ceil(lm.getAscent());
+            int width = (int) Math.round(f.getStringBounds(shown, TEXT_FRC).getWidth());
+            int height = (int) Math.ceil(lm.getAscent() + lm.getDescent() + lm.getLeading());
+            b = new TextBox(shown, new Rectangle(t.x, t.y - ascent, Math.max(1, width), Math.max(1, height)));
+            t.box = b;
+        }
+        return new Rectangle(b.box);
     }
 
-    private int dist2(Point a, Point b) {
-        int dx = a.x - b.x, dy = a.y - b.y;
-        return dx * dx + dy * dy;
+    private static boolean eraserHitsBox(int ex, int ey, int radius, Rectangle box) {
+        if (ex < box.x - radius || ex >= box.x + box.width + radius
+                || ey < box.y - radius || ey >= box.y + box.height + radius) return false;
+        int dx = ex - Math.max(box.x, Math.min(box.x + box.width, ex));
+        int dy = ey - Math.max(box.y, Math.min(box.y + box.height, ey));
+        return dx * dx + dy * dy <= radius * radius;
     }
 
     private boolean isLeftDown(MouseEvent e) {
         return (e.getModifiersEx() & InputEvent.BUTTON1_DOWN_MASK) != 0;
     }
 
-    private ArrayList<SvgPath> deepCopyPaths(ArrayList<SvgPath> src) {
-        ArrayList<SvgPath> out = new ArrayList<>(src.size());
-        for (SvgPath sp : src) {
-            SvgPath cp = new SvgPath(sp.id, sp.rgb, sp.w);
-            for (SvgPath.Subpath sub : sp.subs) {
-                SvgPath.Subpath subCp = new SvgPath.Subpath(sub.startX, sub.startY);
-                for (SvgPath.Seg seg : sub.segs) {
-                    if (seg instanceof SvgPath.LineTo) {
-                        SvgPath.LineTo l = (SvgPath.LineTo) seg;
-                        subCp.segs.add(new SvgPath.LineTo(l.x, l.y));
-                    }
-                    else if (seg instanceof SvgPath.CubicTo) {
-                        SvgPath.CubicTo c = (SvgPath.CubicTo) seg;
-                        subCp.segs.add(new SvgPath.CubicTo(c.x1, c.y1, c.x2, c.y2, c.x, c.y));
-                    }
+    private static void copySubpaths(SvgPath from, SvgPath to) {
+        for (SvgPath.Subpath sub : from.subs()) {
+            SvgPath.Subpath subCp = new SvgPath.Subpath(sub.startX, sub.startY);
+            subCp.segs.ensureCapacity(sub.segs.size());
+            for (SvgPath.Seg seg : sub.segs) {
+                if (seg instanceof SvgPath.LineTo) {
+                    SvgPath.LineTo l = (SvgPath.LineTo) seg;
+                    subCp.segs.add(new SvgPath.LineTo(l.x, l.y));
+                }
+                else if (seg instanceof SvgPath.CubicTo) {
+                    SvgPath.CubicTo c = (SvgPath.CubicTo) seg;
+                    subCp.segs.add(new SvgPath.CubicTo(c.x1, c.y1, c.x2, c.y2, c.x, c.y));
                 }
-                cp.subs.add(subCp);
-            }
-            cp.invalidateBounds();
-            out.add(cp);
-        }
-        return out;
-    }
-
-    private ArrayList<TextItem> deepCopyTexts(ArrayList<TextItem> src) {
-        ArrayList<TextItem> out = new ArrayList<>(src.size());
-        for (TextItem t : src) out.add(new TextItem(t.id, t.x, t.y, t.rgb, t.fontName, t.fontSize, t.text));
-        return out;
-    }
-
-    private static boolean polylineEquals(ArrayList<ArrayList<Point>> a, ArrayList<ArrayList<Point>> b) {
-        if (a == b) return true;
-        if (a == null || b == null) return false;
-        if (a.size() != b.size()) return false;
-        for (int i = 0; i < a.size(); i++) {
-            ArrayList<Point> sa = a.get(i), sb = b.get(i);
-            if (sa.size() != sb.size()) return false;
-            for (int j = 0; j < sa.size(); j++) {
-                if (!sa.get(j).equals(sb.get(j))) return false;
             }
+            to.subs().add(subCp);
         }
-        return true;
-    }
-
-    private static void pruneSubpath(ArrayList<Point> pts) {
-        if (pts == null) return;
-
-        for (int i = pts.size() - 2; i >= 0; i--) {
-            if (pts.get(i).equals(pts.get(i + 1))) pts.remove(i + 1);
-        }
-
-        for (int i = pts.size() - 1; i >= 1; i--) {
-            int dx = pts.get(i).x - pts.get(i - 1).x;
-            int dy = pts.get(i).y - pts.get(i - 1).y;
-            if (dx * dx + dy * dy <= 1) pts.remove(i);
-        }
+        to.invalidateBounds();
     }
 
     private static String safeFont(String s) {
@@ -0,0 +1,255 @@
+package drawing;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import VASSAL.build.module.Map;
+import VASSAL.command.Command;
+
+/**
+ * Headless load test for {@link MapAnnotator}: replays an "ANNOTATE;" command stream (a file, or one made by
+ * {@link AnnotationLogGenerator}) against a stand-in map, painting every few commands and checking that a second
+ * annotator restored from it holds the same state. Reports throughput, peak heap and latency percentiles.
+ *
+ * Usage: java -Djava.awt.headless=true drawing.ReplayHarness [log=file | generator options, see AnnotationLogGenerator]
+ *        [paintEvery=250] [restoreEvery=5000] [compress=true] [view=1600x1200]
+ */
+final class ReplayHarness {
+
+    private static final int MAX_PAINT_FRAMES = 10_000;
+
+    private final int paintEvery, restoreEvery;
+    private final boolean compress;
+    private final BufferedImage canvas;
+
+    private final TreeMap<String, Samples> samples = new TreeMap<>();
+    private long restoreBytes = 0;
+    private int restoreMismatches = 0;
+
+    private ReplayHarness(int paintEvery, int restoreEvery, boolean compress, int viewW, int viewH) {
+        this.paintEvery = paintEvery;
+        this.restoreEvery = restoreEvery;
+        this.compress = compress;
+        this.canvas = new BufferedImage(viewW, viewH, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    // ------------------- Replay -------------------
+    private void run(List<String> lines) {
+        String mapId = lines.isEmpty() ? "Map0" : mapIdOf(lines.get(0));
+        HeadlessMap map = new HeadlessMap(mapId, canvas.getWidth(), canvas.getHeight());
+        MapAnnotator annotator = newAnnotator(map);
+
+        resetPeakHeap();
+        final long start = System.nanoTime();
+        int n = 0;
+        for (String line : lines) {
+            if (line.isEmpty()) continue;
+
+            // Until the command is applied and published (it is parsed and applied on the annotator's own thread)
+            long t0 = System.nanoTime();
+            Command c = annotator.decode(line);
+            if (c == null) continue;
+            c.execute();
+            annotator.awaitApplied();
+            sample(actionOf(line), System.nanoTime() - t0);
+            n++;
+
+            if (paintEvery > 0 && n % paintEvery == 0) paint(annotator, map);
+            if (restoreEvery > 0 && n % restoreEvery == 0) restore(annotator, mapId);
+        }
+        paint(annotator, map);
+        restore(annotator, mapId);
+        final long elapsed = System.nanoTime() - start;
+
+        report(n, elapsed);
+    }
+
+    // A paint draws only what the style batches caught up with in the frame's budget; the frames after it run the
+    // rest and draw again, until a draw leaves no work. "(paint)" is one frame, "(paint synced)" all of them.
+    private void paint(MapAnnotator annotator, Map map) {
+        final long start = System.nanoTime();
+        int frames = 0;
+        do {
+            Graphics2D g = canvas.createGraphics();
+            g.setClip(0, 0, canvas.getWidth(), canvas.getHeight());
+            long t0 = System.nanoTime();
+            annotator.draw(g, map);
+            sample("(paint)", System.nanoTime() - t0);
+            g.dispose();
+        } while (++frames < MAX_PAINT_FRAMES && annotator.replayFrame());
+        sample("(paint synced)", System.nanoTime() - start);
+    }
+
+    // What a joining client sees: the restore command, encoded, decoded and executed on an empty annotator
+    private void restore(MapAnnotator annotator, String mapId) {
+        long t0 = System.nanoTime();
+        Command r = annotator.getRestoreCommand();
+        ArrayList<String> wire = new ArrayList<>();
+        flatten(r, annotator, wire);
+        sample("(restore encode)", System.nanoTime() - t0);
+
+        MapAnnotator joined = newAnnotator(new HeadlessMap(mapId, canvas.getWidth(), canvas.getHeight()));
+        t0 = System.nanoTime();
+        for (String s : wire) {
+            restoreBytes += s.length();
+            Command c = joined.decode(s);
+            if (c != null) c.execute();
+        }
+        joined.awaitApplied();
+        sample("(restore apply)", System.nanoTime() - t0);
+
+        // Compare the two states through their own restore commands
+        ArrayList<String> again = new ArrayList<>();
+        flatten(joined.getRestoreCommand(), joined, again);
+        if (!again.equals(wire)) restoreMismatches++;
+    }
+
+    // The command and its subcommands, encoded (also used by SyncCheck)
+    static void flatten(Command c, MapAnnotator encoder, List<String> out) {
+        if (c == null) return;
+        String s = encoder.encode(c);
+        if (s != null) out.add(s);
+        for (Command sub : c.getSubCommands()) flatten(sub, encoder, out);
+    }
+
+    private MapAnnotator newAnnotator(Map map) {
+        MapAnnotator a = new MapAnnotator();
+        a.setAttribute("compressRestore", compress);
+        a.attachHeadless(map);
+        return a;
+    }
+
+    static String mapIdOf(String line) {
+        int from = line.indexOf(';') + 1, to = line.indexOf("||", from);
+        return to > from ? line.substring(from, to) : "Map0";
+    }
+
+    static String actionOf(String line) {
+        int from = line.indexOf("||");
+        int to = from < 0 ? -1 : line.indexOf("||", from + 2);
+        return to < 0 ? "?" : line.substring(from + 2, to);
+    }
+
+    // ------------------- Measurements -------------------
+    static final class Samples {
+        long[] v = new long[1024];
+        int n = 0;
+
+        void add(long nanos) {
+            if (n == v.length) v = Arrays.copyOf(v, 2 * n);
+            v[n++] = nanos;
+        }
+    }
+
+    private void sample(String kind, long nanos) {
+        samples.computeIfAbsent(kind, k -> new Samples()).add(nanos);
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP) p.resetPeakUsage();
+        }
+    }
+
+    // Sum of the pools' peaks: an upper bound, the pools do not peak at the same time
+    private static long peakHeap() {
+        long sum = 0;
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP) sum += p.getPeakUsage().getUsed();
+        }
+        return sum;
+    }
+
+    private void report(int commands, long elapsedNanos) {
+        long peak = peakHeap();
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long retained = rt.totalMemory() - rt.freeMemory();
+
+        System.out.printf(Locale.US, "%d commands in %.2f s: %.0f commands/s%n",
+                commands, elapsedNanos / 1e9, commands / (elapsedNanos / 1e9));
+        System.out.printf(Locale.US, "heap: peak <= %.1f MB, retained after replay %.1f MB%n", peak / 1e6, retained / 1e6);
+        System.out.printf(Locale.US, "restore traffic: %.1f KB total, %s%n", restoreBytes / 1024.0,
+                restoreMismatches == 0 ? "every restore reproduced the state" : restoreMismatches + " restore(s) DIFFERED");
+        System.out.println();
+        printLatencies(samples);
+    }
+
+    // One row per kind, in the map's order (also used by InputReplayer)
+    static void printLatencies(java.util.Map<String, Samples> samples) {
+        System.out.printf(Locale.US, "%-18s %8s %10s %10s %10s %10s %10s%n", "latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (java.util.Map.Entry<String, Samples> e : samples.entrySet()) {
+            Samples s = e.getValue();
+            long[] v = Arrays.copyOf(s.v, s.n);
+            Arrays.sort(v);
+            System.out.printf(Locale.US, "%-18s %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", e.getKey(), v.length,
+                    pct(v, 0.50), pct(v, 0.90), pct(v, 0.99), pct(v, 0.999), v[v.length - 1] / 1e6);
+        }
+    }
+
+    private static double pct(long[] sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+
+    // ------------------- Stand-in map -------------------
+    // Fixed id, identity map <-> component coordinates, no repaints
+    static final class HeadlessMap extends Map {
+        private final String id;
+        private final JPanel view = new JPanel();
+
+        HeadlessMap(String id, int w, int h) {
+            this.id = id;
+            view.setSize(w, h);
+        }
+
+        @Override public String getId() { return id; }
+        @Override public JComponent getView() { return view; }
+        @Override public void repaint() {}
+        @Override public double getZoom() { return 1.0; }
+        @Override public Point mapToComponent(Point p) { return new Point(p); }
+        @Override public Point componentToMap(Point p) { return new Point(p); }
+        @Override public Rectangle mapToComponent(Rectangle r) { return new Rectangle(r); }
+        @Override public Rectangle componentToMap(Rectangle r) { return new Rectangle(r); }
+    }
+
+    // ------------------- Command line -------------------
+    public static void main(String[] args) throws Exception {
+        String log = AnnotationLogGenerator.arg(args, "log", null);
+        List<String> lines;
+        if (log != null) lines = Files.readAllLines(Paths.get(log), StandardCharsets.UTF_8);
+        else {
+            StringBuilder sb = new StringBuilder();
+            AnnotationLogGenerator.fromArgs(args).write(sb);
+            lines = Arrays.asList(sb.toString().split("\n"));
+        }
+
+        String[] view = AnnotationLogGenerator.arg(args, "view", "1600x1200").split("x");
+        ReplayHarness h = new ReplayHarness(
+                Integer.parseInt(AnnotationLogGenerator.arg(args, "paintEvery", "250")),
+                Integer.parseInt(AnnotationLogGenerator.arg(args, "restoreEvery", "5000")),
+                Boolean.parseBoolean(AnnotationLogGenerator.arg(args, "compress", "true")),
+                Integer.parseInt(view[0]), Integer.parseInt(view[1]));
+
+        // Commands run on the event thread in VASSAL as well
+        SwingUtilities.invokeAndWait(() -> h.run(lines));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,565 @@
+package drawing;
+
+import java.awt.geom.AffineTransform;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming SVG shape importer for {@link MapAnnotator}.
+ *
+ * Reads path, polyline, polygon, line, rect, circle and ellipse elements (with nested transforms) through StAX,
+ * so no DOM is ever built. Everything is converted to LineTo/CubicTo segments; quadratics and arcs become cubics.
+ * Parsed shapes are cached per file, so placing the same shape again does not touch the disk.
+ */
+final class SvgImporter {
+
+    // Hard cap on imported segments, keeps pathological files from exhausting the heap
+    static final int MAX_SEGMENTS = 250_000;
+
+    // Parsed templates kept in memory (LRU)
+    private static final int CACHE_SIZE = 16;
+    private static final LinkedHashMap<String, MapAnnotator.SvgPath> CACHE =
+            new LinkedHashMap<String, MapAnnotator.SvgPath>(CACHE_SIZE, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(java.util.Map.Entry<String, MapAnnotator.SvgPath> e) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private SvgImporter() {}
+
+    /**
+     * Returns the shape template for the given file, parsing it only if it is not cached yet (or changed on disk).
+     * The returned path is shared: callers must copy it before modifying.
+     */
+    static MapAnnotator.SvgPath load(File f) throws IOException {
+        String key = f.getCanonicalPath() + "|" + f.lastModified() + "|" + f.length();
+        synchronized (CACHE) {
+            MapAnnotator.SvgPath hit = CACHE.get(key);
+            if (hit != null) return hit;
+        }
+
+        MapAnnotator.SvgPath sp;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(f.toPath()))) {
+            sp = parse(in);
+        }
+
+        synchronized (CACHE) {
+            CACHE.put(key, sp);
+        }
+        return sp;
+    }
+
+    static MapAnnotator.SvgPath parse(InputStream in) throws IOException {
+        XMLInputFactory xf = XMLInputFactory.newFactory();
+        xf.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xf.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xf.setProperty(XMLInputFactory.IS_COALESCING, false);
+
+        Sink sink = new Sink();
+        Deque<AffineTransform> stack = new ArrayDeque<>();
+        stack.push(new AffineTransform());
+        int skipDepth = 0;
+
+        XMLStreamReader r = null;
+        try {
+            r = xf.createXMLStreamReader(in);
+            while (r.hasNext()) {
+                int ev = r.next();
+
+                if (ev == XMLStreamConstants.START_ELEMENT) {
+                    String name = r.getLocalName();
+
+                    if (skipDepth > 0 || isNonRendering(name)) {
+                        skipDepth++;
+                        continue;
+                    }
+
+                    AffineTransform at = new AffineTransform(stack.peek());
+                    String tr = r.getAttributeValue(null, "transform");
+                    if (tr != null) at.concatenate(parseTransform(tr));
+                    stack.push(at);
+
+                    sink.at = at;
+                    readElement(r, name, sink);
+                }
+                else if (ev == XMLStreamConstants.END_ELEMENT) {
+                    if (skipDepth > 0) skipDepth--;
+                    else if (stack.size() > 1) stack.pop();
+                }
+            }
+        }
+        catch (XMLStreamException | IllegalArgumentException e) {
+            throw new IOException("Invalid SVG: " + e.getMessage(), e);
+        }
+        finally {
+            if (r != null) {
+                try { r.close(); } catch (XMLStreamException ignored) {}
+            }
+        }
+
+        sink.path.subs().removeIf(sp -> sp.segs.isEmpty());
+        if (sink.path.subs().isEmpty()) throw new IOException("SVG contains no drawable shapes");
+        sink.path.invalidateBounds();
+        return sink.path;
+    }
+
+    private static boolean isNonRendering(String name) {
+        return name.equals("defs") || name.equals("clipPath") || name.equals("mask") || name.equals("symbol")
+                || name.equals("pattern") || name.equals("marker") || name.equals("metadata") || name.equals("style")
+                || name.equals("title") || name.equals("desc") || name.equals("linearGradient")
+                || name.equals("radialGradient") || name.equals("filter");
+    }
+
+    private static void readElement(XMLStreamReader r, String name, Sink sink) throws IOException {
+        if (name.equals("path")) {
+            String d = r.getAttributeValue(null, "d");
+            if (d != null) new PathDataParser(d, sink).parse();
+        }
+        else if (name.equals("polyline") || name.equals("polygon")) {
+            String pts = r.getAttributeValue(null, "points");
+            if (pts == null) return;
+            NumberScanner ns = new NumberScanner(pts);
+            boolean first = true;
+            while (ns.hasNumber()) {
+                double x = ns.next();
+                if (!ns.hasNumber()) break;
+                double y = ns.next();
+                if (first) { sink.moveTo(x, y); first = false; }
+                else sink.lineTo(x, y);
+            }
+            if (!first && name.equals("polygon")) sink.close();
+        }
+        else if (name.equals("line")) {
+            sink.moveTo(attr(r, "x1"), attr(r, "y1"));
+            sink.lineTo(attr(r, "x2"), attr(r, "y2"));
+        }
+        else if (name.equals("rect")) {
+            double x = attr(r, "x"), y = attr(r, "y"), w = attr(r, "width"), h = attr(r, "height");
+            if (w <= 0 || h <= 0) return;
+            String rxs = r.getAttributeValue(null, "rx"), rys = r.getAttributeValue(null, "ry");
+            double rx = rxs != null ? parseLength(rxs) : (rys != null ? parseLength(rys) : 0);
+            double ry = rys != null ? parseLength(rys) : rx;
+            rx = Math.min(Math.max(0, rx), w / 2);
+            ry = Math.min(Math.max(0, ry), h / 2);
+
+            if (rx == 0 || ry == 0) {
+                sink.moveTo(x, y);
+                sink.lineTo(x + w, y);
+                sink.lineTo(x + w, y + h);
+                sink.lineTo(x, y + h);
+                sink.close();
+            }
+            else {
+                final double k = 0.5522847498307936;
+                double ox = rx * k, oy = ry * k;
+                sink.moveTo(x + rx, y);
+                sink.lineTo(x + w - rx, y);
+                sink.cubicTo(x + w - rx + ox, y, x + w, y + ry - oy, x + w, y + ry);
+                sink.lineTo(x + w, y + h - ry);
+                sink.cubicTo(x + w, y + h - ry + oy, x + w - rx + ox, y + h, x + w - rx, y + h);
+                sink.lineTo(x + rx, y + h);
+                sink.cubicTo(x + rx - ox, y + h, x, y + h - ry + oy, x, y + h - ry);
+                sink.lineTo(x, y + ry);
+                sink.cubicTo(x, y + ry - oy, x + rx - ox, y, x + rx, y);
+            }
+        }
+        else if (name.equals("circle")) {
+            double r0 = attr(r, "r");
+            if (r0 > 0) ellipse(sink, attr(r, "cx"), attr(r, "cy"), r0, r0);
+        }
+        else if (name.equals("ellipse")) {
+            double rx = attr(r, "rx"), ry = attr(r, "ry");
+            if (rx > 0 && ry > 0) ellipse(sink, attr(r, "cx"), attr(r, "cy"), rx, ry);
+        }
+    }
+
+    private static void ellipse(Sink sink, double cx, double cy, double rx, double ry) throws IOException {
+        final double k = 0.5522847498307936;
+        double ox = rx * k, oy = ry * k;
+        sink.moveTo(cx + rx, cy);
+        sink.cubicTo(cx + rx, cy + oy, cx + ox, cy + ry, cx, cy + ry);
+        sink.cubicTo(cx - ox, cy + ry, cx - rx, cy + oy, cx - rx, cy);
+        sink.cubicTo(cx - rx, cy - oy, cx - ox, cy - ry, cx, cy - ry);
+        sink.cubicTo(cx + ox, cy - ry, cx + rx, cy - oy, cx + rx, cy);
+    }
+
+    private static double attr(XMLStreamReader r, String name) {
+        String v = r.getAttributeValue(null, name);
+        return v == null ? 0 : parseLength(v);
+    }
+
+    // Plain user-unit lengths ("12", "12px", "1e2"); percentages and font-relative units are not resolved
+    private static double parseLength(String v) {
+        NumberScanner ns = new NumberScanner(v);
+        return ns.hasNumber() ? ns.next() : 0;
+    }
+
+    // ------------------- Transforms -------------------
+    static AffineTransform parseTransform(String s) {
+        AffineTransform at = new AffineTransform();
+        int i = 0, n = s.length();
+
+        while (i < n) {
+            while (i < n && !Character.isLetter(s.charAt(i))) i++;
+            int nameStart = i;
+            while (i < n && Character.isLetter(s.charAt(i))) i++;
+            if (nameStart == i) break;
+            String fn = s.substring(nameStart, i).toLowerCase(Locale.ROOT);
+
+            int open = s.indexOf('(', i), close = open < 0 ? -1 : s.indexOf(')', open);
+            if (open < 0 || close < 0) break;
+
+            NumberScanner ns = new NumberScanner(s.substring(open + 1, close));
+            double[] a = new double[6];
+            int cnt = 0;
+            while (ns.hasNumber() && cnt < 6) a[cnt++] = ns.next();
+            i = close + 1;
+
+            if (fn.equals("matrix") && cnt == 6) {
+                at.concatenate(new AffineTransform(a[0], a[1], a[2], a[3], a[4], a[5]));
+            }
+            else if (fn.equals("translate") && cnt >= 1) {
+                at.translate(a[0], cnt > 1 ? a[1] : 0);
+            }
+            else if (fn.equals("scale") && cnt >= 1) {
+                at.scale(a[0], cnt > 1 ? a[1] : a[0]);
+            }
+            else if (fn.equals("rotate") && cnt >= 1) {
+                if (cnt >= 3) at.rotate(Math.toRadians(a[0]), a[1], a[2]);
+                else at.rotate(Math.toRadians(a[0]));
+            }
+            else if (fn.equals("skewx") && cnt >= 1) {
+                at.shear(Math.tan(Math.toRadians(a[0])), 0);
+            }
+            else if (fn.equals("skewy") && cnt >= 1) {
+                at.shear(0, Math.tan(Math.toRadians(a[0])));
+            }
+        }
+        return at;
+    }
+
+    // ------------------- Geometry sink -------------------
+
+    // Receives user-space geometry, applies the current transform and appends to the resulting SvgPath
+    private static final class Sink {
+        final MapAnnotator.SvgPath path = new MapAnnotator.SvgPath(null, 0, 0);
+        AffineTransform at = new AffineTransform();
+        MapAnnotator.SvgPath.Subpath cur = null;
+        int segCount = 0;
+
+        private final double[] buf = new double[6];
+
+        void moveTo(double x, double y) {
+            buf[0] = x; buf[1] = y;
+            at.transform(buf, 0, buf, 0, 1);
+            cur = new MapAnnotator.SvgPath.Subpath(buf[0], buf[1]);
+            path.subs().add(cur);
+        }
+
+        void lineTo(double x, double y) throws IOException {
+            if (cur == null) { moveTo(x, y); return; }
+            buf[0] = x; buf[1] = y;
+            at.transform(buf, 0, buf, 0, 1);
+            add(new MapAnnotator.SvgPath.LineTo(buf[0], buf[1]));
+        }
+
+        void cubicTo(double x1, double y1, double x2, double y2, double x, double y) throws IOException {
+            if (cur == null) moveTo(x1, y1);
+            buf[0] = x1; buf[1] = y1; buf[2] = x2; buf[3] = y2; buf[4] = x; buf[5] = y;
+            at.transform(buf, 0, buf, 0, 3);
+            add(new MapAnnotator.SvgPath.CubicTo(buf[0], buf[1], buf[2], buf[3], buf[4], buf[5]));
+        }
+
+        void close() throws IOException {
+            if (cur == null || cur.segs.isEmpty()) return;
+            MapAnnotator.SvgPath.Seg last = cur.segs.get(cur.segs.size() - 1);
+            double lx = last instanceof MapAnnotator.SvgPath.LineTo
+                    ? ((MapAnnotator.SvgPath.LineTo) last).x : ((MapAnnotator.SvgPath.CubicTo) last).x;
+            double ly = last instanceof MapAnnotator.SvgPath.LineTo
+                    ? ((MapAnnotator.SvgPath.LineTo) last).y : ((MapAnnotator.SvgPath.CubicTo) last).y;
+            if (lx != cur.startX || ly != cur.startY) {
+                add(new MapAnnotator.SvgPath.LineTo(cur.startX, cur.startY));
+            }
+        }
+
+        private void add(MapAnnotator.SvgPath.Seg s) throws IOException {
+            if (++segCount > MAX_SEGMENTS) throw new IOException("SVG is too complex (more than " + MAX_SEGMENTS + " segments)");
+            cur.segs.add(s);
+        }
+    }
+
+    // ------------------- Path data -------------------
+
+    // Single-pass parser for the "d" attribute; no intermediate token arrays
+    private static final class PathDataParser {
+        private final NumberScanner ns;
+        private final Sink sink;
+
+        private double cx, cy;        // current point (user space)
+        private double sx, sy;        // subpath start
+        private double lcx, lcy;      // last control point (for S/T reflection)
+        private char lastCmd = ' ';
+        private boolean reopen = false; // drawing after Z continues from the closed subpath's start
+
+        PathDataParser(String d, Sink sink) {
+            this.ns = new NumberScanner(d);
+            this.sink = sink;
+        }
+
+        void parse() throws IOException {
+            char cmd = ' ';
+            while (true) {
+                ns.skipSeparators();
+                if (ns.atEnd()) break;
+
+                char ch = ns.peek();
+                if (Character.isLetter(ch) && ch != 'e' && ch != 'E') {
+                    cmd = ch;
+                    ns.advance();
+                    if (cmd == 'Z' || cmd == 'z') {
+                        sink.close();
+                        cx = sx; cy = sy;
+                        lastCmd = cmd;
+                        reopen = true;
+                        continue;
+                    }
+                }
+                else if (cmd == ' ' || !ns.hasNumber()) {
+                    break; // garbage: stop rather than guess
+                }
+                else if (cmd == 'Z' || cmd == 'z') {
+                    break;
+                }
+
+                if (!ns.hasNumber()) continue;
+                cmd = segment(cmd);
+            }
+        }
+
+        // Executes one command's worth of arguments; returns the command implied for following bare numbers
+        private char segment(char cmd) throws IOException {
+            boolean rel = Character.isLowerCase(cmd);
+            if (reopen) {
+                reopen = false;
+                if (Character.toUpperCase(cmd) != 'M') sink.moveTo(cx, cy);
+            }
+            double ox = rel ? cx : 0, oy = rel ? cy : 0;
+
+            switch (Character.toUpperCase(cmd)) {
+                case 'M': {
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    sink.moveTo(x, y);
+                    cx = sx = x; cy = sy = y;
+                    lastCmd = 'M';
+                    return rel ? 'l' : 'L';
+                }
+                case 'L': {
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    sink.lineTo(x, y);
+                    cx = x; cy = y;
+                    break;
+                }
+                case 'H': {
+                    double x = ox + ns.next();
+                    sink.lineTo(x, cy);
+                    cx = x;
+                    break;
+                }
+                case 'V': {
+                    double y = oy + ns.next();
+                    sink.lineTo(cx, y);
+                    cy = y;
+                    break;
+                }
+                case 'C': {
+                    double x1 = ox + ns.next(), y1 = oy + ns.next();
+                    double x2 = ox + ns.next(), y2 = oy + ns.next();
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    sink.cubicTo(x1, y1, x2, y2, x, y);
+                    lcx = x2; lcy = y2; cx = x; cy = y;
+                    lastCmd = 'C';
+                    return cmd;
+                }
+                case 'S': {
+                    double x1 = cx, y1 = cy;
+                    if (lastCmd == 'C') { x1 = 2 * cx - lcx; y1 = 2 * cy - lcy; }
+                    double x2 = ox + ns.next(), y2 = oy + ns.next();
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    sink.cubicTo(x1, y1, x2, y2, x, y);
+                    lcx = x2; lcy = y2; cx = x; cy = y;
+                    lastCmd = 'C';
+                    return cmd;
+                }
+                case 'Q': {
+                    double qx = ox + ns.next(), qy = oy + ns.next();
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    quadTo(qx, qy, x, y);
+                    return cmd;
+                }
+                case 'T': {
+                    double qx = cx, qy = cy;
+                    if (lastCmd == 'Q') { qx = 2 * cx - lcx; qy = 2 * cy - lcy; }
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    quadTo(qx, qy, x, y);
+                    return cmd;
+                }
+                case 'A': {
+                    double rx = ns.next(), ry = ns.next(), phi = ns.next();
+                    boolean large = ns.nextFlag(), sweep = ns.nextFlag();
+                    double x = ox + ns.next(), y = oy + ns.next();
+                    arcTo(rx, ry, phi, large, sweep, x, y);
+                    cx = x; cy = y;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported path command '" + cmd + "'");
+            }
+            lastCmd = Character.toUpperCase(cmd);
+            return cmd;
+        }
+
+        private void quadTo(double qx, double qy, double x, double y) throws IOException {
+            sink.cubicTo(cx + 2.0 / 3.0 * (qx - cx), cy + 2.0 / 3.0 * (qy - cy),
+                    x + 2.0 / 3.0 * (qx - x), y + 2.0 / 3.0 * (qy - y), x, y);
+            lcx = qx; lcy = qy; cx = x; cy = y;
+            lastCmd = 'Q';
+        }
+
+        // SVG 1.1 F.6.5 endpoint -> center conversion, then one cubic per <= 90 degrees of sweep
+        private void arcTo(double rx, double ry, double phiDeg, boolean large, boolean sweep, double x, double y)
+                throws IOException {
+            if (x == cx && y == cy) return;
+            rx = Math.abs(rx); ry = Math.abs(ry);
+            if (rx == 0 || ry == 0) { sink.lineTo(x, y); return; }
+
+            double phi = Math.toRadians(phiDeg % 360);
+            double cosPhi = Math.cos(phi), sinPhi = Math.sin(phi);
+
+            double dx2 = (cx - x) / 2, dy2 = (cy - y) / 2;
+            double x1p = cosPhi * dx2 + sinPhi * dy2;
+            double y1p = -sinPhi * dx2 + cosPhi * dy2;
+
+            double lambda = (x1p * x1p) / (rx * rx) + (y1p * y1p) / (ry * ry);
+            if (lambda > 1) { double s = Math.sqrt(lambda); rx *= s; ry *= s; }
+
+            double rx2 = rx * rx, ry2 = ry * ry;
+            double num = rx2 * ry2 - rx2 * y1p * y1p - ry2 * x1p * x1p;
+            double den = rx2 * y1p * y1p + ry2 * x1p * x1p;
+            double coef = den == 0 ? 0 : Math.sqrt(Math.max(0, num / den));
+            if (large == sweep) coef = -coef;
+
+            double cxp = coef * (rx * y1p / ry);
+            double cyp = coef * -(ry * x1p / rx);
+
+            double ccx = cosPhi * cxp - sinPhi * cyp + (cx + x) / 2;
+            double ccy = sinPhi * cxp + cosPhi * cyp + (cy + y) / 2;
+
+            double theta1 = angle(1, 0, (x1p - cxp) / rx, (y1p - cyp) / ry);
+            double dTheta = angle((x1p - cxp) / rx, (y1p - cyp) / ry, (-x1p - cxp) / rx, (-y1p - cyp) / ry);
+            if (!sweep && dTheta > 0) dTheta -= 2 * Math.PI;
+            else if (sweep && dTheta < 0) dTheta += 2 * Math.PI;
+
+            int n = Math.max(1, (int) Math.ceil(Math.abs(dTheta) / (Math.PI / 2) - 1e-9));
+            double delta = dTheta / n;
+            double t = 4.0 / 3.0 * Math.tan(delta / 4);
+
+            double a = theta1;
+            for (int i = 0; i < n; i++) {
+                double cosA = Math.cos(a), sinA = Math.sin(a);
+                double b = a + delta;
+                double cosB = Math.cos(b), sinB = Math.sin(b);
+
+                double e1x = cosA - t * sinA, e1y = sinA + t * cosA;
+                double e2x = cosB + t * sinB, e2y = sinB - t * cosB;
+
+                double p1x = ccx + rx * cosPhi * e1x - ry * sinPhi * e1y;
+                double p1y = ccy + rx * sinPhi * e1x + ry * cosPhi * e1y;
+                double p2x = ccx + rx * cosPhi * e2x - ry * sinPhi * e2y;
+                double p2y = ccy + rx * sinPhi * e2x + ry * cosPhi * e2y;
+                double px = i == n - 1 ? x : ccx + rx * cosPhi * cosB - ry * sinPhi * sinB;
+                double py = i == n - 1 ? y : ccy + rx * sinPhi * cosB + ry * cosPhi * sinB;
+
+                sink.cubicTo(p1x, p1y, p2x, p2y, px, py);
+                a = b;
+            }
+        }
+
+        private static double angle(double ux, double uy, double vx, double vy) {
+            return Math.atan2(ux * vy - uy * vx, ux * vx + uy * vy);
+        }
+    }
+
+    // Scans SVG numbers ("-1.5e3", ".5.5", "10-2") directly from the source string
+    private static final class NumberScanner {
+        private final String s;
+        private final int n;
+        private int i = 0;
+
+        NumberScanner(String s) { this.s = s; this.n = s.length(); }
+
+        boolean atEnd() { return i >= n; }
+        char peek() { return s.charAt(i); }
+        void advance() { i++; }
+
+        void skipSeparators() {
+            while (i < n) {
+                char c = s.charAt(i);
+                if (c == ',' || Character.isWhitespace(c)) i++;
+                else break;
+            }
+        }
+
+        boolean hasNumber() {
+            skipSeparators();
+            if (i >= n) return false;
+            char c = s.charAt(i);
+            return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+        }
+
+        double next() {
+            if (!hasNumber()) throw new IllegalArgumentException("Number expected at offset " + i);
+            int start = i;
+            if (s.charAt(i) == '-' || s.charAt(i) == '+') i++;
+            boolean dot = false;
+            while (i < n) {
+                char c = s.charAt(i);
+                if (c >= '0' && c <= '9') i++;
+                else if (c == '.' && !dot) { dot = true; i++; }
+                else break;
+            }
+            if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+                int save = i++;
+                if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) i++;
+                if (i < n && Character.isDigit(s.charAt(i))) {
+                    while (i < n && Character.isDigit(s.charAt(i))) i++;
+                }
+                else i = save;
+            }
+            if (i == start || (i == start + 1 && !Character.isDigit(s.charAt(start)))) {
+                throw new IllegalArgumentException("Malformed number at offset " + start);
+            }
+            return Double.parseDouble(s.substring(start, i));
+        }
+
+        // Arc flags may be written without separators ("a1 1 0 011 1")
+        boolean nextFlag() {
+            skipSeparators();
+            if (i >= n) throw new IllegalArgumentException("Arc flag expected");
+            char c = s.charAt(i++);
+            if (c == '0') return false;
+            if (c == '1') return true;
+            throw new IllegalArgumentException("Invalid arc flag '" + c + "'");
+        }
+    }
+}
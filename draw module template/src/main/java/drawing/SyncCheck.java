@@ -0,0 +1,166 @@
+package drawing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import VASSAL.command.Command;
+
+/**
+ * Headless check of the state digest: two linked annotators execute the same synthetic session (see
+ * {@link AnnotationLogGenerator}), each missing drop percent of it, then run digest rounds until they hold the same
+ * items (stacking order aside). With merge=true consolidation must be refused before the digest agrees, then run.
+ *
+ * Reports the rounds taken, digest traffic against one full restore, and whether both end with the same items.
+ *
+ * Usage: java -Djava.awt.headless=true drawing.SyncCheck [generator options, see AnnotationLogGenerator]
+ *        [drop=1] [dropSeed=1] [rounds=6] [merge=true]
+ */
+final class SyncCheck {
+
+    private final List<String> lines;
+    private final double drop;
+    private final long seed;
+    private final int maxRounds;
+    private final boolean merge;
+
+    private final AtomicLong messages = new AtomicLong(), bytes = new AtomicLong();
+
+    private SyncCheck(List<String> lines, double drop, long seed, int maxRounds, boolean merge) {
+        this.lines = lines;
+        this.drop = drop;
+        this.seed = seed;
+        this.maxRounds = maxRounds;
+        this.merge = merge;
+    }
+
+    private void run() {
+        String mapId = lines.isEmpty() ? "Map0" : ReplayHarness.mapIdOf(lines.get(0));
+        MapAnnotator a = newAnnotator(mapId), b = newAnnotator(mapId);
+        a.linkHeadless(c -> deliver(a, b, c));
+        b.linkHeadless(c -> deliver(b, a, c));
+
+        Random r = new Random(seed);
+        int missedA = 0, missedB = 0;
+        for (String line : lines) {
+            boolean toA = r.nextDouble() * 100 >= drop, toB = r.nextDouble() * 100 >= drop;
+            if (toA) execute(a, line);
+            else missedA++;
+            if (toB) execute(b, line);
+            else missedB++;
+        }
+        settle(a, b);
+        System.out.printf(Locale.US, "%d commands, %d missed by one client and %d by the other%n", lines.size(), missedA, missedB);
+        System.out.printf(Locale.US, "before: %d and %d items, %s%n", items(a).size(), items(b).size(),
+                items(a).equals(items(b)) ? "same" : "different");
+
+        System.out.println("consolidation before the digest agrees: " + (consolidate(a, b) ? "RAN" : "refused"));
+        repair(a, b, "after");
+
+        long restore = 0;
+        ArrayList<String> wire = new ArrayList<>();
+        ReplayHarness.flatten(a.getRestoreCommand(), a, wire);
+        for (String s : wire) restore += s.length();
+        System.out.printf(Locale.US, "digest traffic: %d messages, %.1f KB; one full restore: %.1f KB%n",
+                messages.get(), bytes.get() / 1024.0, restore / 1024.0);
+
+        if (!merge) return;
+        // A round that finds them agreeing confirms the state; the merges are then sent like any other command
+        a.digestRound();
+        b.digestRound();
+        settle(a, b);
+        int before = items(a).size();
+        System.out.println("consolidation once the digest agrees: " + (consolidate(a, b) ? "ran" : "REFUSED"));
+        settle(a, b);
+        System.out.printf(Locale.US, "merged: %d items down to %d and %d, %s%n", before, items(a).size(), items(b).size(),
+                items(a).equals(items(b)) ? "same" : "different");
+        repair(a, b, "then");
+    }
+
+    // Digest rounds until both hold the same items, or maxRounds
+    private void repair(MapAnnotator a, MapAnnotator b, String label) {
+        int round = 0;
+        while (round < maxRounds && !items(a).equals(items(b))) {
+            round++;
+            a.digestRound();
+            b.digestRound();
+            settle(a, b);
+        }
+        System.out.printf(Locale.US, "%s %d digest round(s): %d and %d items, %s%n", label, round, items(a).size(), items(b).size(),
+                items(a).equals(items(b)) ? "same" : "STILL DIFFERENT");
+    }
+
+    // The client that would consolidate online does, and the other receives its merges; false if neither would
+    private boolean consolidate(MapAnnotator a, MapAnnotator b) {
+        Command c = a.consolidateHeadless();
+        MapAnnotator to = b;
+        if (c == null) {
+            c = b.consolidateHeadless();
+            to = a;
+        }
+        if (c == null) return false;
+        ArrayList<String> wire = new ArrayList<>();
+        ReplayHarness.flatten(c, to, wire);
+        for (String s : wire) execute(to, s);
+        return true;
+    }
+
+    private static MapAnnotator newAnnotator(String mapId) {
+        MapAnnotator a = new MapAnnotator();
+        a.setAttribute("compressRestore", false);
+        a.attachHeadless(new ReplayHarness.HeadlessMap(mapId, 1600, 1200));
+        return a;
+    }
+
+    private static void execute(MapAnnotator a, String line) {
+        Command c = a.decode(line);
+        if (c != null) c.execute();
+    }
+
+    // Called on the sender's apply thread, as the server would pass it on
+    private void deliver(MapAnnotator from, MapAnnotator to, Command c) {
+        String s = from.encode(c);
+        messages.incrementAndGet();
+        bytes.addAndGet(s.length());
+        execute(to, s);
+    }
+
+    // Until neither annotator has anything queued and no message is on its way
+    private void settle(MapAnnotator a, MapAnnotator b) {
+        long seen;
+        do {
+            seen = messages.get();
+            a.awaitApplied();
+            b.awaitApplied();
+        } while (messages.get() != seen);
+    }
+
+    // The state items, sorted: the restore of the published state, whose stacking order the digest ignores
+    private static List<String> items(MapAnnotator a) {
+        a.awaitApplied();
+        ArrayList<String> wire = new ArrayList<>();
+        ReplayHarness.flatten(a.getRestoreCommand(), a, wire);
+        String state = wire.isEmpty() ? "" : wire.get(0);
+        state = state.substring(state.indexOf("||SET_STATE||") + "||SET_STATE||".length());
+        List<String> items = state.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(state.split("@@")));
+        Collections.sort(items);
+        return items;
+    }
+
+    // ------------------- Command line -------------------
+    public static void main(String[] args) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        AnnotationLogGenerator.fromArgs(args).write(sb);
+
+        new SyncCheck(Arrays.asList(sb.toString().split("\n")),
+                Double.parseDouble(AnnotationLogGenerator.arg(args, "drop", "1")),
+                Long.parseLong(AnnotationLogGenerator.arg(args, "dropSeed", "1")),
+                Integer.parseInt(AnnotationLogGenerator.arg(args, "rounds", "6")),
+                Boolean.parseBoolean(AnnotationLogGenerator.arg(args, "merge", "true"))).run();
+        System.exit(0);
+    }
+}